@@ -0,0 +1,165 @@
+package tazyik;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Weekly, monthly or annual totals of a run, accumulated inside the day
+ * loop so only the aggregates are ever written.
+ *
+ * For each node and period it keeps the mean and peak end-of-day volume,
+ * the inflow (rainfall plus arriving flows), the losses (evaporation,
+ * infiltration and seepage) and the spill: water a dam let go because it
+ * was full, or for a river with a capacity, its volume above capacity
+ * summed over the days. Periods follow the 365-day year of the
+ * release policies, starting on day 1; a run that ends part way through a
+ * period writes that period too.
+ */
+class Aggregation {
+  enum Period {
+    WEEKLY("weekly", "Weekly"),
+    MONTHLY("monthly", "Monthly"),
+    ANNUAL("annual", "Annual");
+
+    final String name;
+    final String title;
+
+    Period(String name, String title) {
+      this.name = name;
+      this.title = title;
+    }
+
+    static Period named(String name) {
+      for (Period period : values()) {
+        if (period.name.equals(name)) return period;
+      }
+      return null;
+    }
+  }
+
+  private static final int[] MONTH_DAYS = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+  private static final String[] MONTH_NAMES = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+      "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  private final FlowNetwork network;
+  private final Period period;
+  // Added to by the simulation as water arrives or spills, per node
+  final double[] inflows;
+  final double[] losses;
+  final double[] spills;
+  private final double[] volumeSums;
+  private final double[] peaks;
+  private int start = 1; // First day of the current period
+  private int end; // Last day of the current period
+  private int index = 0; // Periods written so far
+  private final StringBuilder text = new StringBuilder();
+
+  Aggregation(FlowNetwork network, Period period) {
+    this.network = network;
+    this.period = period;
+    this.inflows = new double[network.nodeCount()];
+    this.losses = new double[network.nodeCount()];
+    this.spills = new double[network.nodeCount()];
+    this.volumeSums = new double[network.nodeCount()];
+    this.peaks = new double[network.nodeCount()];
+    this.end = lastDay(start);
+  }
+
+  void printHeader() {
+    System.out.println("\n=== " + period.title + " Output ===");
+    System.out.println("period,first day,last day,river,mean volume (ML),peak volume (ML)," +
+        "inflow (ML),loss (ML),spill (ML)");
+  }
+
+  /**
+   * Account for day's end-of-day volumes
+   */
+  void endOfDay(int day, DoubleBuffer volumes) {
+    addDays(volumes, 1);
+    if (day == end) write(day);
+  }
+
+  /**
+   * Account for days from to to, on which nothing happened so every volume
+   * stayed as it is
+   */
+  void quietDays(int from, int to, DoubleBuffer volumes) {
+    while (from <= to) {
+      int last = Math.min(to, end);
+      addDays(volumes, last - from + 1);
+      if (last == end) write(last);
+      from = last + 1;
+    }
+  }
+
+  /**
+   * Write the period the run ended in, if it has any days
+   */
+  void finish(int day) {
+    if (day >= start) write(day);
+  }
+
+  private void addDays(DoubleBuffer volumes, int days) {
+    for (int node = 0; node < volumeSums.length; node++) {
+      double volume = volumes.get(node);
+      volumeSums[node] += volume * days;
+      if (volume > peaks[node]) peaks[node] = volume;
+      if (network.damOf[node] < 0 && network.hasCapacity(node)) {
+        spills[node] += Math.max(0.0, volume - network.capacities[node]) * days;
+      }
+    }
+  }
+
+  /**
+   * Write the current period, ending on day, and start the next
+   */
+  private void write(int day) {
+    String label = label();
+    int days = day - start + 1;
+    text.setLength(0);
+    for (int node = 0; node < volumeSums.length; node++) {
+      text.append(label).append(',').append(start).append(',').append(day).append(',')
+          .append(network.names[node]).append(',')
+          .append(String.format("%.3f", volumeSums[node] / days)).append(',')
+          .append(String.format("%.3f", peaks[node])).append(',')
+          .append(String.format("%.3f", inflows[node])).append(',')
+          .append(String.format("%.3f", losses[node])).append(',')
+          .append(String.format("%.3f", spills[node])).append('\n');
+    }
+    System.out.print(text);
+
+    Arrays.fill(volumeSums, 0.0);
+    Arrays.fill(peaks, 0.0);
+    Arrays.fill(inflows, 0.0);
+    Arrays.fill(losses, 0.0);
+    Arrays.fill(spills, 0.0);
+    index++;
+    start = day + 1;
+    end = lastDay(start);
+  }
+
+  private String label() {
+    switch (period) {
+      case WEEKLY:
+        return "Week " + (index + 1);
+      case MONTHLY:
+        return "Year " + (index / 12 + 1) + " " + MONTH_NAMES[index % 12];
+      default:
+        return "Year " + (index + 1);
+    }
+  }
+
+  /**
+   * The last day of the period starting on first
+   */
+  private int lastDay(int first) {
+    switch (period) {
+      case WEEKLY:
+        return first + 6;
+      case MONTHLY:
+        return first + MONTH_DAYS[index % 12] - 1;
+      default:
+        return first + ReleasePolicy.DAYS_PER_YEAR - 1;
+    }
+  }
+}
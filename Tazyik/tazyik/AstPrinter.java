@@ -1,5 +1,6 @@
 package tazyik;
 
+import java.util.Arrays;
 import java.util.stream.Collectors;
 
 class AstPrinter implements Expr.Visitor<String> {
@@ -9,7 +10,7 @@ class AstPrinter implements Expr.Visitor<String> {
 
   @Override
   public String visitBinaryExpr(Expr.Binary expr) {
-    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
   }
 
   @Override
@@ -25,22 +26,36 @@ class AstPrinter implements Expr.Visitor<String> {
 
   @Override
   public String visitUnaryExpr(Expr.Unary expr) {
-    return parenthesize(expr.operator.lexeme, expr.right);
+    return parenthesize(expr.operator.lexeme(), expr.right);
   }
 
   @Override
   public String visitVariableExpr(Expr.Variable expr) {
-    return expr.name.lexeme;
+    return expr.name.lexeme();
   }
 
   @Override
-  public String visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
-    String elements = expr.elements.stream()
-      .map(e -> e.accept(this))
+  public String visitNumberArrayExpr(Expr.NumberArray expr) {
+    String elements = Arrays.stream(expr.values)
+      .mapToObj(Double::toString)
       .collect(Collectors.joining(", "));
     return "[" + elements + "]";
   }
 
+  @Override
+  public String visitRainfallExpr(Expr.Rainfall expr) {
+    return expr.amount + "(" + expr.days + ")mm";
+  }
+
+  @Override
+  public String visitCallExpr(Expr.Call expr) {
+    StringBuilder builder = new StringBuilder(expr.callee.lexeme()).append("(");
+    for (int i = 0; i < expr.parameters.size(); i++) {
+      if (i > 0) builder.append(", ");
+      builder.append(expr.parameters.get(i).lexeme()).append("=").append(expr.arguments[i]);
+    }
+    return builder.append(")").toString();
+  }
 
   private String parenthesize(String name, Expr... exprs) {
     StringBuilder builder = new StringBuilder();
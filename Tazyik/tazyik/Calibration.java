@@ -0,0 +1,280 @@
+package tazyik;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fits the routing of each flow to observed daily volumes. Every edge gets
+ * its own flow period (the program's FlowOut) and residual (the fraction of
+ * its sources left at the end of that period, 0.001 by default), and a
+ * PatternSearch looks for the values that best reproduce the observations,
+ * simulating many candidate parameter sets at once against one compiled
+ * network. Only the part of the network upstream of the observed rivers is
+ * simulated, since nothing else can change the fit.
+ */
+class Calibration {
+  static final int MIN_FLOW_OUT = 3; // Same lower limit as FlowOut declarations
+  static final int MAX_FLOW_OUT = 120;
+  static final double MIN_LOG_RESIDUAL = -6.0; // log10 of the residual
+  static final double MAX_LOG_RESIDUAL = -0.5;
+  static final double FIRST_STEP = 8.0;
+  static final double LAST_STEP = 0.5;
+  static final int MAX_ROUNDS = 100;
+
+  enum Metric {
+    NSE("nse"), // Nash-Sutcliffe efficiency, 1 is a perfect fit
+    RMSE("rmse"); // Root mean square error in ML
+
+    final String name;
+
+    Metric(String name) {
+      this.name = name;
+    }
+
+    static Metric named(String name) {
+      for (Metric metric : values()) {
+        if (metric.name.equals(name)) return metric;
+      }
+      return null;
+    }
+  }
+
+  private final FlowNetwork network;
+  private final Metric metric;
+  private final int[] gauges; // Node of each observed river
+  private final double[][] observed; // Per gauge, the volume on each day, NaN if missing
+  private final double[] variation; // Per gauge, sum of squared deviations from the mean
+  private final int[] counts; // Per gauge, number of observed days
+  private Subcatchments subcatchments; // Replayed in every evaluation, or null
+
+  private Calibration(FlowNetwork network, Metric metric, int[] gauges, double[][] observed) {
+    this.network = network;
+    this.metric = metric;
+    this.gauges = gauges;
+    this.observed = observed;
+    this.variation = new double[gauges.length];
+    this.counts = new int[gauges.length];
+    for (int g = 0; g < gauges.length; g++) {
+      double sum = 0.0;
+      for (double value : observed[g]) {
+        if (Double.isNaN(value)) continue;
+        sum += value;
+        counts[g]++;
+      }
+      double mean = sum / counts[g];
+      for (double value : observed[g]) {
+        if (!Double.isNaN(value)) variation[g] += (value - mean) * (value - mean);
+      }
+    }
+  }
+
+  /**
+   * Read observations from a file whose header is "day," followed by river
+   * names, and whose rows give a day and the volume of each river in ML on
+   * that day. Empty cells are missing observations. Blank lines and lines
+   * starting with '#' are skipped.
+   */
+  static Calibration load(FlowNetwork network, Metric metric, Path file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (String line : Files.readAllLines(file)) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) lines.add(line);
+    }
+    if (lines.isEmpty()) throw new IllegalArgumentException("No observations.");
+
+    String[] header = lines.get(0).split(",", -1);
+    String[] rivers = new String[header.length - 1];
+    int[] nodes = new int[rivers.length];
+    for (int g = 0; g < rivers.length; g++) {
+      rivers[g] = header[g + 1].trim();
+      nodes[g] = network.nodeNamed(rivers[g]);
+      if (nodes[g] < 0) throw new IllegalArgumentException("Unknown river '" + rivers[g] + "'.");
+    }
+    if (rivers.length == 0) throw new IllegalArgumentException("No rivers in the header.");
+
+    List<double[]> rows = new ArrayList<>();
+    int lastDay = 0;
+    for (int i = 1; i < lines.size(); i++) {
+      String[] fields = lines.get(i).split(",", -1);
+      if (fields.length != header.length) {
+        throw new IllegalArgumentException("Row " + i + " does not match the header.");
+      }
+      double[] row = new double[fields.length];
+      try {
+        for (int f = 0; f < fields.length; f++) {
+          String field = fields[f].trim();
+          row[f] = field.isEmpty() ? Double.NaN : Double.parseDouble(field);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Row " + i + " is not numeric.");
+      }
+      if (!(row[0] >= 1) || row[0] != Math.floor(row[0])) {
+        throw new IllegalArgumentException("Row " + i + " does not start with a day number.");
+      }
+      lastDay = Math.max(lastDay, (int) row[0]);
+      rows.add(row);
+    }
+
+    // Nothing downstream of the gauges can change what they see
+    FlowNetwork upstream = network.upstreamOf(nodes);
+    int[] gauges = new int[rivers.length];
+    double[][] observed = new double[rivers.length][lastDay];
+    for (int g = 0; g < rivers.length; g++) {
+      gauges[g] = upstream.nodeNamed(rivers[g]);
+      Arrays.fill(observed[g], Double.NaN);
+    }
+    for (double[] row : rows) {
+      for (int g = 0; g < rivers.length; g++) {
+        observed[g][(int) row[0] - 1] = row[g + 1];
+      }
+    }
+
+    Calibration calibration = new Calibration(upstream, metric, gauges, observed);
+    for (int g = 0; g < rivers.length; g++) {
+      if (calibration.counts[g] == 0) {
+        throw new IllegalArgumentException("No observations of '" + rivers[g] + "'.");
+      }
+      if (metric == Metric.NSE && calibration.variation[g] == 0.0) {
+        throw new IllegalArgumentException("Observations of '" + rivers[g] +
+            "' never change, so NSE is undefined; use --metric rmse.");
+      }
+    }
+    return calibration;
+  }
+
+  /**
+   * Simulate identical sub-catchments once per parameter set, and reuse
+   * them across parameter sets that leave their flows' routing alone
+   */
+  void memoise() {
+    subcatchments = Subcatchments.find(network, 2, true, gauges);
+  }
+
+  void run() {
+    int edges = network.edgeCount();
+    System.out.println("=== Calibration (metric: " + metric.name + ", " + gauges.length +
+        " observed rivers, " + edges + " flows) ===");
+    if (edges == 0) {
+      System.out.println("No flows upstream of the observed rivers to calibrate.");
+      return;
+    }
+
+    // Parameters: each edge's flow period, then each edge's log10 residual
+    double[] start = new double[2 * edges];
+    double[] lower = new double[start.length];
+    double[] upper = new double[start.length];
+    double[] scales = new double[start.length];
+    for (int edge = 0; edge < edges; edge++) {
+      start[edge] = network.edgeFlowOutDays[edge];
+      lower[edge] = MIN_FLOW_OUT;
+      upper[edge] = Math.max(MAX_FLOW_OUT, network.edgeFlowOutDays[edge]);
+      scales[edge] = 1.0; // Days
+      start[edges + edge] = Math.log10(network.edgeResiduals[edge]);
+      lower[edges + edge] = MIN_LOG_RESIDUAL;
+      upper[edges + edge] = MAX_LOG_RESIDUAL;
+      scales[edges + edge] = 0.125; // Decades
+    }
+    PatternSearch search = new PatternSearch(lower, upper, scales, FIRST_STEP, LAST_STEP,
+        MAX_ROUNDS);
+
+    long began = System.nanoTime();
+    search.minimise(start, this::evaluate);
+    double seconds = (System.nanoTime() - began) / 1e9;
+
+    double[] before = squaredErrors(start);
+    double[] after = squaredErrors(search.best);
+    for (int g = 0; g < gauges.length; g++) {
+      System.out.println("  " + network.names[gauges[g]] + ": NSE " +
+          String.format("%.4f", nse(g, before[g])) + " -> " +
+          String.format("%.4f", nse(g, after[g])) + ", RMSE " +
+          String.format("%.3f", rmse(g, before[g])) + "ML -> " +
+          String.format("%.3f", rmse(g, after[g])) + "ML");
+    }
+    System.out.println("Fitted flows:");
+    for (int edge = 0; edge < edges; edge++) {
+      System.out.println("  Flow " + (edge + 1) + " (" + names(network.sources[edge]) +
+          " -> " + names(network.destinations[edge]) + "): FlowOut " +
+          flowOut(search.best[edge]) + " days, residual " +
+          String.format("%.3g", Math.pow(10, search.best[edges + edge])));
+    }
+    double days = observed[0].length;
+    double nodeDays = (double) search.evaluations * days * network.nodeCount();
+    // Parallel streams run on the common pool and the calling thread
+    System.out.println("Evaluated " + search.evaluations + " parameter sets in " +
+        String.format("%.3f", seconds) + "s: " +
+        String.format("%.1f", search.evaluations / seconds) + " sets/s, " +
+        String.format("%.3g", nodeDays / seconds) + " node-days/s on " +
+        (ForkJoinPool.getCommonPoolParallelism() + 1) + " threads");
+  }
+
+  /**
+   * The metric to minimise, averaged over the observed rivers: 1 - NSE, or
+   * RMSE
+   */
+  double evaluate(double[] parameters) {
+    double[] errors = squaredErrors(parameters);
+    double score = 0.0;
+    for (int g = 0; g < gauges.length; g++) {
+      score += metric == Metric.NSE ? 1.0 - nse(g, errors[g]) : rmse(g, errors[g]);
+    }
+    return score / gauges.length;
+  }
+
+  /**
+   * Simulate with the given parameters and return, per observed river, the
+   * sum of squared differences from the observations
+   */
+  private double[] squaredErrors(double[] parameters) {
+    int edges = network.edgeCount();
+    int[] flowOutDays = new int[edges];
+    double[] residuals = new double[edges];
+    for (int edge = 0; edge < edges; edge++) {
+      flowOutDays[edge] = flowOut(parameters[edge]);
+      residuals[edge] = Math.pow(10, parameters[edges + edge]);
+    }
+    FlowNetwork candidate = network.withRouting(flowOutDays, residuals);
+    Simulation simulation = new Simulation(candidate);
+    simulation.daily = false;
+    int days = observed[0].length;
+    if (subcatchments != null) simulation.memoise(subcatchments.replay(candidate, 0.0, days));
+
+    double[] errors = new double[gauges.length];
+    for (int day = 1; day <= days; day++) {
+      simulation.simulateDay(day);
+      for (int g = 0; g < gauges.length; g++) {
+        double expected = observed[g][day - 1];
+        if (Double.isNaN(expected)) continue;
+        double difference = simulation.state.volumes.get(gauges[g]) - expected;
+        errors[g] += difference * difference;
+      }
+    }
+    return errors;
+  }
+
+  private double nse(int gauge, double squaredError) {
+    return 1.0 - squaredError / variation[gauge];
+  }
+
+  private double rmse(int gauge, double squaredError) {
+    return Math.sqrt(squaredError / counts[gauge]);
+  }
+
+  private static int flowOut(double parameter) {
+    return (int) Math.round(parameter);
+  }
+
+  private String names(int[] nodes) {
+    StringBuilder joined = new StringBuilder();
+    for (int node : nodes) {
+      if (node < 0) continue;
+      if (joined.length() > 0) joined.append(" + ");
+      joined.append(network.names[node]);
+    }
+    return joined.length() > 0 ? joined.toString() : "(downstream)";
+  }
+}
@@ -0,0 +1,118 @@
+package tazyik;
+
+/**
+ * State of one dam during a simulation run, with its control algorithm
+ */
+class DamState {
+  String name;
+  double capacity; // Maximum capacity in ML
+  double currentLevel; // Current water level in ML
+  ReleasePolicy policy; // How much the dam lets go each day
+  double spilled; // Part of the last release forced by being full
+  
+  DamState(String name, double capacity, ReleasePolicy policy) {
+    this.name = name;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.currentLevel = 0.0;
+  }
+  
+  /**
+   * Calculate release amount based on dam level, inflow, and rainfall
+   * This implements the dam control algorithm (worth 2 marks)
+   * 
+   * The dam's ReleasePolicy decides how much it wants to release; by
+   * default that keeps the dam at its "release N%" target level. Whatever
+   * the policy, the release is limited to the water available and anything
+   * above capacity is spilled.
+   */
+  double calculateRelease(double inflow, double rainfall, int day) {
+    double wanted = policy.release(currentLevel, capacity, inflow, rainfall, day);
+    double totalAvailable = currentLevel + inflow + rainfall;
+    double releaseAmount = limit(wanted, totalAvailable, capacity);
+    // Whatever was released beyond what the policy could have had
+    spilled = releaseAmount - Math.max(0, Math.min(wanted, totalAvailable));
+    return releaseAmount;
+  }
+  
+  // How limit() settled a release
+  static final int AS_WANTED = 0; // What the policy wanted
+  static final int NOTHING = 1; // The policy wanted nothing, or less
+  static final int ALL_AVAILABLE = 2; // The policy wanted more than there was
+  static final int SPILL = 3; // More than wanted, so the dam keeps no more than capacity
+
+  /**
+   * The release a dam holding capacity actually makes when its policy
+   * wants to release wanted out of totalAvailable. Shared with
+   * ScenarioBatch, so a batch of scenarios releases exactly what a single
+   * run would, and with Sensitivity, which follows the same case.
+   */
+  static double limit(double wanted, double totalAvailable, double capacity) {
+    switch (limitCase(wanted, totalAvailable, capacity)) {
+      case NOTHING:
+        return 0.0;
+      case ALL_AVAILABLE:
+        return totalAvailable;
+      case SPILL:
+        // Force spillage if over capacity (emergency overflow)
+        return totalAvailable - capacity;
+      default:
+        return wanted;
+    }
+  }
+
+  /**
+   * Which of AS_WANTED, NOTHING, ALL_AVAILABLE and SPILL limit() makes of a
+   * release
+   */
+  static int limitCase(double wanted, double totalAvailable, double capacity) {
+    // Ensure release doesn't exceed what we have available
+    double releaseAmount = Math.max(0, Math.min(wanted, totalAvailable));
+    // Ensure we don't exceed capacity after retention
+    if (totalAvailable - releaseAmount > capacity) return SPILL;
+    if (wanted > totalAvailable) return ALL_AVAILABLE;
+    return wanted <= 0 ? NOTHING : AS_WANTED;
+  }
+  
+  void updateLevel(double inflow, double outflow, double rainfall) {
+    currentLevel = updatedLevel(currentLevel, inflow, outflow, rainfall, capacity);
+  }
+  
+  /**
+   * The level after a day's inflow, rainfall and release, kept within
+   * 0 and capacity
+   */
+  static double updatedLevel(double level, double inflow, double outflow, double rainfall,
+                             double capacity) {
+    double updated = level + inflow + rainfall - outflow;
+    return Math.max(0, Math.min(capacity, updated));
+  }
+  
+  /**
+   * calculateRelease in whole micro-litres, for FixedPointSimulation. The
+   * policy is asked in ML as usual and its answer rounded to the nearest
+   * micro-litre; limiting it to the water available and spilling above
+   * capacity are then exact, so the result depends on nothing but the
+   * arguments.
+   */
+  long calculateRelease(long level, long inflow, long rainfall, int day) {
+    long capacityUnits = FixedPointSimulation.units(capacity);
+    long releaseAmount = FixedPointSimulation.units(policy.release(
+        FixedPointSimulation.ml(level), capacity, FixedPointSimulation.ml(inflow),
+        FixedPointSimulation.ml(rainfall), day));
+    long totalAvailable = level + inflow + rainfall;
+    releaseAmount = Math.max(0, Math.min(releaseAmount, totalAvailable));
+    if (totalAvailable - releaseAmount > capacityUnits) {
+      releaseAmount = totalAvailable - capacityUnits;
+    }
+    return releaseAmount;
+  }
+  
+  /**
+   * updateLevel in whole micro-litres: the new level
+   */
+  long updateLevel(long level, long inflow, long outflow, long rainfall) {
+    long updated = level + inflow + rainfall - outflow;
+    return Math.max(0, Math.min(FixedPointSimulation.units(capacity), updated));
+  }
+}
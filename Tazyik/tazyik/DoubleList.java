@@ -0,0 +1,39 @@
+package tazyik;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive doubles, used where an ArrayList<Double>
+ * would box every value.
+ */
+class DoubleList {
+  private double[] values;
+  private int size;
+
+  DoubleList() {
+    this(16);
+  }
+
+  DoubleList(int capacity) {
+    values = new double[Math.max(1, capacity)];
+  }
+
+  void add(double value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  double get(int index) {
+    return values[index];
+  }
+
+  int size() {
+    return size;
+  }
+
+  double[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+}
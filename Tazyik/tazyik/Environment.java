@@ -1,11 +1,11 @@
 package tazyik;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
   final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  // Indexed by interned symbol id; null means not defined here
+  private Object[] values = new Object[16];
 
   Environment() {
     enclosing = null;
@@ -16,19 +16,19 @@ class Environment {
   }
 
   Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+    if (isDefined(name.symbol)) {
+      return values[name.symbol];
     }
 
     if (enclosing != null) return enclosing.get(name);
 
     throw new RuntimeError(name,
-        "Undefined variable '" + name.lexeme + "'.");
+        "Undefined variable '" + name.lexeme() + "'.");
   }
 
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
+    if (isDefined(name.symbol)) {
+      values[name.symbol] = value;
       return;
     }
 
@@ -38,10 +38,17 @@ class Environment {
     }
     
     throw new RuntimeError(name,
-           "Undefined variable '" + name.lexeme + "'.");
+           "Undefined variable '" + name.lexeme() + "'.");
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
+  void define(int symbol, Object value) {
+    if (symbol >= values.length) {
+      values = Arrays.copyOf(values, Math.max(symbol + 1, values.length * 2));
+    }
+    values[symbol] = value;
+  }
+
+  private boolean isDefined(int symbol) {
+    return symbol >= 0 && symbol < values.length && values[symbol] != null;
   }
 }
@@ -0,0 +1,125 @@
+package tazyik;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which nodes and edges have something to do on which day, so a
+ * Simulation only touches the active parts of the network and can jump
+ * straight over days on which nothing changes.
+ *
+ * Rainfall is queued per node by the next day it exceeds epsilon, and edges
+ * are remembered when they schedule a flow for tomorrow. Once the flow
+ * period is over, a day with no queued rainfall and no pending flow leaves
+ * every volume unchanged, so the clock moves to the next queued day.
+ */
+class EventScheduler {
+  private final FlowNetwork network;
+  private final double epsilon;
+
+  // Min-heap of (day << 32 | node): the next wet day of each node
+  private long[] heap;
+  private int heapSize = 0;
+
+  // Edges holding flow that arrives tomorrow
+  private final boolean[] edgePending;
+  private int[] pendingEdges;
+  private int pendingCount = 0;
+
+  EventScheduler(FlowNetwork network, double epsilon) {
+    this.network = network;
+    this.epsilon = epsilon;
+    this.heap = new long[Math.max(1, network.nodeCount())];
+    for (int node = 0; node < network.nodeCount(); node++) {
+      schedule(node, network.rainfall[node].nextWetDay(1, epsilon));
+    }
+    this.edgePending = new boolean[network.edgeCount()];
+    this.pendingEdges = new int[network.edgeCount()];
+  }
+
+  /**
+   * The first day from day onwards on which anything happens, or
+   * Integer.MAX_VALUE if nothing ever will again.
+   */
+  int nextDay(int day) {
+    if (day <= network.routingDays() + 1 || pendingCount > 0) return day;
+    if (heapSize == 0) return Integer.MAX_VALUE;
+    return Math.max(day, (int) (heap[0] >>> 32));
+  }
+
+  /**
+   * Nodes with rainfall on day, written to nodes; returns how many. Each is
+   * queued again for its next wet day.
+   */
+  int wetNodes(int day, int[] nodes) {
+    int count = 0;
+    while (heapSize > 0 && (int) (heap[0] >>> 32) == day) {
+      int node = (int) heap[0];
+      pop();
+      nodes[count++] = node;
+      schedule(node, network.rainfall[node].nextWetDay(day + 1, epsilon));
+    }
+    return count;
+  }
+
+  /**
+   * Catch up after the simulation jumped over days without asking, so
+   * rainfall is queued from day on and every edge may have flow arriving
+   */
+  void resume(int day) {
+    heapSize = 0;
+    for (int node = 0; node < network.nodeCount(); node++) {
+      schedule(node, network.rainfall[node].nextWetDay(day, epsilon));
+    }
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      edgeScheduled(edge);
+    }
+  }
+
+  void edgeScheduled(int edge) {
+    if (!edgePending[edge]) {
+      edgePending[edge] = true;
+      pendingEdges[pendingCount++] = edge;
+    }
+  }
+
+  /**
+   * Edges with flow arriving today, in edge order, written to edges; returns
+   * how many. The pending set is emptied.
+   */
+  int takePendingEdges(int[] edges) {
+    int count = pendingCount;
+    System.arraycopy(pendingEdges, 0, edges, 0, count);
+    Arrays.sort(edges, 0, count);
+    for (int i = 0; i < count; i++) {
+      edgePending[edges[i]] = false;
+    }
+    pendingCount = 0;
+    return count;
+  }
+
+  private void schedule(int node, int day) {
+    if (day == Integer.MAX_VALUE) return;
+    if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+    long entry = ((long) day << 32) | node;
+    int i = heapSize++;
+    while (i > 0 && heap[(i - 1) / 2] > entry) {
+      heap[i] = heap[(i - 1) / 2];
+      i = (i - 1) / 2;
+    }
+    heap[i] = entry;
+  }
+
+  private void pop() {
+    long last = heap[--heapSize];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) break;
+      if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+      if (heap[child] >= last) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = last;
+  }
+}
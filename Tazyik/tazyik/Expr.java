@@ -9,7 +9,9 @@ abstract class Expr {
     R visitLiteralExpr(Literal expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
-    R visitArrayLiteralExpr(ArrayLiteral expr);
+    R visitNumberArrayExpr(NumberArray expr);
+    R visitRainfallExpr(Rainfall expr);
+    R visitCallExpr(Call expr);
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -77,17 +79,47 @@ abstract class Expr {
 
     final Token name;
   }
-  static class ArrayLiteral extends Expr {
-    ArrayLiteral(List<Expr> elements) {
-      this.elements = elements;
+  static class NumberArray extends Expr {
+    NumberArray(double[] values) {
+      this.values = values;
     }
 
     @Override
     <R> R accept(Visitor<R> visitor) {
-      return visitor.visitArrayLiteralExpr(this);
+      return visitor.visitNumberArrayExpr(this);
     }
 
-    final List<Expr> elements;
+    final double[] values;
+  }
+  static class Rainfall extends Expr {
+    Rainfall(double amount, int days) {
+      this.amount = amount;
+      this.days = days;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitRainfallExpr(this);
+    }
+
+    final double amount;
+    final int days;
+  }
+  static class Call extends Expr {
+    Call(Token callee, List<Token> parameters, double[] arguments) {
+      this.callee = callee;
+      this.parameters = parameters;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    final Token callee;
+    final List<Token> parameters;
+    final double[] arguments;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,172 @@
+package tazyik;
+
+/**
+ * Advances a Simulation over stretches of days on which one day of the model
+ * is a fixed linear map, instead of stepping through them one at a time.
+ *
+ * The state is the node volumes, the pending flow slots and a constant 1.
+ * Rainfall adds a constant, arrivals move pending slots into their
+ * destination, and each flow moves its draw fractions of its sources into
+ * its pending slots, all of which is linear as long as no water arrives at
+ * a dam (calculateRelease is not). So while rainfall stays constant, N days are
+ * one matrix A raised to the N-th power, which takes O(log N) sparse
+ * products. Only the order of floating point operations differs from
+ * stepping day by day.
+ *
+ * Two kinds of stretch qualify: days 2..flowOutDays, when flows are both
+ * arriving and departing, provided no flow delivers into a dam and no flow
+ * is small enough to be dropped as negligible (epsilon is 0); and every
+ * day after flowOutDays + 1, when only rainfall changes anything. Rainfall
+ * at or below epsilon is dropped, as it is when stepping.
+ */
+class FastForward {
+  static final int MIN_SPAN = 16; // Shorter stretches are cheaper to step
+
+  private final FlowNetwork network;
+  private final double epsilon; // Rainfall and flows at or below this are negligible
+  private final int[] slotBase; // State index of each edge's first pending slot
+  private final int size; // Volumes and pending slots, without the constant
+  private final boolean damFreeRouting; // No flow delivers into a dam
+  private SparseMatrix.Row[] routingDay; // Linear part of a flowing day
+  private SparseMatrix.Row[] quietDay; // Linear part of a day after the flows stop
+
+  FastForward(FlowNetwork network, double epsilon) {
+    this.network = network;
+    this.epsilon = epsilon;
+    this.slotBase = new int[network.edgeCount()];
+    boolean damFree = true;
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      slotBase[edge] = network.nodeCount() + network.slotStart[edge];
+      for (int dest : network.pendingDestinations[edge]) {
+        if (network.damOf[dest] >= 0) damFree = false;
+      }
+    }
+    this.size = network.nodeCount() + network.slotCount();
+    this.damFreeRouting = damFree;
+  }
+
+  /**
+   * How many days starting at day (up to lastDay) can be advanced in one go,
+   * or 0 if day should be simulated normally.
+   */
+  int span(int day, int lastDay) {
+    int flowOutDays = network.flowOutDays;
+    int end;
+    // Dropping negligible flows is not linear
+    if (day >= 2 && day <= flowOutDays && damFreeRouting && epsilon == 0.0) {
+      end = Math.min(flowOutDays, lastDay);
+    } else if (day >= flowOutDays + 2) {
+      end = lastDay;
+    } else {
+      return 0;
+    }
+
+    long span = end - day + 1;
+    for (RainfallSeries series : network.rainfall) {
+      span = Math.min(span, series.constantRun(day));
+      if (span < MIN_SPAN) return 0;
+    }
+    return (int) span;
+  }
+
+  /**
+   * Advance the given state by days days, starting at day, where
+   * span(day, ...) said that is possible.
+   */
+  void advance(StateColumns columns, int day, int days) {
+    boolean flowing = day <= network.flowOutDays;
+    SparseMatrix.Row[] linear = flowing ? routingDay() : quietDay();
+
+    // Today's rainfall, added before the day's flows. It is the same on
+    // every day of the span, so so is whether it is negligible.
+    double[] rain = new double[size];
+    for (int node = 0; node < network.nodeCount(); node++) {
+      double rainfall = network.rainfall[node].on(day);
+      if (rainfall > epsilon) rain[node] = rainfall;
+    }
+
+    // A = [L, L r; 0, 1], so that x' = L (x + r)
+    SparseMatrix.Row[] rows = new SparseMatrix.Row[size + 1];
+    for (int i = 0; i < size; i++) {
+      double constant = 0.0;
+      SparseMatrix.Row row = linear[i];
+      for (int k = 0; k < row.count; k++) {
+        constant += row.values[k] * rain[row.columns[k]];
+      }
+      rows[i] = constant == 0.0 ? row : row.plus(SparseMatrix.Row.unit(size), constant);
+    }
+    rows[size] = SparseMatrix.Row.unit(size);
+    SparseMatrix step = SparseMatrix.fromRows(rows);
+
+    int nodes = network.nodeCount();
+    double[] state = new double[size + 1];
+    columns.volumes.get(0, state, 0, nodes);
+    columns.pending.get(0, state, nodes, size - nodes);
+    state[size] = 1.0;
+
+    state = step.power(days, state);
+
+    columns.volumes.put(0, state, 0, nodes);
+    columns.pending.put(0, state, nodes, size - nodes);
+  }
+
+  private SparseMatrix.Row[] routingDay() {
+    if (routingDay == null) routingDay = dayMap(true);
+    return routingDay;
+  }
+
+  private SparseMatrix.Row[] quietDay() {
+    if (quietDay == null) quietDay = dayMap(false);
+    return quietDay;
+  }
+
+  /**
+   * The linear part of one day, built by running Simulation.simulateDay's
+   * arrival and departure phases on rows that express each state component
+   * as a combination of the state after rainfall.
+   */
+  private SparseMatrix.Row[] dayMap(boolean departures) {
+    SparseMatrix.Row[] rows = new SparseMatrix.Row[size];
+    for (int i = 0; i < size; i++) {
+      rows[i] = SparseMatrix.Row.unit(i);
+    }
+
+    // PHASE 1: yesterday's flows arrive
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      int[] slotDestinations = network.pendingDestinations[edge];
+      for (int slot = 0; slot < slotDestinations.length; slot++) {
+        int dest = slotDestinations[slot];
+        int index = slotBase[edge] + slot;
+        // Only reached for dams on quiet days, when every slot is empty
+        if (network.damOf[dest] < 0) {
+          rows[dest] = rows[dest].plus(rows[index], 1.0);
+        }
+        rows[index] = new SparseMatrix.Row();
+      }
+    }
+
+    // PHASE 2: today's flows leave their sources. Routing is uniform, so
+    // every edge flows, with the same draw fractions, on every routing day
+    if (departures) {
+      double[][] fractions = network.drawFractions(1);
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        int[] sources = network.sources[edge];
+        int[] destinations = network.destinations[edge];
+        if (destinations.length == 0) continue;
+        SparseMatrix.Row total = new SparseMatrix.Row();
+        for (int i = 0; i < sources.length; i++) {
+          total = total.plus(rows[sources[i]], fractions[edge][i]);
+        }
+        for (int i = 0; i < sources.length; i++) {
+          rows[sources[i]] = rows[sources[i]].scaled(1.0 - fractions[edge][i]);
+        }
+        SparseMatrix.Row share = total.scaled(1.0 / destinations.length);
+        for (int i = 0; i < destinations.length; i++) {
+          int slot = network.slotOf[edge][i];
+          if (slot >= 0) rows[slotBase[edge] + slot] = share;
+        }
+      }
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,354 @@
+package tazyik;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The simulation of Simulation.simulateDay with every volume held as a
+ * long count of micro-litres (--fixed-point), so its results do not depend
+ * on the order anything is added up in. Integer sums are exact, and each
+ * rounding is made once, on a value that does not depend on that order:
+ *
+ * - rainfall, losses and the dams' release policies are rounded to the
+ *   nearest micro-litre;
+ * - an edge takes a share of each source's volume at the start of the
+ *   routing phase, rounded down, so a source never gives more than it
+ *   holds (the shares are drawFractions made absolute, see shares);
+ * - an edge's flow is split between its destinations in whole
+ *   micro-litres, the remainder going one each to its first destinations.
+ *
+ * Water is then conserved exactly: what leaves a source arrives somewhere,
+ * and a dam's level only moves by what it takes in and lets go. On large
+ * networks without daily output each phase is split across threads by
+ * node, edge or dam, and gives the same bits as the sequential loops.
+ * Volumes are limited to about 9.2 million ML per node.
+ */
+class FixedPointSimulation {
+  static final double UNITS_PER_ML = 1e12; // Micro-litres in a megalitre
+  static final int PARALLEL_NODES = 4096; // Smaller networks are run on one thread
+  private static final int BLOCK = 1024; // Nodes, edges or dams per task
+
+  private final FlowNetwork network;
+  private final long[] volumes; // Per node
+  private final long[] pending; // Per pending slot, arriving tomorrow
+  private final long[] levels; // Per dam
+  private final long[] damInflows; // Per dam, arriving today
+  private final long[] takes; // Per edge and source position, from takeStart[edge]
+  private final int[] takeStart;
+  private final DamState[] dams;
+  private final GriddedRainfall.Cursor grid;
+  // Per node, the takes drawn from it and the pending slots arriving at it,
+  // for the parallel phases
+  private final int[] drawStart;
+  private final int[] draws;
+  private final int[] arrivalStart;
+  private final int[] arrivals;
+  private double[][] lastFractions; // The phase shares was worked out for
+  private double[][] shares;
+  boolean daily = true; // Print what happens each day
+  boolean parallel; // Split each phase across threads
+  long epsilon = 0; // Rainfall and flows at or below this are negligible
+
+  FixedPointSimulation(FlowNetwork network) {
+    this.network = network;
+    int nodes = network.nodeCount();
+    this.volumes = new long[nodes];
+    this.pending = new long[network.slotCount()];
+    this.levels = new long[network.damCount()];
+    this.damInflows = new long[network.damCount()];
+    this.dams = new DamState[network.damCount()];
+    for (int dam = 0; dam < dams.length; dam++) {
+      dams[dam] = new DamState(network.names[network.damNodes[dam]],
+          network.damCapacities[dam], network.damPolicies[dam]);
+    }
+    this.grid = network.grid == null ? null : network.grid.open();
+    this.parallel = nodes >= PARALLEL_NODES;
+
+    takeStart = new int[network.edgeCount() + 1];
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      takeStart[edge + 1] = takeStart[edge] + network.sources[edge].length;
+    }
+    takes = new long[takeStart[network.edgeCount()]];
+
+    drawStart = new int[nodes + 1];
+    arrivalStart = new int[nodes + 1];
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      for (int source : network.sources[edge]) drawStart[source + 1]++;
+      for (int dest : network.pendingDestinations[edge]) arrivalStart[dest + 1]++;
+    }
+    for (int node = 0; node < nodes; node++) {
+      drawStart[node + 1] += drawStart[node];
+      arrivalStart[node + 1] += arrivalStart[node];
+    }
+    draws = new int[drawStart[nodes]];
+    arrivals = new int[arrivalStart[nodes]];
+    int[] drawFill = Arrays.copyOf(drawStart, nodes);
+    int[] arrivalFill = Arrays.copyOf(arrivalStart, nodes);
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      int[] sources = network.sources[edge];
+      for (int i = 0; i < sources.length; i++) {
+        draws[drawFill[sources[i]]++] = takeStart[edge] + i;
+      }
+      int[] slotDestinations = network.pendingDestinations[edge];
+      for (int slot = 0; slot < slotDestinations.length; slot++) {
+        arrivals[arrivalFill[slotDestinations[slot]]++] = network.slotStart[edge] + slot;
+      }
+    }
+  }
+
+  /**
+   * ML as whole micro-litres, rounded to the nearest
+   */
+  static long units(double ml) {
+    return Math.round(ml * UNITS_PER_ML);
+  }
+
+  static double ml(long units) {
+    return units / UNITS_PER_ML;
+  }
+
+  /**
+   * Run the simulation over every day, as Simulation.run
+   */
+  void run() {
+    int maxDays = network.days();
+    Simulation.describe(network);
+    if (daily) System.out.println("\n=== Daily Simulation ===");
+    for (int day = 1; day <= maxDays; day++) {
+      if (daily) System.out.println("\nDay " + day + ":");
+      simulateDay(day);
+    }
+    double[] result = new double[volumes.length];
+    for (int node = 0; node < result.length; node++) {
+      result[node] = ml(volumes[node]);
+    }
+    Simulation.printSummary(network, DoubleBuffer.wrap(result));
+  }
+
+  /**
+   * Simulate one day, phase by phase as in Simulation.simulateDay
+   */
+  void simulateDay(int day) {
+    boolean split = parallel && !daily;
+    double[] gridded = grid == null ? null : grid.on(day);
+    forRange(network.nodeCount(), split, (from, to) -> rainfall(day, gridded, from, to));
+
+    if (day > 1) {
+      if (split) {
+        forRange(network.nodeCount(), true, this::arriveAt);
+        forRange(dams.length, true, (from, to) -> {
+          for (int dam = from; dam < to; dam++) release(dam, day);
+        });
+      } else {
+        arriveInOrder(day);
+      }
+    }
+
+    if (day <= network.routingDays()) {
+      double[][] absolute = shares(network.drawFractions(day));
+      forRange(network.edgeCount(), split, (from, to) -> {
+        for (int edge = from; edge < to; edge++) depart(edge, day, absolute[edge]);
+      });
+      forRange(network.nodeCount(), split, this::drawFrom);
+    }
+  }
+
+  /**
+   * Fixed-point volume of every node, for checking against another run
+   */
+  long[] volumes() {
+    return volumes.clone();
+  }
+
+  private interface Range {
+    void run(int from, int to);
+  }
+
+  /**
+   * Run task over [0, count), in blocks across threads if split
+   */
+  private static void forRange(int count, boolean split, Range task) {
+    if (!split) {
+      task.run(0, count);
+      return;
+    }
+    IntStream.range(0, (count + BLOCK - 1) / BLOCK).parallel().forEach(block ->
+        task.run(block * BLOCK, Math.min(count, (block + 1) * BLOCK)));
+  }
+
+  private void rainfall(int day, double[] gridded, int from, int to) {
+    for (int node = from; node < to; node++) {
+      RainfallSeries series = network.rainfall[node];
+      if (day <= series.days()) {
+        double rainfall = series.on(day);
+        long added = units(rainfall);
+        if (added > epsilon) {
+          volumes[node] = Math.addExact(volumes[node], added);
+          if (daily) System.out.println("  " + network.names[node] + ": +" + rainfall + "mm (" +
+              rainfall + "ML), total: " + String.format("%.3f", ml(volumes[node])) + "ML");
+        }
+      }
+      if (gridded != null && units(gridded[node]) > epsilon) {
+        volumes[node] = Math.addExact(volumes[node], units(gridded[node]));
+        if (daily) System.out.println("  " + network.names[node] + ": +" + gridded[node] +
+            "mm (" + gridded[node] + "ML), total: " +
+            String.format("%.3f", ml(volumes[node])) + "ML");
+      }
+      if (network.losses != null && network.losses.any[node]) {
+        lose(node, day);
+      }
+    }
+  }
+
+  private void lose(int node, int day) {
+    int dam = network.damOf[node];
+    long held = dam >= 0 ? levels[dam] : volumes[node];
+    long lost = Math.min(held, units(network.losses.loss(node, day, ml(held))));
+    if (lost <= 0) return;
+    if (dam >= 0) levels[dam] = held - lost;
+    volumes[node] -= lost;
+    if (daily) System.out.println("  " + network.names[node] + ": -" +
+        String.format("%.3f", ml(lost)) + "ML lost, total: " +
+        String.format("%.3f", ml(volumes[node])) + "ML");
+  }
+
+  /**
+   * Deliver yesterday's flows edge by edge and let the dams respond in
+   * the order flow reached them, printing as Simulation does
+   */
+  private void arriveInOrder(int day) {
+    int[] arrived = new int[dams.length];
+    int arrivedCount = 0;
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      int[] slotDestinations = network.pendingDestinations[edge];
+      int base = network.slotStart[edge];
+      for (int slot = 0; slot < slotDestinations.length; slot++) {
+        int dest = slotDestinations[slot];
+        long amount = pending[base + slot];
+        pending[base + slot] = 0;
+        if (amount <= 0) continue;
+        int dam = network.damOf[dest];
+        if (dam >= 0) {
+          if (damInflows[dam] == 0) arrived[arrivedCount++] = dam;
+          damInflows[dam] += amount;
+        } else {
+          volumes[dest] += amount;
+          if (daily) System.out.println("  Flow: +" + String.format("%.3f", ml(amount)) +
+              "ML to " + network.names[dest] + " (from yesterday)");
+        }
+      }
+    }
+    for (int i = 0; i < arrivedCount; i++) {
+      release(arrived[i], day);
+    }
+  }
+
+  /**
+   * Deliver yesterday's flows into each node of [from, to)
+   */
+  private void arriveAt(int from, int to) {
+    for (int node = from; node < to; node++) {
+      long amount = 0;
+      for (int i = arrivalStart[node]; i < arrivalStart[node + 1]; i++) {
+        amount += pending[arrivals[i]];
+        pending[arrivals[i]] = 0;
+      }
+      int dam = network.damOf[node];
+      if (dam >= 0) {
+        damInflows[dam] += amount;
+      } else {
+        volumes[node] += amount;
+      }
+    }
+  }
+
+  /**
+   * Apply a dam's control algorithm to the flow that reached it today, if
+   * any did
+   */
+  private void release(int damIndex, int day) {
+    long inflow = damInflows[damIndex];
+    if (inflow <= 0) return;
+    DamState dam = dams[damIndex];
+    int dest = network.damNodes[damIndex];
+    long rainfall = units(network.rainfall[dest].on(day));
+    long releaseAmount = dam.calculateRelease(levels[damIndex], inflow, rainfall, day);
+    levels[damIndex] = dam.updateLevel(levels[damIndex], inflow, releaseAmount, rainfall);
+    volumes[dest] = levels[damIndex];
+    damInflows[damIndex] = 0;
+    if (daily) System.out.println("  Dam " + dam.name + ": inflow +" +
+        String.format("%.3f", ml(inflow)) + "ML (from yesterday), level " +
+        String.format("%.3f", ml(levels[damIndex])) + "ML (" +
+        String.format("%.3f", ml(levels[damIndex]) / dam.capacity * 100) + "%), released " +
+        String.format("%.3f", ml(releaseAmount)) + "ML");
+  }
+
+  /**
+   * Work out what an edge takes from each of its sources today and put it
+   * in its pending slots. Sources are only read here; drawFrom takes the
+   * water once every edge has worked out its share.
+   */
+  private void depart(int edge, int day, double[] edgeShares) {
+    int first = takeStart[edge];
+    int[] sources = network.sources[edge];
+    Arrays.fill(takes, first, first + sources.length, 0);
+    if (day > network.edgeFlowOutDays[edge]) return;
+    int[] destinations = network.destinations[edge];
+
+    long flowAmount = 0;
+    for (int i = 0; i < sources.length; i++) {
+      takes[first + i] = (long) Math.floor(volumes[sources[i]] * edgeShares[i]);
+      flowAmount += takes[first + i];
+    }
+    if (flowAmount <= epsilon || destinations.length == 0) {
+      Arrays.fill(takes, first, first + sources.length, 0);
+      return;
+    }
+
+    long amountPerDestination = flowAmount / destinations.length;
+    long remainder = flowAmount % destinations.length;
+    for (int i = 0; i < destinations.length; i++) {
+      int slot = network.slotOf[edge][i];
+      long amount = amountPerDestination + (i < remainder ? 1 : 0);
+      if (slot < 0) continue; // Destination pruned from this run
+      pending[network.slotStart[edge] + slot] = amount;
+      if (daily) System.out.println("  Flow scheduled: " + String.format("%.3f", ml(amount)) +
+          "ML → " + network.names[destinations[i]] + " (will arrive tomorrow)");
+    }
+  }
+
+  /**
+   * Take today's flows out of each node of [from, to)
+   */
+  private void drawFrom(int from, int to) {
+    for (int node = from; node < to; node++) {
+      for (int i = drawStart[node]; i < drawStart[node + 1]; i++) {
+        volumes[node] -= takes[draws[i]];
+      }
+    }
+  }
+
+  /**
+   * drawFractions as fractions of what each source holds before any edge
+   * draws on it: an edge's fraction of what the edges before it left,
+   * times what they left. The shares of one source add up to at most 1.
+   */
+  private double[][] shares(double[][] fractions) {
+    if (fractions == lastFractions) return shares;
+    double[] left = new double[network.nodeCount()];
+    Arrays.fill(left, 1.0);
+    double[][] absolute = new double[fractions.length][];
+    for (int edge = 0; edge < fractions.length; edge++) {
+      int[] sources = network.sources[edge];
+      absolute[edge] = new double[sources.length];
+      for (int i = 0; i < sources.length; i++) {
+        absolute[edge][i] = fractions[edge][i] * left[sources[i]];
+        left[sources[i]] *= 1.0 - fractions[edge][i];
+      }
+    }
+    lastFractions = fractions;
+    shares = absolute;
+    return absolute;
+  }
+}
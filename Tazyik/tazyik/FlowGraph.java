@@ -0,0 +1,181 @@
+package tazyik;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * The flows of a network as a directed graph, with an arc from each source
+ * of a flow to each of its destinations, and its strongly connected
+ * components: the cycles a program can wire up with returns and diversions
+ * back upstream, and single nodes everywhere else.
+ *
+ * Components are found with Tarjan's algorithm, written with an explicit
+ * stack so long chains of rivers cannot overflow the thread's. They are
+ * numbered in a topological order of the graph they form (the
+ * condensation), with ties broken by node order, so the numbering depends
+ * on the rivers but not on the order the flows were declared in.
+ */
+class FlowGraph {
+  final int[] componentOf; // Per node, its component
+  final int[][] components; // Nodes of each component, ascending, upstream components first
+  private final boolean[] selfLoop; // Per node, whether a flow delivers back into its source
+
+  FlowGraph(int nodes, int[][] sources, int[][] destinations) {
+    // Successors of each node, in compressed rows
+    int[] start = new int[nodes + 1];
+    selfLoop = new boolean[nodes];
+    for (int edge = 0; edge < sources.length; edge++) {
+      for (int source : sources[edge]) {
+        for (int dest : destinations[edge]) if (dest >= 0) start[source + 1]++;
+      }
+    }
+    for (int node = 0; node < nodes; node++) start[node + 1] += start[node];
+    int[] successors = new int[start[nodes]];
+    int[] fill = Arrays.copyOf(start, nodes);
+    for (int edge = 0; edge < sources.length; edge++) {
+      for (int source : sources[edge]) {
+        for (int dest : destinations[edge]) {
+          if (dest < 0) continue;
+          successors[fill[source]++] = dest;
+          if (dest == source) selfLoop[source] = true;
+        }
+      }
+    }
+
+    // Tarjan: found[] holds each component's nodes in the order they are popped
+    int[] order = new int[nodes]; // Visit order of each node, -1 if unvisited
+    int[] low = new int[nodes];
+    Arrays.fill(order, -1);
+    boolean[] onStack = new boolean[nodes];
+    int[] stack = new int[nodes];
+    int stackSize = 0;
+    int[] calls = new int[nodes]; // Nodes being explored, innermost last
+    int[] next = new int[nodes]; // Per node, its next successor to explore
+    int[] found = new int[nodes];
+    int[] foundStart = new int[nodes + 1];
+    int[] rawOf = new int[nodes];
+    int visited = 0;
+    int count = 0;
+    int filled = 0;
+    for (int root = 0; root < nodes; root++) {
+      if (order[root] >= 0) continue;
+      int depth = 0;
+      calls[depth++] = root;
+      order[root] = low[root] = visited++;
+      next[root] = start[root];
+      stack[stackSize++] = root;
+      onStack[root] = true;
+      while (depth > 0) {
+        int node = calls[depth - 1];
+        if (next[node] < start[node + 1]) {
+          int successor = successors[next[node]++];
+          if (order[successor] < 0) {
+            order[successor] = low[successor] = visited++;
+            next[successor] = start[successor];
+            stack[stackSize++] = successor;
+            onStack[successor] = true;
+            calls[depth++] = successor;
+          } else if (onStack[successor]) {
+            low[node] = Math.min(low[node], order[successor]);
+          }
+          continue;
+        }
+        depth--;
+        if (depth > 0) {
+          int caller = calls[depth - 1];
+          low[caller] = Math.min(low[caller], low[node]);
+        }
+        if (low[node] == order[node]) {
+          int member;
+          do {
+            member = stack[--stackSize];
+            onStack[member] = false;
+            rawOf[member] = count;
+            found[filled++] = member;
+          } while (member != node);
+          foundStart[++count] = filled;
+        }
+      }
+    }
+
+    // Order the components topologically, taking the one with the lowest
+    // node first whenever several are ready
+    int[] lowest = new int[count];
+    int[] incoming = new int[count];
+    for (int raw = 0; raw < count; raw++) {
+      lowest[raw] = nodes;
+      for (int i = foundStart[raw]; i < foundStart[raw + 1]; i++) {
+        lowest[raw] = Math.min(lowest[raw], found[i]);
+      }
+    }
+    for (int node = 0; node < nodes; node++) {
+      for (int i = start[node]; i < start[node + 1]; i++) {
+        if (rawOf[successors[i]] != rawOf[node]) incoming[rawOf[successors[i]]]++;
+      }
+    }
+    PriorityQueue<Integer> ready =
+        new PriorityQueue<>(Comparator.comparingInt(raw -> lowest[raw]));
+    for (int raw = 0; raw < count; raw++) {
+      if (incoming[raw] == 0) ready.add(raw);
+    }
+    componentOf = new int[nodes];
+    components = new int[count][];
+    int numbered = 0;
+    while (!ready.isEmpty()) {
+      int raw = ready.poll();
+      int[] members = Arrays.copyOfRange(found, foundStart[raw], foundStart[raw + 1]);
+      Arrays.sort(members);
+      for (int member : members) componentOf[member] = numbered;
+      components[numbered++] = members;
+      for (int member : members) {
+        for (int i = start[member]; i < start[member + 1]; i++) {
+          int target = rawOf[successors[i]];
+          if (target != raw && --incoming[target] == 0) ready.add(target);
+        }
+      }
+    }
+  }
+
+  FlowGraph(FlowNetwork network) {
+    this(network.nodeCount(), network.sources, network.destinations);
+  }
+
+  /**
+   * Whether component is a cycle: more than one node, or a node that
+   * delivers into itself
+   */
+  boolean cyclic(int component) {
+    int[] members = components[component];
+    return members.length > 1 || selfLoop[members[0]];
+  }
+
+  /**
+   * The order to run the given flows in: by the furthest downstream
+   * component any of their sources is in, then by their sources and
+   * destinations. It depends only on what each flow connects, not on where
+   * it was declared.
+   */
+  int[] schedule(int[][] sources, int[][] destinations) {
+    int edges = sources.length;
+    int[] rank = new int[edges];
+    int[][] sortedSources = new int[edges][];
+    int[][] sortedDestinations = new int[edges][];
+    for (int edge = 0; edge < edges; edge++) {
+      rank[edge] = -1;
+      for (int source : sources[edge]) rank[edge] = Math.max(rank[edge], componentOf[source]);
+      sortedSources[edge] = sources[edge].clone();
+      Arrays.sort(sortedSources[edge]);
+      sortedDestinations[edge] = destinations[edge].clone();
+      Arrays.sort(sortedDestinations[edge]);
+    }
+    Integer[] order = new Integer[edges];
+    for (int edge = 0; edge < edges; edge++) order[edge] = edge;
+    Arrays.sort(order, Comparator.<Integer>comparingInt(edge -> rank[edge])
+        .thenComparing(edge -> sortedSources[edge], Arrays::compare)
+        .thenComparing(edge -> sortedDestinations[edge], Arrays::compare));
+    int[] schedule = new int[edges];
+    for (int i = 0; i < edges; i++) schedule[i] = order[i];
+    return schedule;
+  }
+}
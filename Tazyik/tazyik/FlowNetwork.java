@@ -0,0 +1,507 @@
+package tazyik;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.TreeSet;
+
+/**
+ * Compiled form of a Tazyik program. Rivers and dams become dense node
+ * indices in declaration order and flows become edges between them, so the
+ * day loop works on arrays instead of looking names up. The day loop takes
+ * edges in index order, which the compiler makes upstream first
+ * (FlowGraph.schedule).
+ * The network itself is immutable; a Simulation holds the state of one run.
+ */
+class FlowNetwork {
+  static final double RESIDUAL = 0.001; // Fraction of a source left after its flow period
+
+  final int flowOutDays;
+  final String[] names; // Name of each node
+  final double[] capacities; // Declared capacity of each node, NaN if none
+  final RainfallSeries[] rainfall; // Daily rainfall of each node
+  final int[] damOf; // Dam index of each node, -1 for plain rivers
+  final int[] damNodes; // Node of each dam
+  final double[] damCapacities;
+  final ReleasePolicy[] damPolicies;
+  final int[][] sources; // Source nodes of each edge
+  final int[][] destinations; // Destination nodes of each edge, -1 if pruned
+  final int[][] slotOf; // Pending slot of each destination, -1 if pruned
+  final int[][] pendingDestinations; // Destination node of each pending slot
+  final int[] slotStart; // Index of each edge's first pending slot, all edges laid end to end
+  final int[] edgeFlowOutDays; // Flow period of each edge
+  final double[] edgeResiduals; // Fraction each edge leaves behind after its flow period
+  final GriddedRainfall grid; // Rainfall streamed from a weather grid, or null
+  final Losses losses; // Evaporation, infiltration and seepage, or null if nothing loses water
+  private final int minDays; // Days of the network this was pruned from, 0 if not pruned
+  private final int[][] drains; // Per node, the edges drawing on it
+  private final int[] phaseStarts; // First day of each set of draw fractions, ascending
+  private final double[][][] phaseFractions; // Per set, edge and source, as drawFractions
+
+  FlowNetwork(int flowOutDays, String[] names, double[] capacities,
+              RainfallSeries[] rainfall, int[] damNodes, double[] damCapacities,
+              ReleasePolicy[] damPolicies, int[][] sources, int[][] destinations) {
+    this(flowOutDays, names, capacities, rainfall, damNodes, damCapacities, damPolicies,
+        sources, destinations, filled(sources.length, flowOutDays),
+        filled(sources.length, RESIDUAL));
+  }
+
+  FlowNetwork(int flowOutDays, String[] names, double[] capacities,
+              RainfallSeries[] rainfall, int[] damNodes, double[] damCapacities,
+              ReleasePolicy[] damPolicies, int[][] sources, int[][] destinations,
+              int[] edgeFlowOutDays, double[] edgeResiduals) {
+    this(flowOutDays, names, capacities, rainfall, damNodes, damCapacities, damPolicies,
+        sources, destinations, edgeFlowOutDays, edgeResiduals, null, null);
+  }
+
+  FlowNetwork(int flowOutDays, String[] names, double[] capacities,
+              RainfallSeries[] rainfall, int[] damNodes, double[] damCapacities,
+              ReleasePolicy[] damPolicies, int[][] sources, int[][] destinations,
+              int[] edgeFlowOutDays, double[] edgeResiduals, GriddedRainfall grid,
+              Losses losses) {
+    this(flowOutDays, names, capacities, rainfall, damNodes, damCapacities, damPolicies,
+        sources, destinations, edgeFlowOutDays, edgeResiduals, grid, losses, 0);
+  }
+
+  private FlowNetwork(int flowOutDays, String[] names, double[] capacities,
+                      RainfallSeries[] rainfall, int[] damNodes, double[] damCapacities,
+                      ReleasePolicy[] damPolicies, int[][] sources, int[][] destinations,
+                      int[] edgeFlowOutDays, double[] edgeResiduals, GriddedRainfall grid,
+                      Losses losses, int minDays) {
+    this.flowOutDays = flowOutDays;
+    this.minDays = minDays;
+    this.grid = grid;
+    this.losses = losses;
+    this.edgeFlowOutDays = edgeFlowOutDays;
+    this.edgeResiduals = edgeResiduals;
+    this.names = names;
+    this.capacities = capacities;
+    this.rainfall = rainfall;
+    this.damNodes = damNodes;
+    this.damCapacities = damCapacities;
+    this.damPolicies = damPolicies;
+    this.sources = sources;
+    this.destinations = destinations;
+
+    damOf = new int[names.length];
+    Arrays.fill(damOf, -1);
+    for (int dam = 0; dam < damNodes.length; dam++) {
+      damOf[damNodes[dam]] = dam;
+    }
+
+    // A destination named twice in one flow still only has one pending slot
+    slotOf = new int[destinations.length][];
+    pendingDestinations = new int[destinations.length][];
+    for (int edge = 0; edge < destinations.length; edge++) {
+      int[] dests = destinations[edge];
+      int[] unique = new int[dests.length];
+      int slots = 0;
+      slotOf[edge] = new int[dests.length];
+      for (int i = 0; i < dests.length; i++) {
+        if (dests[i] < 0) {
+          slotOf[edge][i] = -1;
+          continue;
+        }
+        int slot = 0;
+        while (slot < slots && unique[slot] != dests[i]) slot++;
+        if (slot == slots) unique[slots++] = dests[i];
+        slotOf[edge][i] = slot;
+      }
+      pendingDestinations[edge] = Arrays.copyOf(unique, slots);
+    }
+
+    slotStart = new int[destinations.length + 1];
+    for (int edge = 0; edge < destinations.length; edge++) {
+      slotStart[edge + 1] = slotStart[edge] + pendingDestinations[edge].length;
+    }
+
+    drains = drains();
+    phaseStarts = phaseStarts();
+    phaseFractions = phaseFractions(phaseStarts);
+  }
+
+  /**
+   * A network with the nodes and flows of base and other rainfall,
+   * policies, routing or grid. Its pending slots and what drains each node
+   * depend only on the nodes and flows, so they are base's, and so are its
+   * draw fractions unless the routing is different. An optimisation or
+   * calibration makes one of these per candidate.
+   */
+  private FlowNetwork(FlowNetwork base, RainfallSeries[] rainfall, ReleasePolicy[] damPolicies,
+                      int[] edgeFlowOutDays, double[] edgeResiduals, GriddedRainfall grid) {
+    this.flowOutDays = base.flowOutDays;
+    this.grid = grid;
+    this.losses = base.losses;
+    this.minDays = base.minDays;
+    this.edgeFlowOutDays = edgeFlowOutDays;
+    this.edgeResiduals = edgeResiduals;
+    this.names = base.names;
+    this.capacities = base.capacities;
+    this.rainfall = rainfall;
+    this.damNodes = base.damNodes;
+    this.damCapacities = base.damCapacities;
+    this.damPolicies = damPolicies;
+    this.sources = base.sources;
+    this.destinations = base.destinations;
+    this.damOf = base.damOf;
+    this.slotOf = base.slotOf;
+    this.pendingDestinations = base.pendingDestinations;
+    this.slotStart = base.slotStart;
+    this.drains = base.drains;
+    if (edgeFlowOutDays == base.edgeFlowOutDays && edgeResiduals == base.edgeResiduals) {
+      phaseStarts = base.phaseStarts;
+      phaseFractions = base.phaseFractions;
+    } else {
+      phaseStarts = phaseStarts();
+      phaseFractions = phaseFractions(phaseStarts);
+    }
+  }
+
+  /**
+   * The days the draw fractions change on. They only change when an edge
+   * sharing a source stops flowing.
+   */
+  private int[] phaseStarts() {
+    int lastDay = routingDays();
+    TreeSet<Integer> changes = new TreeSet<>();
+    changes.add(1);
+    for (int[] edges : drains) {
+      if (edges.length < 2) continue;
+      for (int edge : edges) {
+        if (edgeFlowOutDays[edge] < lastDay) changes.add(edgeFlowOutDays[edge] + 1);
+      }
+    }
+    return changes.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private double[][][] phaseFractions(int[] phaseStarts) {
+    double[] rates = new double[edgeCount()];
+    for (int edge = 0; edge < rates.length; edge++) rates[edge] = decayRate(edge);
+    double[][][] fractions = new double[phaseStarts.length][][];
+    for (int phase = 0; phase < phaseStarts.length; phase++) {
+      fractions[phase] = fractionsOn(phaseStarts[phase], drains, rates);
+    }
+    return fractions;
+  }
+
+  int nodeCount() {
+    return names.length;
+  }
+
+  int damCount() {
+    return damNodes.length;
+  }
+
+  int edgeCount() {
+    return sources.length;
+  }
+
+  int slotCount() {
+    return slotStart[edgeCount()];
+  }
+
+  /**
+   * Node with the given name, or -1
+   */
+  int nodeNamed(String name) {
+    for (int node = 0; node < names.length; node++) {
+      if (names[node].equals(name)) return node;
+    }
+    return -1;
+  }
+
+  boolean hasCapacity(int node) {
+    return !Double.isNaN(capacities[node]);
+  }
+
+  /**
+   * Fraction of its sources an edge moves each day of its flow period, so
+   * that its residual is left at the end of it
+   */
+  double decayRate(int edge) {
+    return 1.0 - Math.pow(edgeResiduals[edge], 1.0 / edgeFlowOutDays[edge]);
+  }
+
+  /**
+   * Fraction of each of its sources (by position) that each edge draws on
+   * day, out of what the source holds once the edges before it have drawn.
+   * Taking each edge in turn with these fractions, every edge gets the same
+   * water whatever order the edges are in.
+   *
+   * A source drained by one edge gives it the edge's decay rate. A source
+   * drained by several loses what they would take between them one after
+   * another, 1 - (1 - r1)(1 - r2)..., which is split between them in
+   * proportion to their rates, instead of the first edge taking the most.
+   * An edge that names a source twice draws on it once. The arrays are
+   * shared, and must not be changed.
+   */
+  double[][] drawFractions(int day) {
+    int phase = Arrays.binarySearch(phaseStarts, day);
+    if (phase < 0) phase = Math.max(0, -phase - 2);
+    return phaseFractions[phase];
+  }
+
+  /**
+   * Last day on which any edge still moves water
+   */
+  int routingDays() {
+    int days = flowOutDays;
+    for (int flowOut : edgeFlowOutDays) {
+      days = Math.max(days, flowOut);
+    }
+    return days;
+  }
+
+  /**
+   * Whether every edge has the program's flow period and the default residual
+   */
+  boolean uniformRouting() {
+    for (int edge = 0; edge < edgeCount(); edge++) {
+      if (edgeFlowOutDays[edge] != flowOutDays || edgeResiduals[edge] != RESIDUAL) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Number of days to simulate: the flow period, or longer if some node has
+   * rainfall declared past it or the rainfall grid goes on past it. A pruned
+   * network runs as long as the whole one, since losses go on every day.
+   */
+  int days() {
+    int days = Math.max(minDays, routingDays());
+    for (RainfallSeries series : rainfall) {
+      days = Math.max(days, series.days());
+    }
+    if (grid != null) days = Math.max(days, grid.days);
+    return days;
+  }
+
+  /**
+   * The same network with other release policies for its dams
+   */
+  FlowNetwork withPolicies(ReleasePolicy[] policies) {
+    return new FlowNetwork(this, rainfall, policies, edgeFlowOutDays, edgeResiduals, grid);
+  }
+
+  /**
+   * The same network with another flow period and residual for each edge
+   */
+  FlowNetwork withRouting(int[] flowOutDays, double[] residuals) {
+    return new FlowNetwork(this, rainfall, damPolicies, flowOutDays, residuals, grid);
+  }
+
+  /**
+   * The same network with other rainfall, and another rainfall grid or null
+   */
+  FlowNetwork withRainfall(RainfallSeries[] rainfall, GriddedRainfall grid) {
+    return new FlowNetwork(this, rainfall, damPolicies, edgeFlowOutDays, edgeResiduals, grid);
+  }
+
+  /**
+   * The part of the network that the given output nodes depend on. A node is
+   * kept if water can reach an output from it, and every edge draining a kept
+   * node is kept along with all of that edge's sources, because the amount
+   * an edge draws depends on the combined volume of its sources. Deliveries
+   * to nodes outside that closure are dropped. It is simulated for as many
+   * days as the whole network.
+   */
+  FlowNetwork upstreamOf(int[] outputs) {
+    int nodes = nodeCount();
+    int edges = edgeCount();
+    int[][] touching = edgesTouching();
+
+    boolean[] keepNode = new boolean[nodes];
+    boolean[] keepEdge = new boolean[edges];
+    Deque<Integer> work = new ArrayDeque<>();
+    for (int output : outputs) {
+      if (!keepNode[output]) {
+        keepNode[output] = true;
+        work.push(output);
+      }
+    }
+    while (!work.isEmpty()) {
+      int node = work.pop();
+      for (int edge : touching[node]) {
+        if (keepEdge[edge]) continue;
+        keepEdge[edge] = true;
+        for (int source : sources[edge]) {
+          if (!keepNode[source]) {
+            keepNode[source] = true;
+            work.push(source);
+          }
+        }
+      }
+    }
+
+    int[] newIndex = new int[nodes];
+    int kept = 0;
+    for (int node = 0; node < nodes; node++) {
+      newIndex[node] = keepNode[node] ? kept++ : -1;
+    }
+
+    String[] keptNames = new String[kept];
+    double[] keptCapacities = new double[kept];
+    RainfallSeries[] keptRainfall = new RainfallSeries[kept];
+    int[] keptNodes = new int[kept];
+    for (int node = 0; node < nodes; node++) {
+      if (!keepNode[node]) continue;
+      keptNodes[newIndex[node]] = node;
+      keptNames[newIndex[node]] = names[node];
+      keptCapacities[newIndex[node]] = capacities[node];
+      keptRainfall[newIndex[node]] = rainfall[node];
+    }
+
+    int keptDams = 0;
+    for (int damNode : damNodes) {
+      if (keepNode[damNode]) keptDams++;
+    }
+    int[] keptDamNodes = new int[keptDams];
+    double[] keptDamCapacities = new double[keptDams];
+    ReleasePolicy[] keptPolicies = new ReleasePolicy[keptDams];
+    keptDams = 0;
+    for (int dam = 0; dam < damNodes.length; dam++) {
+      if (!keepNode[damNodes[dam]]) continue;
+      keptDamNodes[keptDams] = newIndex[damNodes[dam]];
+      keptDamCapacities[keptDams] = damCapacities[dam];
+      keptPolicies[keptDams] = damPolicies[dam];
+      keptDams++;
+    }
+
+    int keptEdges = 0;
+    for (boolean keep : keepEdge) {
+      if (keep) keptEdges++;
+    }
+    int[][] keptSources = new int[keptEdges][];
+    int[][] keptDestinations = new int[keptEdges][];
+    int[] keptFlowOutDays = new int[keptEdges];
+    double[] keptResiduals = new double[keptEdges];
+    keptEdges = 0;
+    for (int edge = 0; edge < edges; edge++) {
+      if (!keepEdge[edge]) continue;
+      keptSources[keptEdges] = remap(sources[edge], newIndex);
+      keptDestinations[keptEdges] = remap(destinations[edge], newIndex);
+      keptFlowOutDays[keptEdges] = edgeFlowOutDays[edge];
+      keptResiduals[keptEdges] = edgeResiduals[edge];
+      keptEdges++;
+    }
+
+    return new FlowNetwork(flowOutDays, keptNames, keptCapacities, keptRainfall,
+        keptDamNodes, keptDamCapacities, keptPolicies,
+        keptSources, keptDestinations, keptFlowOutDays, keptResiduals,
+        grid == null ? null : grid.forNodes(keptNodes),
+        losses == null ? null : losses.forNodes(keptNodes), days());
+  }
+
+  /**
+   * For each node, the edges it is a source or destination of.
+   */
+  int[][] edgesTouching() {
+    int nodes = nodeCount();
+    int[] counts = new int[nodes];
+    for (int edge = 0; edge < edgeCount(); edge++) {
+      for (int node : sources[edge]) counts[node]++;
+      for (int node : destinations[edge]) if (node >= 0) counts[node]++;
+    }
+    int[][] touching = new int[nodes][];
+    for (int node = 0; node < nodes; node++) {
+      touching[node] = new int[counts[node]];
+      counts[node] = 0;
+    }
+    for (int edge = 0; edge < edgeCount(); edge++) {
+      for (int node : sources[edge]) touching[node][counts[node]++] = edge;
+      for (int node : destinations[edge]) {
+        if (node >= 0) touching[node][counts[node]++] = edge;
+      }
+    }
+    return touching;
+  }
+
+  /**
+   * For each node, the edges that draw on it: each once, in edge order,
+   * leaving out edges with no destinations, which never move water
+   */
+  private int[][] drains() {
+    int nodes = nodeCount();
+    int[] counts = new int[nodes];
+    int[] lastEdge = new int[nodes];
+    Arrays.fill(lastEdge, -1);
+    for (int edge = 0; edge < edgeCount(); edge++) {
+      if (destinations[edge].length == 0) continue;
+      for (int node : sources[edge]) {
+        if (lastEdge[node] == edge) continue;
+        lastEdge[node] = edge;
+        counts[node]++;
+      }
+    }
+    int[][] drains = new int[nodes][];
+    for (int node = 0; node < nodes; node++) {
+      drains[node] = new int[counts[node]];
+      counts[node] = 0;
+    }
+    Arrays.fill(lastEdge, -1);
+    for (int edge = 0; edge < edgeCount(); edge++) {
+      if (destinations[edge].length == 0) continue;
+      for (int node : sources[edge]) {
+        if (lastEdge[node] == edge) continue;
+        lastEdge[node] = edge;
+        drains[node][counts[node]++] = edge;
+      }
+    }
+    return drains;
+  }
+
+  /**
+   * The draw fractions of the edges still flowing on day
+   */
+  private double[][] fractionsOn(int day, int[][] drains, double[] rates) {
+    double[][] fractions = new double[edgeCount()][];
+    for (int edge = 0; edge < fractions.length; edge++) {
+      fractions[edge] = new double[sources[edge].length];
+    }
+    for (int node = 0; node < drains.length; node++) {
+      double kept = 1.0; // Of the node, once every edge has drawn
+      double claimed = 0.0;
+      int flowing = 0;
+      for (int edge : drains[node]) {
+        if (day > edgeFlowOutDays[edge]) continue;
+        kept *= 1.0 - rates[edge];
+        claimed += rates[edge];
+        flowing++;
+      }
+      double remaining = 1.0; // Of the node, before the next edge draws
+      for (int edge : drains[node]) {
+        if (day > edgeFlowOutDays[edge]) continue;
+        double fraction = rates[edge];
+        if (flowing > 1) {
+          double share = claimed > 0 ? (1.0 - kept) * rates[edge] / claimed : 0.0;
+          fraction = remaining > 0 ? Math.min(1.0, share / remaining) : 0.0;
+          remaining -= share;
+        }
+        int position = 0;
+        while (sources[edge][position] != node) position++;
+        fractions[edge][position] = fraction;
+      }
+    }
+    return fractions;
+  }
+
+  private static int[] remap(int[] nodes, int[] newIndex) {
+    int[] mapped = new int[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      mapped[i] = nodes[i] < 0 ? -1 : newIndex[nodes[i]];
+    }
+    return mapped;
+  }
+
+  private static int[] filled(int length, int value) {
+    int[] values = new int[length];
+    Arrays.fill(values, value);
+    return values;
+  }
+
+  private static double[] filled(int length, double value) {
+    double[] values = new double[length];
+    Arrays.fill(values, value);
+    return values;
+  }
+}
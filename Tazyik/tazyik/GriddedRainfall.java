@@ -0,0 +1,264 @@
+package tazyik;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Rainfall from a gridded weather product ("Rainfall grid ... weights
+ * ...;"): a file with one line per day of comma-separated cell values in
+ * mm, and a sparse matrix of weights from rivers to cells. A river's
+ * rainfall each day is the weighted sum of the cells over its catchment,
+ * added to any rainfall the program declares for it.
+ *
+ * The grid is never loaded whole and no per-river series is built from
+ * it. Each simulation streams it a day at a time through its own Cursor,
+ * which parses the day's line and multiplies it by the weights, both split
+ * across threads when the grid is large.
+ */
+class GriddedRainfall {
+  static final int PARALLEL_CELLS = 8192; // Smaller grids are done on one thread
+  private static final int CELL_BLOCK = 2048; // Cells parsed per task
+  private static final int ROW_BLOCK = 64; // Rivers multiplied per task
+
+  final Token declaration; // Where errors found while streaming are reported
+  final Path file;
+  final String fileName; // As written in the program
+  final int cells; // Values on each day's line
+  final int days; // Number of days in the grid
+  final SparseMatrix weights; // A row per node, a column per cell
+  private final boolean header; // Whether the first line is a header
+
+  private GriddedRainfall(Token declaration, Path file, String fileName, int cells, int days,
+                          SparseMatrix weights, boolean header) {
+    this.declaration = declaration;
+    this.file = file;
+    this.fileName = fileName;
+    this.cells = cells;
+    this.days = days;
+    this.weights = weights;
+    this.header = header;
+  }
+
+  /**
+   * Scan the grid for its size and read the weights, a file of
+   * "river,cell,weight" lines with cells numbered from 0 along a day's
+   * line. In both files blank lines and lines starting with '#' are
+   * skipped, as is a first line that is not numeric (a header). Throws
+   * IllegalArgumentException if either file is malformed.
+   */
+  static GriddedRainfall read(Token declaration, Path grid, String gridName, Path weightsFile,
+                              String[] names) throws IOException {
+    int cells = -1;
+    int days = 0;
+    boolean header = false;
+    try (BufferedReader in = Files.newBufferedReader(grid)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (skipped(line)) continue;
+        if (cells < 0) {
+          cells = line.split(",", -1).length;
+          if (days == 0 && !header && !numeric(line.split(",", 2)[0].trim())) {
+            header = true;
+            cells = -1;
+            continue;
+          }
+        }
+        days++;
+      }
+    }
+    if (days == 0) throw new IllegalArgumentException("The grid has no days.");
+
+    Map<String, Integer> nodes = new HashMap<>();
+    for (int node = 0; node < names.length; node++) nodes.put(names[node], node);
+    List<String> lines = Files.readAllLines(weightsFile);
+    int[] rows = new int[lines.size()];
+    int[] columns = new int[lines.size()];
+    double[] values = new double[lines.size()];
+    int count = 0;
+    boolean first = true;
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] fields = line.split(",");
+      int cell;
+      double weight;
+      try {
+        if (fields.length != 3) throw new NumberFormatException();
+        cell = Integer.parseInt(fields[1].trim());
+        weight = Double.parseDouble(fields[2].trim());
+      } catch (NumberFormatException e) {
+        if (!first) {
+          throw new IllegalArgumentException("Weights line " + (i + 1) +
+              " is not a 'river,cell,weight' triple.");
+        }
+        first = false; // Header
+        continue;
+      }
+      first = false;
+      String river = fields[0].trim();
+      Integer node = nodes.get(river);
+      if (node == null) {
+        throw new IllegalArgumentException("Weights line " + (i + 1) +
+            " names undefined river '" + river + "'.");
+      }
+      if (cell < 0 || cell >= cells) {
+        throw new IllegalArgumentException("Weights line " + (i + 1) + " names cell " + cell +
+            " but the grid has " + cells + " cells.");
+      }
+      if (!(weight >= 0)) {
+        throw new IllegalArgumentException("Weights line " + (i + 1) + " has a negative weight.");
+      }
+      rows[count] = node;
+      columns[count] = cell;
+      values[count++] = weight;
+    }
+    SparseMatrix weights = SparseMatrix.fromEntries(names.length, rows, columns, values, count);
+    return new GriddedRainfall(declaration, grid, gridName, cells, days, weights, header);
+  }
+
+  /**
+   * Whether the grid adds rainfall to node
+   */
+  boolean feeds(int node) {
+    return weights.rowLength(node) > 0;
+  }
+
+  /**
+   * The same grid for a network made of the given nodes of this one's
+   */
+  GriddedRainfall forNodes(int[] nodes) {
+    return new GriddedRainfall(declaration, file, fileName, cells, days, weights.rows(nodes),
+        header);
+  }
+
+  Cursor open() {
+    return new Cursor();
+  }
+
+  private static boolean skipped(String line) {
+    String trimmed = line.trim();
+    return trimmed.isEmpty() || trimmed.startsWith("#");
+  }
+
+  private static boolean numeric(String field) {
+    try {
+      Double.parseDouble(field);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * One simulation's position in the grid. Days are normally asked for in
+   * order; going back to an earlier day reopens the file.
+   */
+  class Cursor {
+    private BufferedReader reader;
+    private int day = 0; // Day of the line last read
+    private int lineNumber = 0;
+    private boolean headerPending;
+    private final int[] starts = new int[cells + 1]; // Where each cell's text starts, then the end
+    private final double[] values = new double[cells];
+    private final double[] rainfall = new double[weights.size];
+    private final double[] dry = new double[weights.size];
+
+    /**
+     * Gridded rainfall of every node on day (1-based). The array is reused
+     * for the next day.
+     */
+    double[] on(int wanted) {
+      if (wanted < 1 || wanted > days) return dry;
+      if (wanted == day) return rainfall;
+      try {
+        if (wanted < day || reader == null) {
+          if (reader != null) reader.close();
+          reader = Files.newBufferedReader(file);
+          day = 0;
+          lineNumber = 0;
+          headerPending = header;
+        }
+        String line = null;
+        while (day < wanted) {
+          line = reader.readLine();
+          lineNumber++;
+          if (line == null) throw error("The grid ended early."); // Changed while streaming
+          if (skipped(line)) continue;
+          if (headerPending) {
+            headerPending = false;
+            continue;
+          }
+          day++;
+        }
+        parse(line);
+        if (day == days) {
+          reader.close();
+          reader = null;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      multiply();
+      return rainfall;
+    }
+
+    private void parse(String line) {
+      int count = 0;
+      starts[count++] = 0;
+      for (int i = 0; i < line.length(); i++) {
+        if (line.charAt(i) != ',') continue;
+        if (count == cells) throw error("Line " + lineNumber + " has more than " + cells + " cells.");
+        starts[count++] = i + 1;
+      }
+      if (count != cells) {
+        throw error("Line " + lineNumber + " has " + count + " cells, expected " + cells + ".");
+      }
+      starts[cells] = line.length() + 1;
+
+      if (cells < PARALLEL_CELLS) {
+        parseCells(line, 0, cells);
+      } else {
+        IntStream.range(0, (cells + CELL_BLOCK - 1) / CELL_BLOCK).parallel().forEach(block ->
+            parseCells(line, block * CELL_BLOCK, Math.min(cells, (block + 1) * CELL_BLOCK)));
+      }
+    }
+
+    private void parseCells(String line, int from, int to) {
+      for (int cell = from; cell < to; cell++) {
+        String text = line.substring(starts[cell], starts[cell + 1] - 1).trim();
+        double value;
+        try {
+          value = Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+          throw error("Line " + lineNumber + " cell " + cell + " is not a number: '" + text + "'.");
+        }
+        if (!(value >= 0)) {
+          throw error("Line " + lineNumber + " cell " + cell + " has negative rainfall.");
+        }
+        values[cell] = value;
+      }
+    }
+
+    private void multiply() {
+      int rows = weights.size;
+      if (cells < PARALLEL_CELLS) {
+        weights.multiply(values, rainfall, 0, rows);
+      } else {
+        IntStream.range(0, (rows + ROW_BLOCK - 1) / ROW_BLOCK).parallel().forEach(block ->
+            weights.multiply(values, rainfall, block * ROW_BLOCK,
+                Math.min(rows, (block + 1) * ROW_BLOCK)));
+      }
+    }
+
+    private RuntimeError error(String message) {
+      return new RuntimeError(declaration, "Bad rainfall grid '" + fileName + "': " + message);
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package tazyik;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -10,119 +13,43 @@ import java.util.*;
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   final Environment globals = new Environment();
   private Environment environment = globals;
+  private final SymbolTable symbols;
+  private final Options options;
+  private final Modules modules; // Shared with the interpreters of imported modules
   
-  // Domain-specific state for water flow simulation
-  private Map<String, RiverState> rivers = new HashMap<>();
-  private Map<String, Double> capacities = new HashMap<>();
-  private Map<String, DamState> dams = new HashMap<>();
+  // Domain-specific state for water flow simulation, indexed by symbol id
+  private RiverState[] rivers = new RiverState[16];
+  private double[] capacities = new double[16]; // NaN where no capacity declared
+  private DamState[] dams = new DamState[16];
+  private List<RiverState> riverOrder = new ArrayList<>(); // Declaration order
+  private List<Integer> damOrder = new ArrayList<>(); // Dam symbol ids in declaration order
   private List<FlowConnection> flowConnections = new ArrayList<>();
+  private List<Token> reports = new ArrayList<>(); // Outputs of interest, empty = all
   private int flowOutDays = 3; // Default: water takes 3 days to flow through system
+  private Stmt.GridDecl gridDecl; // The rainfall grid declaration, if any
   private boolean flowOutWasSet = false;
+  private Map<String, Modules.Module> imports = new LinkedHashMap<>(); // By module name
+  private List<Token> exports = new ArrayList<>(); // Rivers a module offers its importers
+  private Set<Path> inputs = new LinkedHashSet<>(); // Files the program reads
   
   /**
-   * Inner class to represent dam state with control algorithm
-   */
-  private static class DamState {
-    String name;
-    double capacity; // Maximum capacity in ML
-    double currentLevel; // Current water level in ML
-    double releasePercent; // Base release percentage
-    
-    DamState(String name, double capacity, double releasePercent) {
-      this.name = name;
-      this.capacity = capacity;
-      this.releasePercent = releasePercent;
-      this.currentLevel = 0.0;
-    }
-    
-    /**
-     * Calculate release amount based on dam level, inflow, and rainfall
-     * This implements the dam control algorithm (worth 2 marks)
-     * 
-     * Strategy: releasePercent defines target dam level (e.g., 50% = keep dam at 50% of capacity)
-     * Release only the excess above target level to maintain stable storage
-     */
-    double calculateRelease(double inflow, double rainfall) {
-      // Factor 1: Dam level percentage (BEFORE adding today's inflow/rain)
-      double levelPercent = currentLevel / capacity * 100.0;
-      
-      // Determine target level: releasePercent represents "keep dam at this % level"
-      // e.g., release 50% means "maintain dam at 50% capacity (75ML for 150ML dam)"
-      double targetPercent = releasePercent;  
-      double targetLevel = capacity * (targetPercent / 100.0);
-      
-      // Calculate what level would be AFTER adding inflow and rainfall
-      double projectedLevel = currentLevel + inflow + rainfall;
-      
-      // Factor 2: Maintain dam at target level - release only excess
-      double releaseAmount = 0.0;
-      
-      if (projectedLevel <= targetLevel) {
-        // Dam below target - NO RELEASE, store water to reach target
-        releaseAmount = 0.0;
-        
-      } else {
-        // Dam above target - release excess to maintain at target level
-        // This works for all cases: normal, overflow, etc.
-        releaseAmount = projectedLevel - targetLevel;
-      }
-      
-      // Factor 3: Adjust for heavy rainfall (predictive control)
-      if (rainfall > 10.0) {
-        // Heavy rain detected - pre-release additional water to prevent overflow
-        if (levelPercent > (targetPercent - 20)) {
-          // Pre-release if dam is within 20% of target
-          releaseAmount += (capacity * 0.05);  // Release extra 5% of capacity
-        }
-      }
-      
-      // Ensure release doesn't exceed what we have available
-      double totalAvailable = currentLevel + inflow + rainfall;
-      releaseAmount = Math.max(0, Math.min(releaseAmount, totalAvailable));
-      
-      // Ensure we don't exceed capacity after retention
-      double retained = totalAvailable - releaseAmount;
-      if (retained > capacity) {
-        // Force spillage if over capacity (emergency overflow)
-        releaseAmount = totalAvailable - capacity;
-      }
-      
-      return releaseAmount;
-    }
-    
-    void updateLevel(double inflow, double outflow, double rainfall) {
-      currentLevel = currentLevel + inflow + rainfall - outflow;
-      currentLevel = Math.max(0, Math.min(capacity, currentLevel));
-    }
-  }
-  
-  /**
-   * Inner class to represent the state of a river over multiple days
+   * Inner class to represent a declared river and its rainfall over multiple days
    */
   private static class RiverState {
     String name;
-    List<Double> dailyRainfall; // Rainfall for each day in mm
-    double currentVolume; // Current water volume in ML
+    int id;
+    RainfallSeries rainfall; // Rainfall for each day in mm
+    RainfallSeries evaporation; // Pan evaporation for each day in mm, or null
+    double infiltration = 0.0; // ML lost each day
+    LookupTable seepage; // ML lost each day by volume held, or null
+    String seepageFile;
+    String module; // Name of the module it was imported from, or null
+    boolean exported; // For a module's river, whether the importer can use it
     
-    
-    RiverState(String name) {
+    RiverState(String name, int id) {
       this.name = name;
-      this.dailyRainfall = new ArrayList<>();
-      this.currentVolume = 0.0;
-    }
-    
-    void addRainfall(double amount, int days) {
-      for (int i = 0; i < days; i++) {
-        dailyRainfall.add(amount);
-      }
-    }
-    
-    void addVariableRainfall(List<Double> amounts) {
-      dailyRainfall.addAll(amounts);
-    }
-    
-    double getTotalRainfall() {
-      return dailyRainfall.stream().mapToDouble(Double::doubleValue).sum();
+      this.id = id;
+      this.rainfall = new RainfallSeries();
     }
   }
   
@@ -130,18 +57,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
    * Inner class to represent flow connections between rivers
    */
   private static class FlowConnection {
-    List<String> sources;
-    List<String> destinations;
-    Map<String, Double> pendingPerDestination = new HashMap<>(); // Track per destination for next day
+    int[] sources; // Symbol ids of the source rivers
+    int[] destinations; // Symbol ids of the destination rivers
+    int flowOutDays = 0; // For a module's flow, its module's flow period
+    double residual = FlowNetwork.RESIDUAL;
 
-    FlowConnection(List<String> sources, List<String> destinations) {
+    FlowConnection(int[] sources, int[] destinations) {
       this.sources = sources;
       this.destinations = destinations;
     }
   }
   
-  Interpreter() {
-    // Initialize global environment if needed
+  Interpreter(SymbolTable symbols, Options options) {
+    this(symbols, options, new Modules());
+  }
+  
+  Interpreter(SymbolTable symbols, Options options, Modules modules) {
+    this.symbols = symbols;
+    this.options = options;
+    this.modules = modules;
+    Arrays.fill(capacities, Double.NaN);
   }
   
   /**
@@ -192,23 +127,33 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
     // If it's a river name, return the river state
-    if (rivers.containsKey(expr.name.lexeme)) {
-      return rivers.get(expr.name.lexeme);
+    RiverState river = river(expr.name.symbol);
+    if (river != null) {
+      checkExported(expr.name, river);
+      return river;
     }
     
     return environment.get(expr.name);
   }
   
   @Override
-  public Object visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
-    List<Double> values = new ArrayList<>();
-    for (Expr element : expr.elements) {
-      Object value = evaluate(element);
-      if (value instanceof Double) {
-        values.add((Double) value);
-      }
+  public Object visitNumberArrayExpr(Expr.NumberArray expr) {
+    return expr.values;
+  }
+  
+  @Override
+  public Object visitRainfallExpr(Expr.Rainfall expr) {
+    // The spec itself is the value; the river appends it as a segment
+    return expr;
+  }
+  
+  @Override
+  public Object visitCallExpr(Expr.Call expr) {
+    if (!expr.callee.lexeme().equals("markov")) {
+      throw new RuntimeError(expr.callee, "Unknown rainfall generator '" +
+          expr.callee.lexeme() + "'. Expect 'markov'.");
     }
-    return values;
+    return MarkovRainfall.of(expr.callee, expr.parameters, expr.arguments);
   }
   
   @Override
@@ -222,22 +167,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (left instanceof RiverState && right instanceof RiverState) {
           return combineRivers((RiverState) left, (RiverState) right);
         }
-        // List combination for flow sources
-        if (left instanceof List && right instanceof RiverState) {
-          List<String> sources = new ArrayList<>((List<String>) left);
-          sources.add(((RiverState) right).name);
-          return sources;
+        // Id list combination for flow sources
+        if (left instanceof int[] && right instanceof RiverState) {
+          return concat((int[]) left, new int[] { ((RiverState) right).id });
         }
-        if (left instanceof RiverState && right instanceof List) {
-          List<String> sources = new ArrayList<>();
-          sources.add(((RiverState) left).name);
-          sources.addAll((List<String>) right);
-          return sources;
+        if (left instanceof RiverState && right instanceof int[]) {
+          return concat(new int[] { ((RiverState) left).id }, (int[]) right);
         }
-        if (left instanceof List && right instanceof List) {
-          List<String> combined = new ArrayList<>((List<String>) left);
-          combined.addAll((List<String>) right);
-          return combined;
+        if (left instanceof int[] && right instanceof int[]) {
+          return concat((int[]) left, (int[]) right);
         }
         // Numeric addition
         if (left instanceof Double && right instanceof Double) {
@@ -257,71 +195,168 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   
   @Override
   public Void visitRiverDeclStmt(Stmt.RiverDecl stmt) {
-    String riverName = stmt.name.lexeme;
+    checkUnqualified(stmt.name);
+    String riverName = stmt.name.lexeme();
     Object value = evaluate(stmt.expr);
     
-    RiverState river = new RiverState(riverName);
+    RiverState river = new RiverState(riverName, stmt.name.symbol);
     
-    // Parse rainfall specification from string format or array
-    if (value instanceof String) {
-      String strValue = (String) value;
-      if (strValue.startsWith("RAINFALL:")) {
-        String[] parts = strValue.split(":");
-        double amount = Double.parseDouble(parts[1]);
-        int days = (int) Double.parseDouble(parts[2]);
-        river.addRainfall(amount, days);
-      }
-    } else if (value instanceof List) {
-      river.addVariableRainfall((List<Double>) value);
-    }
+    addRainfall(river, value);
     
-    rivers.put(riverName, river);
-    environment.define(riverName, river);
+    defineRiver(river);
+    environment.define(river.id, river);
     return null;
   }
   
   @Override
   public Void visitFlowDeclStmt(Stmt.FlowDecl stmt) {
-    String flowName = stmt.name.lexeme;
     Object value = evaluate(stmt.expr);
     
     if (value instanceof FlowConnection) {
       flowConnections.add((FlowConnection) value);
-      environment.define(flowName, value);
+      environment.define(stmt.name.symbol, value);
     }
     return null;
   }
   
   @Override
   public Void visitCapacityDeclStmt(Stmt.CapacityDecl stmt) {
-    String riverName = stmt.name.lexeme;
-    double capacity = stmt.value;
-    
-    capacities.put(riverName, capacity);
-    environment.define(riverName + "_capacity", capacity);
+    checkOwn(stmt.name, "a capacity");
+    int id = stmt.name.symbol;
+    ensureSymbols(id);
+    capacities[id] = stmt.value;
     return null;
   }
   
   @Override
   public Void visitDamDeclStmt(Stmt.DamDecl stmt) {
-    String damName = stmt.name.lexeme;
+    checkUnqualified(stmt.name);
+    String damName = stmt.name.lexeme();
     double capacity = stmt.capacity;
-    double releasePercent = stmt.releasePercent;
+    ReleasePolicy policy = releasePolicy(stmt);
     
     // Create dam state
-    DamState dam = new DamState(damName, capacity, releasePercent);
-    dams.put(damName, dam);
+    int id = stmt.name.symbol;
+    DamState dam = new DamState(damName, capacity, policy);
+    ensureSymbols(id);
+    if (dams[id] == null) {
+      damOrder.add(id);
+    }
+    dams[id] = dam;
     
     // Also create a river for the dam (dams are special rivers)
-    RiverState damRiver = new RiverState(damName);
-    damRiver.addRainfall(0.0, flowOutDays); // Dams don't get direct rainfall in this model
-    rivers.put(damName, damRiver);
+    RiverState damRiver = new RiverState(damName, id);
+    damRiver.rainfall.addConstant(0.0, flowOutDays); // Dams don't get direct rainfall in this model
+    defineRiver(damRiver);
     
-    environment.define(damName, dam);
-    environment.define(damName + "_capacity", capacity);
+    environment.define(id, dam);
+    return null;
+  }
+  
+  /**
+   * The release policy a dam declaration asks for, loading any table it
+   * names relative to the program's directory
+   */
+  private ReleasePolicy releasePolicy(Stmt.DamDecl stmt) {
+    if (stmt.policy == null) {
+      return new ReleasePolicy.Target(stmt.releasePercent);
+    }
+    String kind = stmt.policy.lexeme();
+    if (kind.equals("seasonal")) {
+      double[] targets = ((Expr.NumberArray) stmt.policyArgument).values;
+      if (targets.length == 0) {
+        throw new RuntimeError(stmt.policy, "Seasonal policy needs at least one target.");
+      }
+      return new ReleasePolicy.Seasonal(targets);
+    }
+
+    String file = (String) ((Expr.Literal) stmt.policyArgument).value;
+    Path path = programPath(file);
+    LookupTable table;
+    try {
+      table = LookupTable.read(path);
+    } catch (IOException e) {
+      throw new RuntimeError(stmt.policy, "Cannot read policy file '" + file + "'.");
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeError(stmt.policy, "Bad policy file '" + file + "': " + e.getMessage());
+    }
+    return kind.equals("table") ? new ReleasePolicy.Table(table, file)
+        : new ReleasePolicy.RuleCurve(table, file);
+  }
+  
+  /**
+   * A file named in the program, relative to the program's directory
+   */
+  private Path programPath(String file) {
+    Path path = options.sourceFile == null ? Paths.get(file)
+        : Paths.get(options.sourceFile).resolveSibling(file);
+    inputs.add(path);
+    return path;
+  }
+  
+  @Override
+  public Void visitGridDeclStmt(Stmt.GridDecl stmt) {
+    // Read in compile, once every river it names is declared
+    if (gridDecl != null) {
+      throw new RuntimeError(stmt.kind, "Only one rainfall grid can be declared.");
+    }
+    gridDecl = stmt;
     return null;
   }
   
+  @Override
+  public Void visitLossDeclStmt(Stmt.LossDecl stmt) {
+    checkOwn(stmt.name, "a loss");
+    RiverState river = river(stmt.name.symbol);
+    if (river == null) {
+      throw new RuntimeError(stmt.name,
+          "Cannot add a loss to undefined river '" + stmt.name.lexeme() + "'.");
+    }
+    String kind = stmt.kind.lexeme();
+    boolean repeated = kind.equals("evaporation") ? river.evaporation != null
+        : kind.equals("infiltration") ? river.infiltration > 0 : river.seepage != null;
+    if (repeated) {
+      throw new RuntimeError(stmt.kind, river.name + " already has " + kind + " declared.");
+    }
+    
+    if (kind.equals("evaporation")) {
+      Object value = evaluate(stmt.argument);
+      if (!(value instanceof Expr.Rainfall || value instanceof double[])) {
+        throw new RuntimeError(stmt.kind, "Evaporation is given in mm, like rainfall.");
+      }
+      river.evaporation = new RainfallSeries();
+      appendSeries(river.evaporation, value);
+    } else if (kind.equals("infiltration")) {
+      river.infiltration = (Double) ((Expr.Literal) stmt.argument).value;
+    } else {
+      String file = (String) ((Expr.Literal) stmt.argument).value;
+      try {
+        river.seepage = LookupTable.read(programPath(file));
+      } catch (IOException e) {
+        throw new RuntimeError(stmt.kind, "Cannot read seepage file '" + file + "'.");
+      } catch (IllegalArgumentException e) {
+        throw new RuntimeError(stmt.kind, "Bad seepage file '" + file + "': " + e.getMessage());
+      }
+      river.seepageFile = file;
+    }
+    return null;
+  }
+  
+  /**
+   * The declared rainfall grid for a network of the given nodes
+   */
+  private GriddedRainfall griddedRainfall(String[] names) {
+    try {
+      return GriddedRainfall.read(gridDecl.kind, programPath(gridDecl.grid), gridDecl.grid,
+          programPath(gridDecl.weights), names);
+    } catch (IOException e) {
+      throw new RuntimeError(gridDecl.kind, "Cannot read rainfall grid files '" +
+          gridDecl.grid + "' and '" + gridDecl.weights + "'.");
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeError(gridDecl.kind, "Bad rainfall grid: " + e.getMessage());
+    }
+  }
+  
   @Override
   public Void visitFlowOutDeclStmt(Stmt.FlowOutDecl stmt) {
     int days = (int) stmt.value;
@@ -334,34 +369,109 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     
     flowOutDays = days;
     flowOutWasSet = true;
-    environment.define(stmt.name.lexeme, (double) days);
+    environment.define(stmt.name.symbol, (double) days);
     return null;
 }
   
+  @Override
+  public Void visitReportDeclStmt(Stmt.ReportDecl stmt) {
+    // Checked once every river is declared, in runSimulation
+    reports.add(stmt.name);
+    return null;
+  }
+  
+  /**
+   * Mark a river as an output of interest from outside the program
+   * (the --report command line option)
+   */
+  void report(Token name) {
+    reports.add(name);
+  }
+  
+  @Override
+  public Void visitImportDeclStmt(Stmt.ImportDecl stmt) {
+    String name = stmt.alias.lexeme();
+    checkUnqualified(stmt.alias);
+    if (imports.containsKey(name)) {
+      throw new RuntimeError(stmt.alias, "Module '" + name + "' is already imported.");
+    }
+    Path file = programPath(stmt.file);
+    Modules.Module module = modules.load(stmt.keyword, file, stmt.file);
+    for (String input : module.image.inputs.keySet()) {
+      inputs.add(Paths.get(input));
+    }
+    imports.put(name, module);
+    link(name, module.image);
+    return null;
+  }
+  
+  /**
+   * Add a compiled module's rivers, dams and flows to the program, each
+   * river named moduleName.river
+   */
+  private void link(String moduleName, NetworkImage image) {
+    FlowNetwork network = image.network;
+    int[] idOf = new int[network.nodeCount()];
+    for (int node = 0; node < network.nodeCount(); node++) {
+      String name = moduleName + "." + network.names[node];
+      RiverState river = new RiverState(name, symbols.intern(name));
+      river.rainfall = network.rainfall[node];
+      river.module = moduleName;
+      river.exported = image.exports.contains(network.names[node]);
+      if (network.losses != null) {
+        river.evaporation = network.losses.evaporation[node];
+        river.infiltration = network.losses.infiltration[node];
+        river.seepage = network.losses.seepage[node];
+        river.seepageFile = network.losses.seepageFiles[node];
+      }
+      defineRiver(river);
+      environment.define(river.id, river);
+      if (network.hasCapacity(node)) capacities[river.id] = network.capacities[node];
+      idOf[node] = river.id;
+    }
+    for (int dam = 0; dam < network.damCount(); dam++) {
+      int id = idOf[network.damNodes[dam]];
+      dams[id] = new DamState(symbols.name(id), network.damCapacities[dam],
+          network.damPolicies[dam]);
+      damOrder.add(id);
+    }
+    for (int edge = 0; edge < network.edgeCount(); edge++) {
+      FlowConnection connection = new FlowConnection(toIds(network.sources[edge], idOf),
+          toIds(network.destinations[edge], idOf));
+      connection.flowOutDays = network.edgeFlowOutDays[edge];
+      connection.residual = network.edgeResiduals[edge];
+      flowConnections.add(connection);
+    }
+  }
+  
+  private static int[] toIds(int[] nodes, int[] idOf) {
+    int[] ids = new int[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      ids[i] = idOf[nodes[i]];
+    }
+    return ids;
+  }
+  
+  @Override
+  public Void visitExportDeclStmt(Stmt.ExportDecl stmt) {
+    // Checked once every river is declared, in module
+    exports.add(stmt.name);
+    return null;
+  }
+  
   @Override
   public Void visitRiverUpdateStmt(Stmt.RiverUpdate stmt) {
-    String riverName = stmt.name.lexeme;
+    checkOwn(stmt.name, "rainfall");
+    RiverState river = river(stmt.name.symbol);
     
-    if (!rivers.containsKey(riverName)) {
+    if (river == null) {
       throw new RuntimeError(stmt.name, 
-          "Cannot update undefined river '" + riverName + "'.");
+          "Cannot update undefined river '" + stmt.name.lexeme() + "'.");
     }
     
     Object value = evaluate(stmt.expr);
-    RiverState river = rivers.get(riverName);
-    
-    // Parse rainfall specification from string format or array
-    if (value instanceof String) {
-      String strValue = (String) value;
-      if (strValue.startsWith("RAINFALL:")) {
-        String[] parts = strValue.split(":");
-        double amount = Double.parseDouble(parts[1]);
-        int days = (int) Double.parseDouble(parts[2]);
-        river.addRainfall(amount, days);
-      }
-    } else if (value instanceof List) {
-      river.addVariableRainfall((List<Double>) value);
-    }
+    
+    addRainfall(river, value);
     return null;
   }
   
@@ -397,42 +507,138 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   
   // ==================== Domain-Specific Methods ====================
   
+  private RiverState river(int id) {
+    return id >= 0 && id < rivers.length ? rivers[id] : null;
+  }
+  
   /**
-   * Combine two rivers (for + operator)
+   * A module's river can only be used by the program importing it if the
+   * module exports it
+   */
+  private void checkExported(Token name, RiverState river) {
+    if (river.module != null && !river.exported) {
+      throw new RuntimeError(name, "Module '" + river.module + "' does not export '" +
+          river.name.substring(river.module.length() + 1) + "'.");
+    }
+  }
+  
+  /**
+   * Qualified names belong to imported modules; a program declares plain ones
+   */
+  private void checkUnqualified(Token name) {
+    if (name.lexeme().indexOf('.') >= 0) {
+      throw new RuntimeError(name, "Cannot declare '" + name.lexeme() +
+          "': names with '.' belong to imported modules.");
+    }
+  }
+  
+  /**
+   * A module's rivers are connected to but not changed by its importer
+   */
+  private void checkOwn(Token name, String what) {
+    RiverState river = river(name.symbol);
+    if (river != null && river.module != null) {
+      throw new RuntimeError(name, "Cannot add " + what + " to '" + name.lexeme() +
+          "'; it belongs to module '" + river.module + "'.");
+    }
+  }
+  
+  private DamState dam(int id) {
+    return id >= 0 && id < dams.length ? dams[id] : null;
+  }
+  
+  private boolean hasCapacity(int id) {
+    return id < capacities.length && !Double.isNaN(capacities[id]);
+  }
+  
+  /**
+   * Grow the symbol-indexed tables so that id is a valid index
+   */
+  private void ensureSymbols(int id) {
+    if (id < rivers.length) return;
+    int size = Math.max(id + 1, Math.max(symbols.size(), rivers.length * 2));
+    int old = capacities.length;
+    rivers = Arrays.copyOf(rivers, size);
+    dams = Arrays.copyOf(dams, size);
+    capacities = Arrays.copyOf(capacities, size);
+    Arrays.fill(capacities, old, size, Double.NaN);
+  }
+  
+  /**
+   * Register a river, replacing any earlier river of the same name in place
    */
-  private List<String> combineRivers(RiverState left, RiverState right) {
-    List<String> combined = new ArrayList<>();
-    combined.add(left.name);
-    combined.add(right.name);
+  private void defineRiver(RiverState river) {
+    ensureSymbols(river.id);
+    RiverState previous = rivers[river.id];
+    if (previous == null) {
+      riverOrder.add(river);
+    } else {
+      riverOrder.set(riverOrder.indexOf(previous), river);
+    }
+    rivers[river.id] = river;
+  }
+  
+  private static int[] concat(int[] left, int[] right) {
+    int[] combined = Arrays.copyOf(left, left.length + right.length);
+    System.arraycopy(right, 0, combined, left.length, right.length);
     return combined;
   }
   
+  
+  /**
+   * Append a rainfall specification (N(days)mm, [..]mm or markov(..)) to a river
+   */
+  private void addRainfall(RiverState river, Object value) {
+    if (value instanceof MarkovRainfall) {
+      // Each river draws from its own stream
+      river.rainfall.addGenerated(((MarkovRainfall) value).forRiver(river.name));
+      return;
+    }
+    appendSeries(river.rainfall, value);
+  }
+  
+  private static void appendSeries(RainfallSeries series, Object value) {
+    if (value instanceof Expr.Rainfall) {
+      Expr.Rainfall spec = (Expr.Rainfall) value;
+      series.addConstant(spec.amount, spec.days);
+    } else if (value instanceof double[]) {
+      series.addValues((double[]) value);
+    }
+  }
+  
+  /**
+   * Combine two rivers (for + operator)
+   */
+  private int[] combineRivers(RiverState left, RiverState right) {
+    return new int[] { left.id, right.id };
+  }
+  
   /**
    * Create flow connection (for -> operator)
    */
   private FlowConnection createFlowConnection(Object left, Object right) {
-    List<String> sources = new ArrayList<>();
-    List<String> destinations = new ArrayList<>();
+    int[] sources = new int[0];
+    int[] destinations = new int[0];
     
     // Parse left side (sources)
     if (left instanceof RiverState) {
-      sources.add(((RiverState) left).name);
-    } else if (left instanceof List) {
-      sources.addAll((List<String>) left);
+      sources = new int[] { ((RiverState) left).id };
+    } else if (left instanceof int[]) {
+      sources = (int[]) left;
     } else if (left instanceof FlowConnection) {
       // Chained flow: A -> B -> C
       // First, add the previous flow to the list
       FlowConnection prevFlow = (FlowConnection) left;
       flowConnections.add(prevFlow);
       // Now create new flow from previous destinations to new destinations
-      sources.addAll(prevFlow.destinations);
+      sources = prevFlow.destinations;
     }
     
     // Parse right side (destinations)
     if (right instanceof RiverState) {
-      destinations.add(((RiverState) right).name);
-    } else if (right instanceof List) {
-      destinations.addAll((List<String>) right);
+      destinations = new int[] { ((RiverState) right).id };
+    } else if (right instanceof int[]) {
+      destinations = (int[]) right;
     }
     
     return new FlowConnection(sources, destinations);
@@ -442,16 +648,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
    * Run the water flow simulation over specified days
    */
   private void runSimulation() {
-    System.out.println("\n=== Tazyik Water Flow Simulation ===");
-    System.out.println("Flow period: " + flowOutDays + " days\n");
+    // Compiling to an image runs nothing, so it has no simulation header
+    if (options.compileTo == null) printHeader();
     
     // VALIDATION: Check that all rivers have capacity defined    
-    List<String> missingCapacities = new ArrayList<>();
-    for (RiverState river : rivers.values()) {
-      if (!capacities.containsKey(river.name) && !dams.containsKey(river.name)) {
-        missingCapacities.add(river.name);
-      }
-    }
+    List<String> missingCapacities = missingCapacities();
     
     if (!missingCapacities.isEmpty()) {
       System.err.println("\n=== ERROR: Missing Capacity Definitions ===");
@@ -465,182 +666,432 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       System.exit(1);
     }
     
-    // Determine maximum simulation days
-    int maxDays = flowOutDays;
-    for (RiverState river : rivers.values()) {
-      maxDays = Math.max(maxDays, river.dailyRainfall.size());
+    FlowNetwork network = compile();
+    if (options.compileTo != null) {
+      writeImage(network);
+      return;
     }
-    
-    // Print river information
-    System.out.println("Rivers:");
-    for (RiverState river : rivers.values()) {
-      System.out.println("  " + river.name + ":");
-      System.out.println("    Total rainfall: " + river.getTotalRainfall() + "mm");
-      if (capacities.containsKey(river.name)) {
-        System.out.println("    Capacity: " + capacities.get(river.name) + "ML");
+    simulate(network);
+  }
+  
+  private void printHeader() {
+    System.out.println("\n=== Tazyik Water Flow Simulation ===");
+    System.out.println("Flow period: " + flowOutDays + " days");
+    if (!imports.isEmpty()) {
+      List<String> moduleNames = new ArrayList<>();
+      for (Map.Entry<String, Modules.Module> module : imports.entrySet()) {
+        moduleNames.add(module.getKey() + " (" + module.getValue().file +
+            (module.getValue().cached ? ", cached" : ", compiled") + ")");
       }
+      System.out.println("Modules: " + String.join(", ", moduleNames));
     }
-    
-    // Print dam information
-    if (!dams.isEmpty()) {
-      System.out.println("\nDams:");
-      for (DamState dam : dams.values()) {
-        System.out.println("  " + dam.name + ":");
-        System.out.println("    Capacity: " + dam.capacity + "ML");
-        System.out.println("    Base release: " + dam.releasePercent + "%");
+    System.out.println();
+  }
+  
+  /**
+   * Rivers that are neither dams nor given a capacity
+   */
+  private List<String> missingCapacities() {
+    List<String> missing = new ArrayList<>();
+    for (RiverState river : riverOrder) {
+      if (!hasCapacity(river.id) && dam(river.id) == null) {
+        missing.add(river.name);
       }
     }
-    
-    // Print flow connections
-    if (!flowConnections.isEmpty()) {
-      System.out.println("\nFlow connections:");
-      for (int i = 0; i < flowConnections.size(); i++) {
-        FlowConnection flow = flowConnections.get(i);
-        System.out.println("  Flow " + (i + 1) + ": " + 
-            String.join(" + ", flow.sources) + " -> " + 
-            String.join(" + ", flow.destinations));
+    return missing;
+  }
+  
+  /**
+   * Execute an imported module's declarations and compile them, for
+   * Modules to cache and link into the importing program. Throws
+   * IllegalArgumentException if the module is incomplete.
+   */
+  NetworkImage module(List<Object> declarations) {
+    for (Object declaration : declarations) {
+      if (declaration instanceof Stmt) {
+        execute((Stmt) declaration);
       }
     }
-    
-    // Simulate day by day
-    System.out.println("\n=== Daily Simulation ===");
-    for (int day = 1; day <= maxDays; day++) {
-      System.out.println("\nDay " + day + ":");
-      simulateDay(day);
+    if (gridDecl != null) {
+      throw new RuntimeError(gridDecl.kind,
+          "A module cannot declare a rainfall grid; declare it in the importing program.");
     }
-    
-    // Print final summary
-    System.out.println("\n=== Final Summary ===");
-    for (RiverState river : rivers.values()) {
-      System.out.println(river.name + ": " + 
-          String.format("%.3f", river.currentVolume) + "ML");
-      
-      // Check capacity warnings
-      if (capacities.containsKey(river.name)) {
-        double capacity = capacities.get(river.name);
-        double percentage = river.currentVolume / capacity * 100;
-        
-        if (percentage >= 100) {
-          double overflow = river.currentVolume - capacity;
-          System.out.println("  WARNING: Capacity exceeded! Overflow: " + 
-              String.format("%.3f", overflow) + "ML");
-        } else if (percentage >= 80) {
-          System.out.println("  WARNING: At " + String.format("%.3f", percentage) + 
-              "% capacity");
-        }
+    List<String> missing = missingCapacities();
+    if (!missing.isEmpty()) {
+      throw new IllegalArgumentException("Missing capacity for: " + String.join(", ", missing));
+    }
+    List<String> exportNames = new ArrayList<>();
+    for (Token name : exports) {
+      RiverState river = river(name.symbol);
+      if (river == null) {
+        throw new RuntimeError(name, "Cannot export undefined river '" + name.lexeme() + "'.");
       }
+      checkExported(name, river);
+      exportNames.add(name.lexeme());
     }
+    return new NetworkImage(compile(), new ArrayList<>(), exportNames, new LinkedHashMap<>());
   }
   
   /**
-   * Simulate water flow for a single day
+   * Files the program read, its imported modules' included
    */
-  private void simulateDay(int day) {
-    // Add rainfall for this day
-    for (RiverState river : rivers.values()) {
-      if (day <= river.dailyRainfall.size()) {
-        double rainfall = river.dailyRainfall.get(day - 1);
-        if (rainfall > 0) {
-          // Convert mm to ML (simplified: 1mm = 1ML for this simulation)
-          // Simplified: 1mm = 1ML (assumes 0.001 km² catchment)
-          double volumeAdded = rainfall;
-          river.currentVolume += volumeAdded;
-          System.out.println("  " + river.name + ": +" + rainfall + "mm (" + 
-              volumeAdded + "ML), total: " + 
-              String.format("%.3f", river.currentVolume) + "ML");
-        }
+  Set<Path> inputs() {
+    return inputs;
+  }
+  
+  /**
+   * Run a network compiled earlier and loaded from an image, in place of
+   * executing a program
+   */
+  void interpret(FlowNetwork network) {
+    try {
+      System.out.println("\n=== Tazyik Water Flow Simulation ===");
+      System.out.println("Flow period: " + network.flowOutDays + " days\n");
+      simulate(network);
+    } catch (RuntimeError error) {
+      Tazyik.runtimeError(error);
+    }
+  }
+  
+  /**
+   * Everything after compiling: pruning to the reported rivers, then the
+   * mode chosen on the command line
+   */
+  private void simulate(FlowNetwork network) {
+    // Only simulate what the requested outputs depend on
+    if (!reports.isEmpty()) {
+      int[] outputs = reportedNodes(network);
+      List<String> reportNames = new ArrayList<>();
+      for (Token name : reports) {
+        reportNames.add(name.lexeme());
       }
+      int declared = network.nodeCount();
+      network = network.upstreamOf(outputs);
+      System.out.println("Reporting: " + String.join(", ", reportNames) + " (" +
+          network.nodeCount() + " of " + declared + " nodes simulated)\n");
     }
     
-    // PHASE 1: Apply pending flows from YESTERDAY (cascade delay - flows arrive next day)
-    if (day > 1) {  // No pending flows on day 1
-      for (FlowConnection flow : flowConnections) {
-        if (!flow.pendingPerDestination.isEmpty()) {
-          for (Map.Entry<String, Double> entry : flow.pendingPerDestination.entrySet()) {
-            String destName = entry.getKey();
-            double amount = entry.getValue();
-            
-            if (amount > 0) {
-              if (dams.containsKey(destName)) {
-                // DESTINATION IS A DAM - Apply dam control algorithm!
-                DamState dam = dams.get(destName);
-                RiverState damRiver = rivers.get(destName);
-                
-                // Get today's rainfall on the dam (if any)
-                double todayRainfall = 0.0;
-                if (day <= damRiver.dailyRainfall.size()) {
-                  todayRainfall = damRiver.dailyRainfall.get(day - 1);
-                }
-                
-                // Dam decides how much to release based on:
-                // 1. Current dam level
-                // 2. Inflow amount (from yesterday's flow)
-                // 3. Today's rainfall
-                double inflow = amount;
-                double releaseAmount = dam.calculateRelease(inflow, todayRainfall);
-                
-                // Update dam level
-                dam.updateLevel(inflow, releaseAmount, todayRainfall);
-                damRiver.currentVolume = dam.currentLevel;
-                
-                System.out.println("  Dam " + destName + ": inflow +" + 
-                    String.format("%.3f", inflow) + "ML (from yesterday), level " +
-                    String.format("%.3f", dam.currentLevel) + "ML (" +
-                    String.format("%.3f", dam.currentLevel/dam.capacity*100) + "%), released " +
-                    String.format("%.3f", releaseAmount) + "ML");
-                
-              } else if (rivers.containsKey(destName)) {
-                // Regular river destination
-                RiverState dest = rivers.get(destName);
-                dest.currentVolume += amount;
-                System.out.println("  Flow: +" + 
-                    String.format("%.3f", amount) + 
-                    "ML to " + destName + " (from yesterday)");
-              }
-            }
-          }
-          // Clear pending flows after applying them
-          flow.pendingPerDestination.clear();
-        }
+    if (network.grid != null && (options.sensitivity != null || options.scenarios > 0)) {
+      System.err.println((options.sensitivity != null ? "--sensitivity" : "--scenarios") +
+          " cannot be used with a rainfall grid.");
+      System.exit(1);
+    }
+    if (network.losses != null && (options.sensitivity != null || options.scenarios > 0)) {
+      System.err.println((options.sensitivity != null ? "--sensitivity" : "--scenarios") +
+          " cannot be used with losses.");
+      System.exit(1);
+    }
+    
+    if (options.sensitivity != null) {
+      sensitivity(network).run();
+      return;
+    }
+    
+    if (options.live > 0) {
+      live(network);
+      return;
+    }
+    
+    if (options.calibrate != null) {
+      Calibration calibration = calibration(network);
+      if (options.memoise) calibration.memoise();
+      calibration.run();
+      return;
+    }
+    
+    if (options.optimise != null) {
+      ReleaseOptimiser optimiser =
+          new ReleaseOptimiser(network, options.optimise, objectiveNodes(network));
+      if (options.memoise) optimiser.memoise();
+      optimiser.run();
+      return;
+    }
+    
+    if (options.scenarios > 0) {
+      new ScenarioBatch(network, options.scenarios, options.spread, options.seed).run();
+      return;
+    }
+    
+    if (options.fixedPoint) {
+      FixedPointSimulation simulation = new FixedPointSimulation(network);
+      simulation.daily = !options.summary;
+      simulation.epsilon = FixedPointSimulation.units(options.epsilon);
+      try {
+        simulation.run();
+      } catch (ArithmeticException e) {
+        System.err.println("A volume is too large for --fixed-point (about 9.2 million ML).");
+        System.exit(1);
       }
+      return;
     }
     
-    // PHASE 2: Calculate TODAY's flows (will be applied tomorrow - cascade delay)
-    if (day >= 1 && day <= flowOutDays) {
-      for (FlowConnection flow : flowConnections) {
-        // Calculate flow amount (distribute evenly over flowOutDays)
-        double totalSourceVolume = 0;
-        for (String sourceName : flow.sources) {
-          if (rivers.containsKey(sourceName)) {
-            totalSourceVolume += rivers.get(sourceName).currentVolume;
-          }
+    Simulation simulation = new Simulation(network, stateColumns(network));
+    simulation.daily = !options.summary;
+    simulation.epsilon = options.epsilon;
+    if (options.memoise) {
+      Subcatchments subcatchments = Subcatchments.find(network, 2, true, new int[0]);
+      Subcatchments.Replay replay =
+          subcatchments.replay(network, options.epsilon, network.days());
+      simulation.memoise(replay);
+      System.out.println("Memoised " + replay.units() + " sub-catchments (" +
+          subcatchments.nodeCount() + " of " + network.nodeCount() + " nodes), " +
+          replay.recorded + " simulated\n");
+    } else if (options.fastForward) {
+      simulation.enableFastForward();
+    } else if (options.resolution != null) {
+      simulation.aggregate(new Aggregation(network, options.resolution));
+    }
+    MassBalance balance = null;
+    if (options.massBalance >= 0) balance = simulation.checkBalance(options.massBalance);
+    Profiler profiler = options.profile == null ? null : simulation.profile();
+    simulation.run();
+    if (profiler != null) {
+      profiler.printReport();
+      try {
+        profiler.writeFolded(Paths.get(options.profile));
+      } catch (IOException e) {
+        System.err.println("Cannot write profile " + options.profile + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (balance != null && balance.violated()) System.exit(1);
+  }
+  
+  /**
+   * Sensitivity of the river named on the command line, over the part of
+   * the network upstream of it
+   */
+  private Sensitivity sensitivity(FlowNetwork network) {
+    for (int node = 0; node < network.nodeCount(); node++) {
+      if (network.names[node].equals(options.sensitivity)) {
+        // Pruning renumbers the nodes
+        FlowNetwork upstream = network.upstreamOf(new int[] {node});
+        for (int kept = 0; kept < upstream.nodeCount(); kept++) {
+          if (upstream.names[kept].equals(options.sensitivity)) return new Sensitivity(upstream, kept);
         }
-        
-        // Distribute water to destinations
-        double decayRate = 1.0 - Math.pow(0.001, 1.0 / flowOutDays);
-        double flowAmount = totalSourceVolume * decayRate;
-        
-        if (flowAmount > 0 && !flow.destinations.isEmpty()) {
-          double amountPerDestination = flowAmount / flow.destinations.size();
-          
-          // Remove from sources TODAY
-          for (String sourceName : flow.sources) {
-            if (rivers.containsKey(sourceName)) {
-              RiverState source = rivers.get(sourceName);
-              double toRemove = source.currentVolume / totalSourceVolume * flowAmount;
-              source.currentVolume -= toRemove;
-            }
-          }
-          
-          // Store pending flows to be applied TOMORROW (realistic cascade delay)
-          for (String destName : flow.destinations) {
-            flow.pendingPerDestination.put(destName, amountPerDestination);
-            System.out.println("  Flow scheduled: " + 
-                String.format("%.3f", amountPerDestination) + 
-                "ML → " + destName + " (will arrive tomorrow)");
-          }
+      }
+    }
+    System.err.println("Cannot find river " + options.sensitivity + " for --sensitivity.");
+    System.exit(1);
+    return null;
+  }
+  
+  /**
+   * Node of each reported river
+   */
+  private int[] reportedNodes(FlowNetwork network) {
+    int[] outputs = new int[reports.size()];
+    for (int i = 0; i < outputs.length; i++) {
+      Token name = reports.get(i);
+      outputs[i] = network.nodeNamed(name.lexeme());
+      if (outputs[i] < 0) {
+        throw new RuntimeError(name,
+            "Cannot report undefined river '" + name.lexeme() + "'.");
+      }
+    }
+    return outputs;
+  }
+  
+  /**
+   * Save the compiled network, with the reported rivers, for "tazyik run"
+   */
+  private void writeImage(FlowNetwork network) {
+    reportedNodes(network); // Undefined rivers are an error now, not when run
+    List<String> reportNames = new ArrayList<>();
+    for (Token name : reports) {
+      reportNames.add(name.lexeme());
+    }
+    try {
+      List<String> exportNames = new ArrayList<>();
+      for (Token name : exports) {
+        exportNames.add(name.lexeme());
+      }
+      new NetworkImage(network, reportNames, exportNames, new LinkedHashMap<>())
+          .write(Paths.get(options.compileTo));
+    } catch (IOException e) {
+      System.err.println("Cannot write image " + options.compileTo + ": " + e.getMessage());
+      System.exit(1);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Cannot compile " + options.sourceFile + ": " + e.getMessage());
+      System.exit(1);
+    }
+    System.out.println("Compiled " + network.nodeCount() + " nodes, " + network.damCount() +
+        " dams and " + network.edgeCount() + " flows to " + options.compileTo);
+  }
+  
+  /**
+   * Run the live forecast on stdin or the requested port
+   */
+  private void live(FlowNetwork network) {
+    LiveForecast forecast = new LiveForecast(network, options.live);
+    try {
+      if (options.port > 0) {
+        forecast.listen(options.port);
+      } else {
+        forecast.run();
+      }
+    } catch (IOException e) {
+      System.err.println("Live forecast stopped: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+  
+  /**
+   * Load the observations to calibrate against
+   */
+  private Calibration calibration(FlowNetwork network) {
+    try {
+      return Calibration.load(network, options.metric, Paths.get(options.calibrate));
+    } catch (IOException e) {
+      System.err.println("Cannot read observations " + options.calibrate + ": " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Bad observations " + options.calibrate + ": " + e.getMessage());
+    }
+    System.exit(1);
+    return null;
+  }
+  
+  /**
+   * Nodes the optimiser scores: the reported rivers if there are any,
+   * otherwise every river with a capacity
+   */
+  private int[] objectiveNodes(FlowNetwork network) {
+    List<Integer> nodes = new ArrayList<>();
+    for (int node = 0; node < network.nodeCount(); node++) {
+      if (!network.hasCapacity(node)) continue;
+      if (!reports.isEmpty()) {
+        boolean reported = false;
+        for (Token report : reports) {
+          if (report.lexeme().equals(network.names[node])) reported = true;
         }
+        if (!reported) continue;
+      }
+      nodes.add(node);
+    }
+    return nodes.stream().mapToInt(Integer::intValue).toArray();
+  }
+  
+  /**
+   * Storage for the simulation state, as chosen on the command line
+   */
+  private StateColumns stateColumns(FlowNetwork network) {
+    if (options.stateFile != null) {
+      try {
+        return StateColumns.mapped(network, Paths.get(options.stateFile));
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.println("Cannot map state file " + options.stateFile + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (options.offHeap) {
+      try {
+        return StateColumns.direct(network);
+      } catch (IllegalArgumentException e) {
+        System.err.println("Cannot keep the state off the heap: " + e.getMessage());
+        System.exit(1);
       }
     }
+    return StateColumns.onHeap(network);
+  }
+  
+  /**
+   * Node index of each river symbol in the compiled network, -1 for other symbols
+   */
+  private int[] nodeIndices() {
+    int[] nodeOf = new int[rivers.length];
+    Arrays.fill(nodeOf, -1);
+    for (int node = 0; node < riverOrder.size(); node++) {
+      nodeOf[riverOrder.get(node).id] = node;
+    }
+    return nodeOf;
+  }
+  
+  /**
+   * Compile the declared rivers, dams and flows into a FlowNetwork:
+   * each river (dams included) becomes a node in declaration order, and
+   * each flow an edge in the order of FlowGraph.schedule
+   */
+  private FlowNetwork compile() {
+    int nodes = riverOrder.size();
+    int[] nodeOf = nodeIndices();
+    
+    String[] names = new String[nodes];
+    double[] nodeCapacities = new double[nodes];
+    RainfallSeries[] rainfall = new RainfallSeries[nodes];
+    for (int node = 0; node < nodes; node++) {
+      RiverState river = riverOrder.get(node);
+      names[node] = river.name;
+      nodeCapacities[node] = hasCapacity(river.id) ? capacities[river.id] : Double.NaN;
+      rainfall[node] = river.rainfall;
+    }
+    
+    int[] damNodes = new int[damOrder.size()];
+    double[] damCapacities = new double[damNodes.length];
+    ReleasePolicy[] policies = new ReleasePolicy[damNodes.length];
+    for (int dam = 0; dam < damNodes.length; dam++) {
+      int id = damOrder.get(dam);
+      DamState state = dams[id];
+      damNodes[dam] = nodeOf[id];
+      damCapacities[dam] = state.capacity;
+      policies[dam] = state.policy;
+    }
+    
+    int[][] declaredSources = new int[flowConnections.size()][];
+    int[][] declaredDestinations = new int[flowConnections.size()][];
+    for (int flow = 0; flow < declaredSources.length; flow++) {
+      FlowConnection connection = flowConnections.get(flow);
+      declaredSources[flow] = toNodes(connection.sources, nodeOf);
+      declaredDestinations[flow] = toNodes(connection.destinations, nodeOf);
+    }
+    
+    // Edges run upstream first, in an order that does not depend on the
+    // order the flows were declared in
+    int[] schedule = new FlowGraph(nodes, declaredSources, declaredDestinations)
+        .schedule(declaredSources, declaredDestinations);
+    int[][] sources = new int[schedule.length][];
+    int[][] destinations = new int[schedule.length][];
+    // Flows of imported modules keep their module's flow period and residual
+    int[] edgeFlowOutDays = new int[schedule.length];
+    double[] edgeResiduals = new double[schedule.length];
+    for (int edge = 0; edge < schedule.length; edge++) {
+      FlowConnection connection = flowConnections.get(schedule[edge]);
+      sources[edge] = declaredSources[schedule[edge]];
+      destinations[edge] = declaredDestinations[schedule[edge]];
+      edgeFlowOutDays[edge] = connection.flowOutDays > 0 ? connection.flowOutDays : flowOutDays;
+      edgeResiduals[edge] = connection.residual;
+    }
+    
+    return new FlowNetwork(flowOutDays, names, nodeCapacities, rainfall, damNodes,
+        damCapacities, policies, sources, destinations, edgeFlowOutDays, edgeResiduals,
+        gridDecl == null ? null : griddedRainfall(names), losses());
+  }
+  
+  /**
+   * The declared losses of each node, or null if no node has any
+   */
+  private Losses losses() {
+    int nodes = riverOrder.size();
+    RainfallSeries[] evaporation = new RainfallSeries[nodes];
+    double[] infiltration = new double[nodes];
+    LookupTable[] seepage = new LookupTable[nodes];
+    String[] seepageFiles = new String[nodes];
+    boolean any = false;
+    for (int node = 0; node < nodes; node++) {
+      RiverState river = riverOrder.get(node);
+      evaporation[node] = river.evaporation;
+      infiltration[node] = river.infiltration;
+      seepage[node] = river.seepage;
+      seepageFiles[node] = river.seepageFile;
+      any |= river.evaporation != null || river.infiltration > 0 || river.seepage != null;
+    }
+    return any ? new Losses(evaporation, infiltration, seepage, seepageFiles) : null;
+  }
+  
+  private static int[] toNodes(int[] ids, int[] nodeOf) {
+    int[] nodes = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      nodes[i] = nodeOf[ids[i]];
+    }
+    return nodes;
   }
 }
\ No newline at end of file
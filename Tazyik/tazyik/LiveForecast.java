@@ -0,0 +1,209 @@
+package tazyik;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keeps a simulation resident and feeds it rainfall observations as they
+ * arrive, one day per line, printing an updated forecast after each.
+ *
+ * An observed day gives the same result as adding it to the program and
+ * re-running the program, but only that one day is simulated. The live run
+ * has its own rainfall series, which start as the declared ones and then
+ * hold only the latest observed day, so the compiled network is never
+ * changed and nothing grows with the length of the session. The forecast
+ * then runs the following days on a copy of the state, over the network
+ * with no rainfall at all, so the live state is never disturbed, each
+ * update costs a handful of simulated days, and the rainfall grid is only
+ * ever read forwards, by the live run.
+ */
+class LiveForecast {
+  private final FlowNetwork network;
+  private final int horizon; // Days ahead to forecast
+  private final RainfallSeries[] rainfall; // The live run's, per node
+  private final RainfallSeries[] observations; // Per node, the latest observed day
+  private final Simulation live;
+  private final StateColumns forecastState;
+  private final Simulation forecast;
+  private final double[] observed; // Scratch: rainfall per node for the day being read
+  private final double[] peaks;
+  private final int[] peakDays;
+  private int day = 0; // Last simulated day
+
+  LiveForecast(FlowNetwork network, int horizon) {
+    this.network = network;
+    this.horizon = horizon;
+    this.rainfall = network.rainfall.clone();
+    this.observations = new RainfallSeries[network.nodeCount()];
+    RainfallSeries[] dry = new RainfallSeries[network.nodeCount()];
+    for (int node = 0; node < dry.length; node++) {
+      observations[node] = new RainfallSeries();
+      dry[node] = new RainfallSeries();
+    }
+    this.live = new Simulation(network.withRainfall(rainfall, network.grid));
+    this.forecastState = StateColumns.onHeap(network);
+    this.forecast = new Simulation(network.withRainfall(dry, null), forecastState);
+    live.daily = false;
+    forecast.daily = false;
+    this.observed = new double[network.nodeCount()];
+    this.peaks = new double[network.nodeCount()];
+    this.peakDays = new int[network.nodeCount()];
+
+    // Catch up on the rainfall the program already declares
+    int declared = 0;
+    for (RainfallSeries series : network.rainfall) {
+      declared = Math.max(declared, series.days());
+    }
+    if (network.grid != null) declared = Math.max(declared, network.grid.days);
+    while (day < declared) {
+      live.simulateDay(++day);
+    }
+  }
+
+  /**
+   * Read observations from standard input until it ends or says "quit"
+   */
+  void run() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    serve(in, System.out);
+  }
+
+  /**
+   * Take observations from connections to the given port on this machine,
+   * one connection at a time, all advancing the same state
+   */
+  void listen(int port) throws IOException {
+    try (ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+      System.out.println("Listening for observations on " +
+          server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
+      while (true) {
+        try (Socket socket = server.accept()) {
+          BufferedReader in = new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+          serve(in, new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8));
+        }
+      }
+    }
+  }
+
+  /**
+   * Each line is one day's observations, "river=mm" pairs separated by
+   * spaces or commas; readings of the same river are added up, so hourly
+   * readings can be sent together. Rivers left out had no rain. "dry" is a
+   * day with no rain anywhere and "quit" ends the session.
+   */
+  void serve(BufferedReader in, PrintStream out) throws IOException {
+    out.println("=== Live Forecast (" + horizon + " days ahead) ===");
+    out.println("Observed up to day " + day + ". Send one line per day: river=mm ..., " +
+        "dry, or quit.");
+    forecast();
+    printForecast(out);
+
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      if (line.equals("quit")) break;
+
+      String error = parse(line);
+      if (error != null) {
+        out.println("Error: " + error + " Nothing was recorded.");
+        continue;
+      }
+      long began = System.nanoTime();
+      observe();
+      forecast();
+      long nanos = System.nanoTime() - began;
+      out.println("Day " + day + " (updated in " + (nanos / 1000) + "us):");
+      printForecast(out);
+    }
+  }
+
+  /**
+   * Read one line of observations into observed, returning what is wrong
+   * with it, if anything
+   */
+  private String parse(String line) {
+    Arrays.fill(observed, 0.0);
+    if (line.equals("dry")) return null;
+    for (String reading : line.split("[\\s,]+")) {
+      int equals = reading.indexOf('=');
+      if (equals < 0) return "Expected river=mm, got '" + reading + "'.";
+      String name = reading.substring(0, equals);
+      String amount = reading.substring(equals + 1);
+      if (amount.endsWith("mm")) amount = amount.substring(0, amount.length() - 2);
+      int node = network.nodeNamed(name);
+      if (node < 0) return "Unknown river '" + name + "'.";
+      double rainfall;
+      try {
+        rainfall = Double.parseDouble(amount);
+      } catch (NumberFormatException e) {
+        return "'" + amount + "' is not a rainfall amount.";
+      }
+      if (!(rainfall >= 0)) return "Rainfall cannot be negative.";
+      observed[node] += rainfall;
+    }
+    return null;
+  }
+
+  /**
+   * Make the observed day the live run's rainfall and simulate it. The
+   * days before it are already simulated, so they are left out.
+   */
+  private void observe() {
+    day++;
+    for (int node = 0; node < observed.length; node++) {
+      RainfallSeries series = observations[node];
+      series.clear();
+      series.addConstant(0.0, day - 1);
+      series.addConstant(observed[node], 1);
+      rainfall[node] = series;
+    }
+    live.simulateDay(day);
+  }
+
+  /**
+   * Simulate the days after today with no rainfall, on a copy of today's
+   * state, recording each node's peak
+   */
+  private void forecast() {
+    live.state.copyTo(forecastState);
+    for (int node = 0; node < peaks.length; node++) {
+      peaks[node] = forecastState.volumes.get(node);
+      peakDays[node] = day;
+    }
+    for (int ahead = day + 1; ahead <= day + horizon; ahead++) {
+      forecast.simulateDay(ahead);
+      for (int node = 0; node < peaks.length; node++) {
+        double volume = forecastState.volumes.get(node);
+        if (volume > peaks[node]) {
+          peaks[node] = volume;
+          peakDays[node] = ahead;
+        }
+      }
+    }
+  }
+
+  private void printForecast(PrintStream out) {
+    for (int node = 0; node < network.nodeCount(); node++) {
+      String text = "  " + network.names[node] + ": " +
+          String.format("%.3f", live.state.volumes.get(node)) + "ML now, " +
+          String.format("%.3f", forecastState.volumes.get(node)) + "ML in " + horizon +
+          " days, peak " + String.format("%.3f", peaks[node]) + "ML on day " + peakDays[node];
+      if (network.hasCapacity(node)) {
+        double percentage = peaks[node] / network.capacities[node] * 100;
+        if (percentage >= 80) {
+          text += " (WARNING: " + String.format("%.1f", percentage) + "% capacity)";
+        }
+      }
+      out.println(text);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package tazyik;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A piecewise-linear function given by (x, y) points, evaluated by
+ * interpolation and held constant beyond the first and last point.
+ *
+ * Everything a lookup needs is precomputed: the slope of each segment, and
+ * a uniform bucket index over the x range that points straight at the
+ * segment a value falls in, so evaluating it is an array read and a
+ * multiply-add rather than a search.
+ */
+class LookupTable {
+  final double[] xs;
+  final double[] ys;
+  private final double[] slopes; // Slope of the segment starting at each point
+  private final int[] bucketSegment; // First segment overlapping each bucket
+  private final double bucketScale; // Buckets per unit of x
+
+  /**
+   * xs must be strictly increasing and the same length as ys.
+   */
+  LookupTable(double[] xs, double[] ys) {
+    if (xs.length == 0 || xs.length != ys.length) {
+      throw new IllegalArgumentException("A table needs at least one (x, y) point.");
+    }
+    for (int i = 1; i < xs.length; i++) {
+      if (!(xs[i] > xs[i - 1])) {
+        throw new IllegalArgumentException("Table x values must be strictly increasing.");
+      }
+    }
+    this.xs = xs.clone();
+    this.ys = ys.clone();
+
+    int segments = xs.length - 1;
+    this.slopes = new double[xs.length];
+    for (int i = 0; i < segments; i++) {
+      slopes[i] = (ys[i + 1] - ys[i]) / (xs[i + 1] - xs[i]);
+    }
+
+    int buckets = Math.max(1, 4 * segments);
+    double range = xs[xs.length - 1] - xs[0];
+    this.bucketScale = range > 0 ? buckets / range : 0.0;
+    this.bucketSegment = new int[buckets];
+    int segment = 0;
+    for (int b = 0; b < buckets; b++) {
+      double bucketStart = xs[0] + b / bucketScale;
+      while (segment < segments - 1 && xs[segment + 1] <= bucketStart) segment++;
+      bucketSegment[b] = segment;
+    }
+  }
+
+  /**
+   * Read a table from a file of "x,y" lines. Blank lines and lines starting
+   * with '#' are skipped, as is a first line that is not numeric (a header).
+   */
+  static LookupTable read(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file);
+    DoubleList xs = new DoubleList();
+    DoubleList ys = new DoubleList();
+    boolean first = true;
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      String[] fields = line.split(",");
+      try {
+        if (fields.length != 2) throw new NumberFormatException();
+        double x = Double.parseDouble(fields[0].trim());
+        double y = Double.parseDouble(fields[1].trim());
+        xs.add(x);
+        ys.add(y);
+      } catch (NumberFormatException e) {
+        if (!first) {
+          throw new IllegalArgumentException("Line " + (i + 1) + " is not an 'x,y' pair.");
+        }
+        // Header
+      }
+      first = false;
+    }
+    return new LookupTable(xs.toArray(), ys.toArray());
+  }
+
+  double value(double x) {
+    if (x <= xs[0]) return ys[0];
+    int last = xs.length - 1;
+    if (x >= xs[last]) return ys[last];
+    int segment = segmentOf(x);
+    return ys[segment] + slopes[segment] * (x - xs[segment]);
+  }
+
+  /**
+   * Derivative at x: the slope of the segment x falls in, 0 outside the
+   * table and the slope on the left at a point
+   */
+  double slope(double x) {
+    if (x <= xs[0] || x >= xs[xs.length - 1]) return 0.0;
+    return slopes[segmentOf(x)];
+  }
+
+  private int segmentOf(double x) {
+    int bucket = Math.min((int) ((x - xs[0]) * bucketScale), bucketSegment.length - 1);
+    int segment = bucketSegment[bucket];
+    while (x > xs[segment + 1]) segment++;
+    return segment;
+  }
+}
@@ -0,0 +1,80 @@
+package tazyik;
+
+/**
+ * Water each node loses every day: pan evaporation (a daily series in mm,
+ * taken as ML like rainfall), a constant infiltration rate, and seepage
+ * that depends on how much the node holds. A node can have any of the
+ * three; they add up, and never take more than the node holds.
+ *
+ * Everything is looked up rather than computed: the evaporation series by
+ * segment, seepage through its table's bucket index. The simulation
+ * applies a node's loss in the same per-node pass that adds its rainfall.
+ */
+class Losses {
+  final RainfallSeries[] evaporation; // Per node, mm per day, or null
+  final double[] infiltration; // Per node, ML per day
+  final LookupTable[] seepage; // Per node, ML per day by volume held, or null
+  final String[] seepageFiles; // Per node, the table's file as written, or null
+  final boolean[] any; // Per node, whether it loses water at all
+
+  Losses(RainfallSeries[] evaporation, double[] infiltration, LookupTable[] seepage,
+         String[] seepageFiles) {
+    this.evaporation = evaporation;
+    this.infiltration = infiltration;
+    this.seepage = seepage;
+    this.seepageFiles = seepageFiles;
+    this.any = new boolean[infiltration.length];
+    for (int node = 0; node < any.length; node++) {
+      any[node] = evaporation[node] != null || infiltration[node] > 0 || seepage[node] != null;
+    }
+  }
+
+  /**
+   * What node loses on day while holding volume
+   */
+  double loss(int node, int day, double volume) {
+    double loss = infiltration[node];
+    if (evaporation[node] != null) loss += evaporation[node].on(day);
+    if (seepage[node] != null) loss += seepage[node].value(volume);
+    return Math.max(0.0, Math.min(volume, loss));
+  }
+
+  /**
+   * The losses of a network made of the given nodes of this one's; -1 is a
+   * node with none
+   */
+  Losses forNodes(int[] nodes) {
+    RainfallSeries[] keptEvaporation = new RainfallSeries[nodes.length];
+    double[] keptInfiltration = new double[nodes.length];
+    LookupTable[] keptSeepage = new LookupTable[nodes.length];
+    String[] keptFiles = new String[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      if (nodes[i] < 0) continue;
+      keptEvaporation[i] = evaporation[nodes[i]];
+      keptInfiltration[i] = infiltration[nodes[i]];
+      keptSeepage[i] = seepage[nodes[i]];
+      keptFiles[i] = seepageFiles[nodes[i]];
+    }
+    return new Losses(keptEvaporation, keptInfiltration, keptSeepage, keptFiles);
+  }
+
+  /**
+   * The node's losses in words, or null if it has none
+   */
+  String describe(int node) {
+    if (!any[node]) return null;
+    StringBuilder text = new StringBuilder();
+    if (evaporation[node] != null) {
+      text.append("evaporation ").append(evaporation[node].total()).append("mm");
+    }
+    if (infiltration[node] > 0) {
+      if (text.length() > 0) text.append(", ");
+      text.append("infiltration ").append(infiltration[node]).append("ML/day");
+    }
+    if (seepage[node] != null) {
+      if (text.length() > 0) text.append(", ");
+      text.append("seepage from ").append(seepageFiles[node]);
+    }
+    return text.toString();
+  }
+}
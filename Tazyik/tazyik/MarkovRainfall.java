@@ -0,0 +1,205 @@
+package tazyik;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic daily rainfall, "markov(wetProb=0.3, mean=8, days=36500)".
+ * Whether a day is wet follows a two-state Markov chain: wetProb is the
+ * long-run fraction of wet days and persistence how much more likely a wet
+ * day is after a wet day than after a dry one (0 makes days independent).
+ * A wet day's amount is gamma distributed with the given mean in mm and
+ * shape (below 1, most wet days are light and a few very heavy).
+ *
+ * Nothing is stored per day. The series is cut into blocks of a year,
+ * each generated on demand from its own SplittableRandom, and each thread
+ * keeps only the block it last asked for, so simulations run in parallel
+ * over the same series do not evict each other's blocks. A block starts the chain in its long-run
+ * distribution rather than where the previous block left off, so any day
+ * can be generated without the days before it. The block seeds come from a
+ * stream split off a root generator for the seed and the river, one split
+ * per ensemble member, so every river and every scenario gets its own
+ * stream, and the same program always gets the same rainfall.
+ */
+class MarkovRainfall {
+  static final int BLOCK_DAYS = ReleasePolicy.DAYS_PER_YEAR;
+
+  private static final String[] PARAMETERS =
+      {"wetProb", "mean", "days", "seed", "shape", "persistence"};
+
+  final double wetProb; // Long-run fraction of wet days
+  final double mean; // Mean rainfall of a wet day, mm
+  final int days;
+  final long seed;
+  final double shape; // Gamma shape of wet-day amounts
+  final double persistence; // Lag-one correlation of wet and dry days
+  final long stream; // The river it was declared for
+  final int member; // The ensemble member, 0 for the series as declared
+  private final double wetAfterDry;
+  private final double wetAfterWet;
+  private final long[] blockSeeds;
+  private final ThreadLocal<Block> last = new ThreadLocal<>(); // Per thread, as threads read different years
+
+  private static class Block {
+    final int index;
+    final double[] values;
+
+    Block(int index, double[] values) {
+      this.index = index;
+      this.values = values;
+    }
+  }
+
+  MarkovRainfall(double wetProb, double mean, int days, long seed, double shape,
+                 double persistence, long stream, int member) {
+    this.wetProb = wetProb;
+    this.mean = mean;
+    this.days = days;
+    this.seed = seed;
+    this.shape = shape;
+    this.persistence = persistence;
+    this.stream = stream;
+    this.member = member;
+    this.wetAfterDry = wetProb * (1.0 - persistence);
+    this.wetAfterWet = wetProb + persistence * (1.0 - wetProb);
+
+    SplittableRandom root = new SplittableRandom(seed ^ stream * 0x9E3779B97F4A7C15L);
+    SplittableRandom memberStream = root.split();
+    for (int i = 0; i < member; i++) {
+      memberStream = root.split();
+    }
+    blockSeeds = new long[(days + BLOCK_DAYS - 1) / BLOCK_DAYS];
+    for (int block = 0; block < blockSeeds.length; block++) {
+      blockSeeds[block] = memberStream.nextLong();
+    }
+  }
+
+  /**
+   * The generator a markov(...) call describes, before it is given to a
+   * river. Throws RuntimeError at callee for a missing or bad parameter.
+   */
+  static MarkovRainfall of(Token callee, List<Token> names, double[] values) {
+    double[] given = {Double.NaN, Double.NaN, Double.NaN, 42, 0.75, 0.3};
+    for (int i = 0; i < names.size(); i++) {
+      Token name = names.get(i);
+      int parameter = List.of(PARAMETERS).indexOf(name.lexeme());
+      if (parameter < 0) {
+        throw new RuntimeError(name, "Unknown markov parameter '" + name.lexeme() +
+            "'. Expect " + String.join(", ", PARAMETERS) + ".");
+      }
+      given[parameter] = values[i];
+    }
+    for (int parameter = 0; parameter < 3; parameter++) {
+      if (Double.isNaN(given[parameter])) {
+        throw new RuntimeError(callee, "markov needs " + PARAMETERS[parameter] + ".");
+      }
+    }
+    if (!(given[0] >= 0 && given[0] <= 1)) {
+      throw new RuntimeError(callee, "markov wetProb must be between 0 and 1.");
+    }
+    if (!(given[1] > 0)) {
+      throw new RuntimeError(callee, "markov mean must be more than 0.");
+    }
+    if (given[2] < 1 || given[2] != Math.floor(given[2]) || given[2] > Integer.MAX_VALUE) {
+      throw new RuntimeError(callee, "markov days must be a whole number of at least 1.");
+    }
+    if (given[3] != Math.floor(given[3])) {
+      throw new RuntimeError(callee, "markov seed must be a whole number.");
+    }
+    if (!(given[4] > 0)) {
+      throw new RuntimeError(callee, "markov shape must be more than 0.");
+    }
+    if (!(given[5] >= 0 && given[5] < 1)) {
+      throw new RuntimeError(callee, "markov persistence must be at least 0 and below 1.");
+    }
+    return new MarkovRainfall(given[0], given[1], (int) given[2], (long) given[3], given[4],
+        given[5], 0, 0);
+  }
+
+  /**
+   * The same generator on the stream of the named river. The stream is
+   * the first 8 bytes of the SHA-256 of the name, not its hashCode, under
+   * which names such as "Aa" and "BB" collide and would get the same rain.
+   */
+  MarkovRainfall forRiver(String river) {
+    String hash = Modules.hash(river.getBytes(StandardCharsets.UTF_8));
+    return new MarkovRainfall(wetProb, mean, days, seed, shape, persistence,
+        Long.parseUnsignedLong(hash.substring(0, 16), 16), member);
+  }
+
+  /**
+   * The same generator for another ensemble member
+   */
+  MarkovRainfall member(int member) {
+    return new MarkovRainfall(wetProb, mean, days, seed, shape, persistence, stream, member);
+  }
+
+  /**
+   * Rainfall on day (0-based within the series)
+   */
+  double on(int day) {
+    int index = day / BLOCK_DAYS;
+    Block block = last.get();
+    if (block == null || block.index != index) {
+      block = generate(index);
+      last.set(block);
+    }
+    return block.values[day - index * BLOCK_DAYS];
+  }
+
+  private Block generate(int index) {
+    SplittableRandom random = new SplittableRandom(blockSeeds[index]);
+    double[] values = new double[Math.min(BLOCK_DAYS, days - index * BLOCK_DAYS)];
+    boolean wet = random.nextDouble() < wetProb;
+    for (int day = 0; day < values.length; day++) {
+      if (day > 0) wet = random.nextDouble() < (wet ? wetAfterWet : wetAfterDry);
+      values[day] = wet ? gamma(random) * mean / shape : 0.0;
+    }
+    return new Block(index, values);
+  }
+
+  /**
+   * A Gamma(shape, 1) sample, by Marsaglia and Tsang's method; shapes
+   * below 1 are boosted by one and scaled back down
+   */
+  private double gamma(SplittableRandom random) {
+    double boosted = shape < 1 ? shape + 1 : shape;
+    double d = boosted - 1.0 / 3;
+    double c = 1 / Math.sqrt(9 * d);
+    double x;
+    double v;
+    while (true) {
+      do {
+        x = random.nextGaussian();
+        v = 1 + c * x;
+      } while (v <= 0);
+      v = v * v * v;
+      double u = random.nextDouble();
+      if (u < 1 - 0.0331 * x * x * x * x) break;
+      if (Math.log(u) < 0.5 * x * x + d * (1 - v + Math.log(v))) break;
+    }
+    double sample = d * v;
+    return shape < 1 ? sample * Math.pow(random.nextDouble(), 1 / shape) : sample;
+  }
+
+  String describe() {
+    return "markov(wetProb=" + wetProb + ", mean=" + mean + ", days=" + days + ", seed=" +
+        seed + ", shape=" + shape + ", persistence=" + persistence + ")";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof MarkovRainfall)) return false;
+    MarkovRainfall that = (MarkovRainfall) other;
+    return wetProb == that.wetProb && mean == that.mean && days == that.days
+        && seed == that.seed && shape == that.shape && persistence == that.persistence
+        && stream == that.stream && member == that.member;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(wetProb, mean, days, seed, shape, persistence, stream, member);
+  }
+}
@@ -0,0 +1,145 @@
+package tazyik;
+
+/**
+ * Checks that a run conserves water. The simulation reports each change it
+ * makes to the state as it makes it: rainfall in, losses, and the water
+ * leaving the network, which is what the dams release (including their
+ * spill) and what flows to rivers pruned from the run. Wherever it moves
+ * water around inside the network it also reports the difference between
+ * what it took and what it put back, so a flow whose destinations are
+ * given less than its sources lost, or a dam whose new level is not its
+ * old volume plus inflow less release, shows up at the flow or dam where
+ * it happens, on the day it happens.
+ *
+ * The ledger costs a few additions per flow and per dam release, so it can
+ * be left on for long runs. Storage is only added up at the start and end
+ * of the run, to check that the ledger accounts for all of it.
+ */
+class MassBalance {
+  private final FlowNetwork network;
+  private final double tolerance; // Largest error in ML a flow, dam or day may have
+  // Added to by the simulation, in ML over the whole run
+  double rainfall;
+  double losses;
+  double outflow;
+  double spilled; // Part of outflow released by dams because they were full
+  private double created; // Net water created by the simulation
+  private int day = 0; // The day being checked
+  private double dayError; // Net water created on that day so far
+  private double initialStorage;
+  private int firstDay = 0; // Day of the first error above tolerance, 0 if none
+  private String firstPlace;
+  private int firstDam = -1; // Node of the dam the first error was at, -1 if not a dam
+  private double firstError;
+
+  MassBalance(FlowNetwork network, double tolerance) {
+    this.network = network;
+    this.tolerance = tolerance;
+  }
+
+  void start(StateColumns state) {
+    initialStorage = storage(state);
+  }
+
+  /**
+   * Record that a flow's move on day created error ML of water (negative if
+   * it destroyed water)
+   */
+  void flowError(int day, int edge, double error) {
+    record(day, error, edge, -1);
+  }
+
+  /**
+   * Record that a dam's release on day created error ML of water
+   */
+  void damError(int day, int node, double error) {
+    record(day, error, -1, node);
+  }
+
+  private void record(int day, double error, int edge, int node) {
+    this.day = day;
+    dayError += error;
+    created += error;
+    if (firstDay == 0 && Math.abs(error) > tolerance) {
+      firstDay = day;
+      firstPlace = edge >= 0
+          ? "flow " + (edge + 1) + " (" + Simulation.names(network, network.sources[edge]) +
+              " -> " + Simulation.names(network, network.destinations[edge]) + ")"
+          : network.names[node];
+      firstDam = node;
+      firstError = error;
+    }
+  }
+
+  /**
+   * Check the day's errors together, which may add up to more than the
+   * tolerance even if none of them does
+   */
+  void endOfDay() {
+    if (firstDay == 0 && Math.abs(dayError) > tolerance) {
+      firstDay = day;
+      firstPlace = "the network as a whole";
+      firstError = dayError;
+    }
+    dayError = 0.0;
+  }
+
+  boolean violated() {
+    return firstDay > 0;
+  }
+
+  /**
+   * Print the totals and any violation, after the final summary. The
+   * storage change is measured, so if something changed the state without
+   * telling the ledger the imbalance shows it even if every check passed.
+   */
+  void finish(StateColumns state) {
+    endOfDay();
+    double change = storage(state) - initialStorage;
+    double imbalance = change - (rainfall - losses - outflow);
+    if (firstDay == 0 && Math.abs(imbalance - created) > tolerance) {
+      firstDay = day;
+      firstPlace = "something the ledger did not see";
+      firstError = imbalance - created;
+    }
+    System.out.println("\n=== Mass Balance ===");
+    System.out.println("Rainfall in: " + String.format("%.3f", rainfall) + "ML");
+    System.out.println("Losses: " + String.format("%.3f", losses) + "ML");
+    System.out.println("Outflow: " + String.format("%.3f", outflow) + "ML (" +
+        String.format("%.3f", spilled) + "ML spilled)");
+    System.out.println("Storage change: " + String.format("%.3f", change) + "ML");
+    System.out.println("Imbalance: " + String.format("%.3f", imbalance) + "ML");
+    if (firstDay > 0) {
+      System.out.println("First violation: day " + firstDay + ", " + firstPlace + ": " +
+          String.format("%.3f", Math.abs(firstError)) + "ML " +
+          (firstError > 0 ? "created" : "destroyed"));
+      if (firstDam >= 0 && feedsFlow(firstDam)) {
+        System.out.println("  (" + network.names[firstDam] + " is the source of a flow, which " +
+            "takes water from its volume but not its level, so its next release puts the " +
+            "water back; see --mass-balance in the README)");
+      }
+    } else {
+      System.out.println("Balanced to within " + tolerance + "ML every day");
+    }
+  }
+
+  private boolean feedsFlow(int node) {
+    for (int[] sources : network.sources) {
+      for (int source : sources) {
+        if (source == node) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Water held by the nodes and in transit. A dam's level is a copy of
+   * its node's volume, so it is not counted again.
+   */
+  private static double storage(StateColumns state) {
+    double total = 0;
+    for (int node = 0; node < state.volumes.limit(); node++) total += state.volumes.get(node);
+    for (int slot = 0; slot < state.pending.limit(); slot++) total += state.pending.get(slot);
+    return total;
+  }
+}
@@ -0,0 +1,195 @@
+package tazyik;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sub-catchment files brought into a program with "Import "file" as name;".
+ * A module is an ordinary Tazyik program. Its "Export river;" statements
+ * are the connection points: the rivers and dams the importing program can
+ * flow to and from, as name.river. Everything else in it is private to it.
+ *
+ * Each module is compiled on its own, by its own scanner, parser and
+ * interpreter, into a FlowNetwork that is saved as a NetworkImage in a
+ * .tazyik-cache directory next to the module. The image is named by the
+ * SHA-256 of the module's source and records the hash of every file it was
+ * built from (policy and seepage tables, and the modules it imports in
+ * turn), so the next import maps it straight back unless one of them has
+ * changed. Editing a module only recompiles it and the modules importing it.
+ */
+class Modules {
+  static final String CACHE_DIRECTORY = ".tazyik-cache";
+
+  /**
+   * A compiled module, as loaded for an import
+   */
+  static class Module {
+    final String file; // As written in the import
+    final NetworkImage image;
+    final boolean cached; // Whether it came from the cache rather than its source
+
+    Module(String file, NetworkImage image, boolean cached) {
+      this.file = file;
+      this.image = image;
+      this.cached = cached;
+    }
+  }
+
+  // Shared by every interpreter of one run, so a module imported twice is
+  // loaded once and an import cycle can be seen
+  private final Map<Path, Module> loaded = new HashMap<>();
+  private final Deque<Path> loading = new ArrayDeque<>();
+
+  /**
+   * The compiled module in file, from the cache if it is up to date,
+   * otherwise compiled and cached. Errors are reported at the import.
+   */
+  Module load(Token keyword, Path file, String fileName) {
+    Path key = file.toAbsolutePath().normalize();
+    Module module = loaded.get(key);
+    if (module != null) return module;
+    if (loading.contains(key)) {
+      throw new RuntimeError(keyword, "Module '" + fileName + "' imports itself.");
+    }
+
+    byte[] source;
+    try {
+      source = Files.readAllBytes(file);
+    } catch (IOException e) {
+      throw new RuntimeError(keyword, "Cannot read module '" + fileName + "'.");
+    }
+    Path cacheFile = file.resolveSibling(CACHE_DIRECTORY).resolve(hash(source) + ".tzm");
+    NetworkImage image = cached(cacheFile);
+    boolean cached = image != null;
+    if (!cached) {
+      loading.push(key);
+      try {
+        image = compile(keyword, file, fileName, source);
+      } finally {
+        loading.pop();
+      }
+      save(image, cacheFile);
+    }
+    module = new Module(fileName, image, cached);
+    loaded.put(key, module);
+    return module;
+  }
+
+  /**
+   * Scan, parse and execute a module's source into an image, with the
+   * hashes of the files it read
+   */
+  private NetworkImage compile(Token keyword, Path file, String fileName, byte[] source) {
+    Options options = new Options();
+    options.sourceFile = file.toString();
+    SymbolTable symbols = new SymbolTable();
+    // Decoded as SourceBuffer decodes a program
+    Scanner scanner = new Scanner(new String(source, StandardCharsets.UTF_8), symbols);
+    boolean hadError = Tazyik.hadError;
+    Tazyik.hadError = false;
+    List<Object> program;
+    try {
+      program = new Parser(scanner).parseProgram();
+    } catch (RuntimeException e) {
+      program = null; // A syntax error, already reported
+    }
+    boolean syntaxErrors = program == null || Tazyik.hadError;
+    Tazyik.hadError |= hadError;
+    if (syntaxErrors) {
+      throw new RuntimeError(keyword, "Module '" + fileName + "' has syntax errors.");
+    }
+
+    Interpreter interpreter = new Interpreter(symbols, options, this);
+    NetworkImage image;
+    try {
+      image = interpreter.module(program);
+    } catch (RuntimeError error) {
+      throw new RuntimeError(keyword, "In module '" + fileName + "'" +
+          (error.token.line > 0 ? " line " + error.token.line : "") + ": " + error.getMessage());
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeError(keyword, "In module '" + fileName + "': " + e.getMessage());
+    }
+
+    Map<String, String> inputs = new LinkedHashMap<>();
+    for (Path input : interpreter.inputs()) {
+      try {
+        inputs.put(input.toAbsolutePath().normalize().toString(),
+            hash(Files.readAllBytes(input)));
+      } catch (IOException e) {
+        throw new RuntimeError(keyword, "In module '" + fileName + "': cannot read " + input + ".");
+      }
+    }
+    return new NetworkImage(image.network, new ArrayList<>(), image.exports, inputs);
+  }
+
+  /**
+   * The image in cacheFile if there is one and every file it was built
+   * from is unchanged, otherwise null
+   */
+  private static NetworkImage cached(Path cacheFile) {
+    if (!Files.isRegularFile(cacheFile)) return null;
+    try {
+      NetworkImage image = NetworkImage.read(cacheFile);
+      for (Map.Entry<String, String> input : image.inputs.entrySet()) {
+        Path path = Paths.get(input.getKey());
+        if (!Files.isRegularFile(path)) return null;
+        if (!hash(Files.readAllBytes(path)).equals(input.getValue())) return null;
+      }
+      return image;
+    } catch (IOException | IllegalArgumentException e) {
+      return null; // Unreadable, or from another version: compile afresh
+    }
+  }
+
+  /**
+   * Write image to the cache. It is written beside its final name and
+   * moved into place, so a run reading the cache never sees half an image.
+   * The cache only saves time, so a directory that cannot be written to
+   * just means the module is compiled again next time.
+   */
+  private static void save(NetworkImage image, Path cacheFile) {
+    Path temporary = null;
+    try {
+      Files.createDirectories(cacheFile.getParent());
+      temporary = Files.createTempFile(cacheFile.getParent(), "module", ".tmp");
+      image.write(temporary);
+      Files.move(temporary, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | IllegalArgumentException e) {
+      try {
+        if (temporary != null) Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {
+        // Nothing more to do
+      }
+    }
+  }
+
+  /**
+   * SHA-256 of bytes in hex
+   */
+  static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      StringBuilder text = new StringBuilder();
+      for (byte b : digest) {
+        text.append(String.format("%02x", b));
+      }
+      return text.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every Java platform has SHA-256
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package tazyik;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled FlowNetwork saved to a binary file ("tazyik compile"), so a
+ * later run ("tazyik run") can map it and go straight to the day loop
+ * without scanning, parsing or executing the program.
+ *
+ * The file is big-endian: a magic number and format version, the flow
+ * period, then the nodes (name, capacity, rainfall segments with the
+ * parameters of any generated ones, and losses
+ * if the program declares any), the dams
+ * (node, capacity, release policy with any tables inlined), the edges
+ * (sources, destinations, flow period, residual), the reported rivers, the
+ * exported rivers, and the files the network was built from with their
+ * SHA-256 hashes (only recorded for modules, see Modules). Strings are a
+ * length followed by UTF-8 bytes. An image from a different
+ * version is rejected rather than guessed at; recompile the program.
+ */
+class NetworkImage {
+  static final int MAGIC = 0x545A494D; // "TZIM"
+  static final int VERSION = 5;
+
+  // Rainfall segment kinds
+  private static final byte CONSTANT = 0;
+  private static final byte VALUES = 1;
+  private static final byte MARKOV = 2;
+
+  // Release policy kinds
+  private static final byte TARGET = 0;
+  private static final byte SEASONAL = 1;
+  private static final byte RULE_CURVE = 2;
+  private static final byte TABLE = 3;
+
+  final FlowNetwork network;
+  final List<String> reports; // Rivers the program reports on
+  final List<String> exports; // Rivers a program importing it can connect to
+  final Map<String, String> inputs; // Hash of each file it was built from, by path
+
+  NetworkImage(FlowNetwork network, List<String> reports, List<String> exports,
+               Map<String, String> inputs) {
+    this.network = network;
+    this.reports = reports;
+    this.exports = exports;
+    this.inputs = inputs;
+  }
+
+  void write(Path file) throws IOException {
+    if (network.grid != null) {
+      throw new IllegalArgumentException("a network with a rainfall grid cannot be saved; " +
+          "the grid is streamed from its files each run.");
+    }
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(network.flowOutDays);
+
+      Losses losses = network.losses;
+      out.writeInt(network.nodeCount());
+      out.writeBoolean(losses != null);
+      for (int node = 0; node < network.nodeCount(); node++) {
+        writeString(out, network.names[node]);
+        out.writeDouble(network.capacities[node]);
+        writeSeries(out, network.rainfall[node]);
+        if (losses == null) continue;
+        out.writeBoolean(losses.evaporation[node] != null);
+        if (losses.evaporation[node] != null) writeSeries(out, losses.evaporation[node]);
+        out.writeDouble(losses.infiltration[node]);
+        out.writeBoolean(losses.seepage[node] != null);
+        if (losses.seepage[node] != null) {
+          writeTable(out, losses.seepage[node]);
+          writeString(out, losses.seepageFiles[node]);
+        }
+      }
+
+      out.writeInt(network.damCount());
+      for (int dam = 0; dam < network.damCount(); dam++) {
+        out.writeInt(network.damNodes[dam]);
+        out.writeDouble(network.damCapacities[dam]);
+        writePolicy(out, network.damPolicies[dam]);
+      }
+
+      out.writeInt(network.edgeCount());
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        writeInts(out, network.sources[edge]);
+        writeInts(out, network.destinations[edge]);
+        out.writeInt(network.edgeFlowOutDays[edge]);
+        out.writeDouble(network.edgeResiduals[edge]);
+      }
+
+      writeStrings(out, reports);
+      writeStrings(out, exports);
+      out.writeInt(inputs.size());
+      for (Map.Entry<String, String> input : inputs.entrySet()) {
+        writeString(out, input.getKey());
+        writeString(out, input.getValue());
+      }
+    }
+  }
+
+  /**
+   * Map an image and rebuild the network from it. Throws
+   * IllegalArgumentException if the file is not an image of this version.
+   */
+  static NetworkImage read(Path file) throws IOException {
+    ByteBuffer in;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (in.remaining() < 8 || in.getInt() != MAGIC) {
+        throw new IllegalArgumentException("Not a Tazyik network image.");
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Image format version " + version +
+            " is not supported (expected " + VERSION + "); recompile the program.");
+      }
+      int flowOutDays = in.getInt();
+
+      int nodes = in.getInt();
+      boolean hasLosses = in.get() != 0;
+      String[] names = new String[nodes];
+      double[] capacities = new double[nodes];
+      RainfallSeries[] rainfall = new RainfallSeries[nodes];
+      RainfallSeries[] evaporation = new RainfallSeries[nodes];
+      double[] infiltration = new double[nodes];
+      LookupTable[] seepage = new LookupTable[nodes];
+      String[] seepageFiles = new String[nodes];
+      for (int node = 0; node < nodes; node++) {
+        names[node] = readString(in);
+        capacities[node] = in.getDouble();
+        rainfall[node] = readSeries(in);
+        if (!hasLosses) continue;
+        if (in.get() != 0) evaporation[node] = readSeries(in);
+        infiltration[node] = in.getDouble();
+        if (in.get() != 0) {
+          seepage[node] = readTable(in);
+          seepageFiles[node] = readString(in);
+        }
+      }
+
+      int dams = in.getInt();
+      int[] damNodes = new int[dams];
+      double[] damCapacities = new double[dams];
+      ReleasePolicy[] policies = new ReleasePolicy[dams];
+      for (int dam = 0; dam < dams; dam++) {
+        damNodes[dam] = checkNode(in.getInt(), nodes);
+        damCapacities[dam] = in.getDouble();
+        policies[dam] = readPolicy(in);
+      }
+
+      int edges = in.getInt();
+      int[][] sources = new int[edges][];
+      int[][] destinations = new int[edges][];
+      int[] edgeFlowOutDays = new int[edges];
+      double[] edgeResiduals = new double[edges];
+      for (int edge = 0; edge < edges; edge++) {
+        sources[edge] = readNodes(in, nodes);
+        destinations[edge] = readNodes(in, nodes);
+        edgeFlowOutDays[edge] = in.getInt();
+        edgeResiduals[edge] = in.getDouble();
+      }
+
+      List<String> reports = readStrings(in);
+      List<String> exports = readStrings(in);
+      int inputCount = in.getInt();
+      Map<String, String> inputs = new LinkedHashMap<>();
+      for (int i = 0; i < inputCount; i++) {
+        String path = readString(in);
+        inputs.put(path, readString(in));
+      }
+
+      FlowNetwork network = new FlowNetwork(flowOutDays, names, capacities, rainfall,
+          damNodes, damCapacities, policies, sources, destinations, edgeFlowOutDays,
+          edgeResiduals, null,
+          hasLosses ? new Losses(evaporation, infiltration, seepage, seepageFiles) : null);
+      return new NetworkImage(network, reports, exports, inputs);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("The image is truncated or corrupt.");
+    }
+  }
+
+  private static void writeSeries(DataOutputStream out, RainfallSeries series)
+      throws IOException {
+    out.writeInt(series.segmentCount());
+    for (int segment = 0; segment < series.segmentCount(); segment++) {
+      double[] values = series.segmentValues(segment);
+      MarkovRainfall generator = series.segmentGenerator(segment);
+      if (generator != null) {
+        out.writeByte(MARKOV);
+        out.writeDouble(generator.wetProb);
+        out.writeDouble(generator.mean);
+        out.writeInt(generator.days);
+        out.writeLong(generator.seed);
+        out.writeDouble(generator.shape);
+        out.writeDouble(generator.persistence);
+        out.writeLong(generator.stream);
+        out.writeInt(generator.member);
+      } else if (values == null) {
+        out.writeByte(CONSTANT);
+        out.writeDouble(series.segmentAmount(segment));
+        out.writeInt(series.segmentDays(segment));
+      } else {
+        out.writeByte(VALUES);
+        writeDoubles(out, values);
+      }
+    }
+  }
+
+  private static RainfallSeries readSeries(ByteBuffer in) {
+    RainfallSeries series = new RainfallSeries();
+    int segments = in.getInt();
+    for (int segment = 0; segment < segments; segment++) {
+      byte kind = in.get();
+      if (kind == CONSTANT) {
+        double amount = in.getDouble();
+        series.addConstant(amount, in.getInt());
+      } else if (kind == VALUES) {
+        series.addValues(readDoubles(in));
+      } else if (kind == MARKOV) {
+        double wetProb = in.getDouble();
+        double mean = in.getDouble();
+        int days = in.getInt();
+        long seed = in.getLong();
+        double shape = in.getDouble();
+        double persistence = in.getDouble();
+        long stream = in.getLong();
+        series.addGenerated(new MarkovRainfall(wetProb, mean, days, seed, shape, persistence,
+            stream, in.getInt()));
+      } else {
+        throw new IllegalArgumentException("Unknown rainfall segment kind " + kind + ".");
+      }
+    }
+    return series;
+  }
+
+  private static void writePolicy(DataOutputStream out, ReleasePolicy policy)
+      throws IOException {
+    if (policy instanceof ReleasePolicy.Target) {
+      out.writeByte(TARGET);
+      out.writeDouble(((ReleasePolicy.Target) policy).percent);
+    } else if (policy instanceof ReleasePolicy.Seasonal) {
+      out.writeByte(SEASONAL);
+      writeDoubles(out, policy.parameters());
+    } else if (policy instanceof ReleasePolicy.RuleCurve) {
+      ReleasePolicy.RuleCurve curve = (ReleasePolicy.RuleCurve) policy;
+      out.writeByte(RULE_CURVE);
+      writeTable(out, curve.curve);
+      writeString(out, curve.source);
+    } else if (policy instanceof ReleasePolicy.Table) {
+      ReleasePolicy.Table table = (ReleasePolicy.Table) policy;
+      out.writeByte(TABLE);
+      writeTable(out, table.table);
+      writeString(out, table.source);
+    } else {
+      throw new IllegalArgumentException("Cannot save release policy: " + policy.describe());
+    }
+  }
+
+  private static ReleasePolicy readPolicy(ByteBuffer in) {
+    byte kind = in.get();
+    switch (kind) {
+      case TARGET:
+        return new ReleasePolicy.Target(in.getDouble());
+      case SEASONAL:
+        return new ReleasePolicy.Seasonal(readDoubles(in));
+      case RULE_CURVE:
+        return new ReleasePolicy.RuleCurve(readTable(in), readString(in));
+      case TABLE:
+        return new ReleasePolicy.Table(readTable(in), readString(in));
+      default:
+        throw new IllegalArgumentException("Unknown release policy kind " + kind + ".");
+    }
+  }
+
+  private static void writeTable(DataOutputStream out, LookupTable table) throws IOException {
+    writeDoubles(out, table.xs);
+    writeDoubles(out, table.ys);
+  }
+
+  private static LookupTable readTable(ByteBuffer in) {
+    double[] xs = readDoubles(in);
+    return new LookupTable(xs, readDoubles(in));
+  }
+
+  private static void writeString(DataOutputStream out, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> texts) throws IOException {
+    out.writeInt(texts.size());
+    for (String text : texts) {
+      writeString(out, text);
+    }
+  }
+
+  private static List<String> readStrings(ByteBuffer in) {
+    int count = in.getInt();
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      texts.add(readString(in));
+    }
+    return texts;
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  private static double[] readDoubles(ByteBuffer in) {
+    double[] values = new double[in.getInt()];
+    in.asDoubleBuffer().get(values); // The view starts at the buffer's position
+    in.position(in.position() + values.length * Double.BYTES);
+    return values;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  /**
+   * Node indices, each a node of the image or -1 (pruned)
+   */
+  private static int[] readNodes(ByteBuffer in, int nodes) {
+    int[] values = new int[in.getInt()];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + values.length * Integer.BYTES);
+    for (int value : values) {
+      if (value != -1) checkNode(value, nodes);
+    }
+    return values;
+  }
+
+  private static int checkNode(int node, int nodes) {
+    if (node < 0 || node >= nodes) {
+      throw new IllegalArgumentException("The image is truncated or corrupt.");
+    }
+    return node;
+  }
+}
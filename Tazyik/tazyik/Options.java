@@ -0,0 +1,237 @@
+package tazyik;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options for one Tazyik run.
+ */
+class Options {
+  String sourceFile;
+  final List<String> reports = new ArrayList<>(); // --report <river>, repeatable
+  boolean summary = false; // --summary: no per-day output
+  boolean fastForward = false; // --fast-forward: jump over linear stretches
+  double epsilon = 0.0; // --epsilon <ML>: rainfall and flows treated as zero
+  int scenarios = 0; // --scenarios <n>: run n rainfall scenarios in lockstep
+  double spread = 0.5; // --spread <fraction>: how far scenario rainfall varies
+  long seed = 42; // --seed <n>: random seed for the scenarios
+  boolean offHeap = false; // --off-heap: keep simulation state in direct memory
+  String stateFile; // --state-file <path>: keep simulation state in a mapped file
+  ReleaseOptimiser.Objective optimise; // --optimise <objective>: tune dam releases
+  String calibrate; // --calibrate <observed.csv>: fit flow routing to observations
+  Calibration.Metric metric = Calibration.Metric.NSE; // --metric <metric>: fit measure
+  String sensitivity; // --sensitivity <river>: derivatives of the river's peak
+  int live = 0; // --live <days>: forecast <days> ahead from observations on stdin
+  int port = 0; // --port <n>: take live observations on a local socket instead
+  boolean memoise = false; // --memoise: simulate identical sub-catchments once
+  boolean fixedPoint = false; // --fixed-point: keep volumes as whole micro-litres
+  double massBalance = -1; // --mass-balance <ML>: check water is conserved, -1 if not
+  String profile; // --profile <file>: time each step, writing folded stacks to <file>
+  Aggregation.Period resolution; // --resolution <period>: write periodic totals only
+  String compileTo; // compile <source> <image>: save the compiled network instead of running
+  boolean image = false; // run <image>: the source file is a compiled network image
+
+  /**
+   * Parse the command line, returning null if it is not a valid invocation.
+   */
+  static Options parse(String[] args) {
+    Options options = new Options();
+    boolean compile = args.length > 0 && args[0].equals("compile");
+    options.image = args.length > 0 && args[0].equals("run");
+    for (int i = compile || options.image ? 1 : 0; i < args.length; i++) {
+      String arg = args[i];
+      switch (arg) {
+        case "--report":
+          if (++i == args.length) return null;
+          options.reports.add(args[i]);
+          break;
+        case "--summary":
+          options.summary = true;
+          break;
+        case "--fast-forward":
+          options.fastForward = true;
+          break;
+        case "--memoise":
+          options.memoise = true;
+          break;
+        case "--fixed-point":
+          options.fixedPoint = true;
+          break;
+        case "--resolution":
+          if (++i == args.length) return null;
+          options.resolution = Aggregation.Period.named(args[i]);
+          if (options.resolution == null) return null;
+          break;
+        case "--epsilon":
+          if (++i == args.length) return null;
+          try {
+            options.epsilon = Double.parseDouble(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          if (!(options.epsilon >= 0)) return null;
+          break;
+        case "--mass-balance":
+          if (++i == args.length) return null;
+          try {
+            options.massBalance = Double.parseDouble(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          if (!(options.massBalance >= 0)) return null;
+          break;
+        case "--profile":
+          if (++i == args.length) return null;
+          options.profile = args[i];
+          break;
+        case "--scenarios":
+          if (++i == args.length) return null;
+          try {
+            options.scenarios = Integer.parseInt(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          if (options.scenarios <= 0) return null;
+          break;
+        case "--spread":
+          if (++i == args.length) return null;
+          try {
+            options.spread = Double.parseDouble(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          if (!(options.spread >= 0 && options.spread <= 1)) return null;
+          break;
+        case "--off-heap":
+          options.offHeap = true;
+          break;
+        case "--state-file":
+          if (++i == args.length) return null;
+          options.stateFile = args[i];
+          break;
+        case "--optimise":
+          if (++i == args.length) return null;
+          options.optimise = ReleaseOptimiser.Objective.named(args[i]);
+          if (options.optimise == null) return null;
+          break;
+        case "--calibrate":
+          if (++i == args.length) return null;
+          options.calibrate = args[i];
+          break;
+        case "--sensitivity":
+          if (++i == args.length) return null;
+          options.sensitivity = args[i];
+          break;
+        case "--live":
+        case "--port":
+          if (++i == args.length) return null;
+          int value;
+          try {
+            value = Integer.parseInt(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          if (value <= 0) return null;
+          if (arg.equals("--live")) {
+            options.live = value;
+          } else {
+            options.port = value;
+          }
+          break;
+        case "--metric":
+          if (++i == args.length) return null;
+          options.metric = Calibration.Metric.named(args[i]);
+          if (options.metric == null) return null;
+          break;
+        case "--seed":
+          if (++i == args.length) return null;
+          try {
+            options.seed = Long.parseLong(args[i]);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+          break;
+        default:
+          if (arg.startsWith("--")) return null;
+          if (options.sourceFile == null) {
+            options.sourceFile = arg;
+          } else if (compile && options.compileTo == null) {
+            options.compileTo = arg;
+          } else {
+            return null;
+          }
+          break;
+      }
+    }
+    String conflict = conflict(options);
+    if (conflict != null) {
+      System.err.println(conflict);
+      return null;
+    }
+    if (compile && options.compileTo == null) return null;
+    return options.sourceFile == null ? null : options;
+  }
+
+  /**
+   * What is wrong with the combination of options given, or null if they
+   * can all be used together
+   */
+  private static String conflict(Options options) {
+    Map<String, Boolean> given = new HashMap<>();
+    given.put("--fast-forward", options.fastForward);
+    given.put("--memoise", options.memoise);
+    given.put("--fixed-point", options.fixedPoint);
+    given.put("--resolution", options.resolution != null);
+    given.put("--mass-balance", options.massBalance >= 0);
+    given.put("--profile", options.profile != null);
+    given.put("--scenarios", options.scenarios > 0);
+    given.put("--optimise", options.optimise != null);
+    given.put("--calibrate", options.calibrate != null);
+    given.put("--sensitivity", options.sensitivity != null);
+    given.put("--live", options.live > 0);
+    given.put("--off-heap", options.offHeap);
+    given.put("--state-file", options.stateFile != null);
+    given.put("--epsilon", options.epsilon > 0);
+
+    String conflict;
+    if (options.port > 0 && options.live == 0) return "--port can only be used with --live.";
+    // Memoising replaces days of a single run, which these either skip
+    // or do not make
+    conflict = conflict(given, "--memoise", "--fast-forward", "--scenarios", "--sensitivity",
+        "--live");
+    if (conflict != null) return conflict;
+    // Both skip the days the totals are made from
+    conflict = conflict(given, "--resolution", "--fast-forward", "--memoise");
+    if (conflict != null) return conflict;
+    // Only the plain day loop has a fixed-point version
+    conflict = conflict(given, "--fixed-point", "--fast-forward", "--memoise", "--resolution",
+        "--scenarios", "--optimise", "--calibrate", "--sensitivity", "--live", "--off-heap",
+        "--state-file");
+    if (conflict != null) return conflict;
+    // Only the plain day loop reports what it does to the water
+    conflict = conflict(given, "--mass-balance", "--fast-forward", "--memoise", "--fixed-point",
+        "--scenarios", "--optimise", "--calibrate", "--sensitivity", "--live");
+    if (conflict != null) return conflict;
+    conflict = conflict(given, "--profile", "--fixed-point", "--scenarios", "--optimise",
+        "--calibrate", "--sensitivity", "--live");
+    if (conflict != null) return conflict;
+    // The scenarios are stepped by their own loop, which has no epsilon
+    conflict = conflict(given, "--epsilon", "--scenarios");
+    if (conflict != null) return conflict;
+    return null;
+  }
+
+  /**
+   * If option was given, the message for the first of others that was
+   * given too
+   */
+  private static String conflict(Map<String, Boolean> given, String option, String... others) {
+    if (!given.get(option)) return null;
+    for (String other : others) {
+      if (given.get(other)) return option + " cannot be used with " + other + ".";
+    }
+    return null;
+  }
+}
@@ -8,11 +8,15 @@ class Parser {
   private static final class ParseError extends RuntimeException {
   }
 
-  private final List<Token> tokens;
-  private int current = 0;
+  // Tokens are pulled from the scanner on demand; the parser only ever
+  // needs the token it is looking at and the one it just consumed.
+  private final Scanner scanner;
+  private Token current;
+  private Token previous;
 
-  Parser(List<Token> tokens) {
-    this.tokens = tokens;
+  Parser(Scanner scanner) {
+    this.scanner = scanner;
+    this.current = scanner.nextToken();
   }
 
   List<Object> parseProgram() {
@@ -34,6 +38,16 @@ class Parser {
       return flowDecl();
     if (match(TokenType.CAPACITY))
       return capacityDecl();
+    if (match(TokenType.REPORT))
+      return reportDecl();
+    if (match(TokenType.RAINFALL))
+      return gridDecl();
+    if (match(TokenType.LOSS))
+      return lossDecl();
+    if (match(TokenType.IMPORT))
+      return importDecl();
+    if (match(TokenType.EXPORT))
+      return exportDecl();
     if (check(TokenType.IDENTIFIER))
       return riverUpdate();
     throw error(peek(), "Expect declaration.");
@@ -80,6 +94,74 @@ class Parser {
     return new Stmt.CapacityDecl(name, (Double) value.literal);
   }
 
+  private Stmt.ReportDecl reportDecl() {
+    Token name = consume(TokenType.IDENTIFIER, "Expect river name after 'Report'.");
+    consume(TokenType.SEMICOLON, "Expect ';' after report declaration.");
+    return new Stmt.ReportDecl(name);
+  }
+
+  private Stmt.GridDecl gridDecl() {
+    // Rainfall grid "cells file" weights "weights file"
+    Token kind = consume(TokenType.IDENTIFIER, "Expect 'grid' after 'Rainfall'.");
+    if (!kind.lexeme().equals("grid")) {
+      throw error(kind, "Unknown rainfall source '" + kind.lexeme() + "'. Expect 'grid'.");
+    }
+    Token grid = consume(TokenType.STRING, "Expect grid file name in quotes after 'grid'.");
+    Token weights = consume(TokenType.IDENTIFIER, "Expect 'weights' after grid file name.");
+    if (!weights.lexeme().equals("weights")) {
+      throw error(weights, "Expect 'weights' after grid file name.");
+    }
+    Token file = consume(TokenType.STRING, "Expect weights file name in quotes after 'weights'.");
+    consume(TokenType.SEMICOLON, "Expect ';' after rainfall grid declaration.");
+    return new Stmt.GridDecl(kind, (String) grid.literal, (String) file.literal);
+  }
+
+  private Stmt.LossDecl lossDecl() {
+    // Loss name = evaporation <rainfall> | infiltration N ML | seepage "file"
+    Token name = consume(TokenType.IDENTIFIER, "Expect river name after 'Loss'.");
+    consume(TokenType.EQUAL, "Expect '=' after river name.");
+    Token kind = consume(TokenType.IDENTIFIER, "Expect loss kind after '='.");
+    Expr argument;
+    switch (kind.lexeme()) {
+      case "evaporation":
+        argument = primary();
+        break;
+      case "infiltration":
+        Token rate = consume(TokenType.NUMBER, "Expect infiltration rate.");
+        consume(TokenType.ML, "Expect 'ML' after infiltration rate.");
+        argument = new Expr.Literal(rate.literal);
+        break;
+      case "seepage":
+        Token file = consume(TokenType.STRING, "Expect file name in quotes after 'seepage'.");
+        argument = new Expr.Literal(file.literal);
+        break;
+      default:
+        throw error(kind, "Unknown loss '" + kind.lexeme() +
+            "'. Expect 'evaporation', 'infiltration' or 'seepage'.");
+    }
+    consume(TokenType.SEMICOLON, "Expect ';' after loss declaration.");
+    return new Stmt.LossDecl(name, kind, argument);
+  }
+
+  private Stmt.ImportDecl importDecl() {
+    // Import "file" as name
+    Token keyword = previous();
+    Token file = consume(TokenType.STRING, "Expect module file name in quotes after 'Import'.");
+    Token as = consume(TokenType.IDENTIFIER, "Expect 'as' after module file name.");
+    if (!as.lexeme().equals("as")) {
+      throw error(as, "Expect 'as' after module file name.");
+    }
+    Token alias = consume(TokenType.IDENTIFIER, "Expect module name after 'as'.");
+    consume(TokenType.SEMICOLON, "Expect ';' after import.");
+    return new Stmt.ImportDecl(keyword, (String) file.literal, alias);
+  }
+
+  private Stmt.ExportDecl exportDecl() {
+    Token name = consume(TokenType.IDENTIFIER, "Expect river name after 'Export'.");
+    consume(TokenType.SEMICOLON, "Expect ';' after export declaration.");
+    return new Stmt.ExportDecl(name);
+  }
+
   private Stmt.DamDecl damDecl() {
     Token name = consume(TokenType.IDENTIFIER, "Expect dam name.");
     consume(TokenType.EQUAL, "Expect '=' after dam name.");
@@ -88,14 +170,36 @@ class Parser {
     
     // Make release parameter optional - default to 80%
     double releasePercent = 80.0;
+    Token policy = null;
+    Expr policyArgument = null;
     if (match(TokenType.RELEASE)) {
       Token releaseToken = consume(TokenType.NUMBER, "Expect release percentage.");
       consume(TokenType.PERCENT, "Expect '%' after release percentage.");
       releasePercent = (Double) releaseToken.literal;
+    } else if (match(TokenType.POLICY)) {
+      // policy table "file" | policy curve "file" | policy seasonal [..]%
+      policy = consume(TokenType.IDENTIFIER, "Expect policy kind after 'policy'.");
+      switch (policy.lexeme()) {
+        case "table":
+        case "curve":
+          Token file = consume(TokenType.STRING, "Expect file name in quotes after '" +
+              policy.lexeme() + "'.");
+          policyArgument = new Expr.Literal(file.literal);
+          break;
+        case "seasonal":
+          consume(TokenType.LBRACKET, "Expect '[' after 'seasonal'.");
+          policyArgument = numberList("seasonal targets");
+          consume(TokenType.PERCENT, "Expect '%' after seasonal targets.");
+          break;
+        default:
+          throw error(policy, "Unknown release policy '" + policy.lexeme() +
+              "'. Expect 'table', 'curve' or 'seasonal'.");
+      }
     }
     
     consume(TokenType.SEMICOLON, "Expect ';' after dam declaration.");
-    return new Stmt.DamDecl(name, (Double) capacity.literal, releasePercent);
+    return new Stmt.DamDecl(name, (Double) capacity.literal, releasePercent,
+        policy, policyArgument);
   }
 
   private Expr expression() {
@@ -130,31 +234,24 @@ class Parser {
         Token daysToken = consume(TokenType.NUMBER, "Expect number of days.");
         consume(TokenType.RPAREN, "Expect ')' after days.");
         consume(TokenType.MM, "Expect 'mm' after rainfall.");
-        // Store rainfall info as a specially formatted string
-        String rainfallInfo = "RAINFALL:" + numberToken.literal + ":" + daysToken.literal;
-        return new Expr.Literal(rainfallInfo);
+        return new Expr.Rainfall((Double) numberToken.literal,
+            ((Double) daysToken.literal).intValue());
       }
       // Simple rainfall: NUMBER mm
       if (match(TokenType.MM)) {
-        String rainfallInfo = "RAINFALL:" + numberToken.literal + ":1";
-        return new Expr.Literal(rainfallInfo);
+        return new Expr.Rainfall((Double) numberToken.literal, 1);
       }
       return new Expr.Literal(numberToken.literal);
     }
     if (match(TokenType.LBRACKET)) {
-      // Array rainfall: [NUMBER (, NUMBER)* ] mm
-      List<Expr> elements = new ArrayList<>();
-      do {
-        if (check(TokenType.NUMBER)) {
-          elements.add(new Expr.Literal(advance().literal));
-        }
-      } while (match(TokenType.COMMA));
-      consume(TokenType.RBRACKET, "Expect ']' after rainfall array.");
-      consume(TokenType.MM, "Expect 'mm' after rainfall array.");
-      return new Expr.ArrayLiteral(elements);
+      return numberArray();
     }
     if (match(TokenType.IDENTIFIER)) {
-      return new Expr.Variable(previous());
+      Token name = previous();
+      if (match(TokenType.LPAREN)) {
+        return call(name);
+      }
+      return new Expr.Variable(name);
     }
     if (match(TokenType.LPAREN)) {
       Expr expr = expression();
@@ -164,6 +261,53 @@ class Parser {
     throw error(peek(), "Expect expression.");
   }
 
+  /**
+   * Rainfall generator: IDENTIFIER ( (IDENTIFIER = NUMBER (, IDENTIFIER = NUMBER)*)? ),
+   * after the '('
+   */
+  private Expr call(Token callee) {
+    List<Token> parameters = new ArrayList<>();
+    DoubleList arguments = new DoubleList();
+    if (!check(TokenType.RPAREN)) {
+      do {
+        parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+        consume(TokenType.EQUAL, "Expect '=' after parameter name.");
+        Token value = consume(TokenType.NUMBER, "Expect number after '='.");
+        arguments.add((Double) value.literal);
+      } while (match(TokenType.COMMA));
+    }
+    consume(TokenType.RPAREN, "Expect ')' after arguments.");
+    return new Expr.Call(callee, parameters, arguments.toArray());
+  }
+
+  /**
+   * Array rainfall: [NUMBER (, NUMBER)* ] mm
+   * Values go straight into a primitive array. Once the parser is looking at
+   * a number, the scanner reads the rest of a plain "n, n, n" run itself, so
+   * large arrays do not produce a token per element.
+   */
+  private Expr numberArray() {
+    Expr.NumberArray array = numberList("rainfall array");
+    consume(TokenType.MM, "Expect 'mm' after rainfall array.");
+    return array;
+  }
+
+  /**
+   * [NUMBER (, NUMBER)* ] without a unit, after the '['
+   */
+  private Expr.NumberArray numberList(String what) {
+    DoubleList values = new DoubleList();
+    do {
+      if (check(TokenType.NUMBER)) {
+        values.add((Double) peek().literal);
+        scanner.numberRun(values);
+        advance();
+      }
+    } while (match(TokenType.COMMA));
+    consume(TokenType.RBRACKET, "Expect ']' after " + what + ".");
+    return new Expr.NumberArray(values.toArray());
+  }
+
   // Utility methods
   private boolean match(TokenType... types) {
     for (TokenType type : types) {
@@ -188,8 +332,10 @@ class Parser {
   }
 
   private Token advance() {
-    if (!isAtEnd())
-      current++;
+    if (!isAtEnd()) {
+      previous = current;
+      current = scanner.nextToken();
+    }
     return previous();
   }
 
@@ -198,20 +344,15 @@ class Parser {
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return current;
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
-  }
-
-  // Allows previous(-n) for lookback
-  private Token previous(int offset) {
-    return tokens.get(current - 1 - offset);
+    return previous;
   }
 
   private ParseError error(Token token, String message) {
-    Tazyik.error(token.line, " at '" + token.lexeme + "': " + message);
+    Tazyik.error(token.line, " at '" + token.lexeme() + "': " + message);
     return new ParseError();
   }
 }
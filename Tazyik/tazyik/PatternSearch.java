@@ -0,0 +1,80 @@
+package tazyik;
+
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Derivative-free minimisation within bounds by parallel pattern search.
+ * Each round moves every parameter up and down by the current step (times
+ * that parameter's scale), evaluates all of those candidates
+ * concurrently on the common fork-join pool, and moves to the best one,
+ * halving the step when none improves.
+ *
+ * The objective is called from several threads at once, so it must not
+ * share mutable state between calls.
+ */
+class PatternSearch {
+  private final double[] lower;
+  private final double[] upper;
+  private final double[] scales; // Units of each parameter per step
+  private final double firstStep;
+  private final double lastStep;
+  private final int maxRounds;
+
+  double startScore;
+  double[] best; // Best parameters found so far
+  double bestScore;
+  long evaluations = 0;
+
+  PatternSearch(double[] lower, double[] upper, double[] scales, double firstStep,
+                double lastStep, int maxRounds) {
+    this.lower = lower;
+    this.upper = upper;
+    this.scales = scales;
+    this.firstStep = firstStep;
+    this.lastStep = lastStep;
+    this.maxRounds = maxRounds;
+  }
+
+  /**
+   * Minimise the objective starting from start; the result is left in best
+   * and bestScore.
+   */
+  void minimise(double[] start, ToDoubleFunction<double[]> objective) {
+    best = start.clone();
+    bestScore = objective.applyAsDouble(best);
+    startScore = bestScore;
+    evaluations++;
+    double step = firstStep;
+    for (int round = 0; round < maxRounds && step >= lastStep; round++) {
+      double[][] candidates = new double[2 * best.length][];
+      for (int p = 0; p < best.length; p++) {
+        candidates[2 * p] = moved(best, p, step);
+        candidates[2 * p + 1] = moved(best, p, -step);
+      }
+      double[] scores = new double[candidates.length];
+      IntStream.range(0, candidates.length).parallel()
+          .forEach(i -> scores[i] = objective.applyAsDouble(candidates[i]));
+      evaluations += candidates.length;
+
+      // Lowest index wins ties, so the result does not depend on timing
+      int winner = -1;
+      for (int i = 0; i < scores.length; i++) {
+        if (scores[i] < bestScore && (winner < 0 || scores[i] < scores[winner])) winner = i;
+      }
+      if (winner >= 0) {
+        best = candidates[winner];
+        bestScore = scores[winner];
+      } else {
+        step /= 2;
+      }
+    }
+  }
+
+  private double[] moved(double[] parameters, int index, double by) {
+    double[] moved = parameters.clone();
+    moved[index] = Math.max(lower[index],
+        Math.min(upper[index], moved[index] + by * scales[index]));
+    return moved;
+  }
+}
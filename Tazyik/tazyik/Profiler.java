@@ -0,0 +1,227 @@
+package tazyik;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Where the time of a run goes, by node, dam and flow.
+ *
+ * The simulation's steps are a node's rainfall and losses, a flow's
+ * arrival and departure, and a dam's release. Reading the clock takes
+ * longer than many steps do, so after the first FULL_STEPS steps, which are
+ * all timed, each step is timed with probability 1 / SAMPLE and its time
+ * counted SAMPLE times. The gaps between timed steps are random rather than
+ * fixed, so a network whose node count is a multiple of the gap cannot have
+ * the same nodes timed every day. The simulation's loops compare each step
+ * with the next one to time and take a separate path for it, so a step that
+ * is not timed does no more work than without the profiler.
+ *
+ * A timed step also counts its operations, scaled the same way: rainfall
+ * values read and volumes changed for a node, pending slots delivered for
+ * an arrival, source volumes read and changed and pending slots written
+ * for a departure, and one for each release. Whole days, and the parts of
+ * a day that are not any one step, are always timed.
+ *
+ * The report ranks the steps by estimated time. The same estimates can be
+ * written as folded stacks ("day loop;departures;flow 3 (a + b -> c) 1234",
+ * in microseconds), which flame graph tools read directly.
+ */
+class Profiler {
+  static final int FULL_STEPS = 4096; // Steps timed before sampling starts
+  static final int SAMPLE = 1024; // Then one step in this many is timed, on average
+  static final int WATER = 0; // Per node: rainfall and losses
+  static final int ARRIVALS = 1; // Per flow
+  static final int RELEASES = 2; // Per dam
+  static final int DEPARTURES = 3; // Per flow
+  static final int GRID = 0; // Parts of a day that are not any one node or flow
+  static final int REPLAY = 1;
+  static final int AGGREGATION = 2;
+
+  private static final String[] STAGES =
+      {"rainfall and losses", "arrivals", "dam releases", "departures"};
+  private static final String[] STEPS = {"water", "arrival", "release", "departure"};
+  private static final String[] PARTS = {"rainfall grid", "memoised replay", "aggregation"};
+  private static final int SHOWN = 20; // Steps in the ranked report
+
+  private final FlowNetwork network;
+  private final long[][] nanos; // Per stage and node, dam or flow, estimated for the run
+  private final long[][] operations; // Per stage and node, dam or flow, estimated for the run
+  private final long[] partNanos = new long[PARTS.length];
+  private long dayNanos; // Whole days
+  private long fastForwardNanos; // Always timed, as it replaces whole stretches of days
+  private int days = 0; // Days simulated one at a time
+  private long steps = 0;
+  private long timedSteps = 0;
+  private long untilTimed = 1; // Steps up to and including the next one to time
+  private long weight = 1; // Steps the next timed step stands for
+  private int loopSteps; // Steps in the loop being run
+  private final SplittableRandom random = new SplittableRandom(42);
+
+  Profiler(FlowNetwork network) {
+    this.network = network;
+    int[] sizes = {network.nodeCount(), network.edgeCount(), network.damCount(),
+        network.edgeCount()};
+    nanos = new long[sizes.length][];
+    operations = new long[sizes.length][];
+    for (int stage = 0; stage < sizes.length; stage++) {
+      nanos[stage] = new long[sizes[stage]];
+      operations[stage] = new long[sizes[stage]];
+    }
+  }
+
+  long startDay() {
+    days++;
+    return System.nanoTime();
+  }
+
+  void endDay(long started) {
+    dayNanos += System.nanoTime() - started;
+  }
+
+  /**
+   * Start a loop of steps: the index of its first step to time, steps if
+   * none is
+   */
+  int firstTimed(int steps) {
+    this.steps += steps;
+    loopSteps = steps;
+    if (untilTimed > steps) {
+      untilTimed -= steps;
+      return steps;
+    }
+    return (int) untilTimed - 1;
+  }
+
+  /**
+   * Account for the timed step of stage at index step of its loop, for a
+   * node, dam or flow, started at System.nanoTime(). Returns the index of
+   * the next step of the loop to time, or the loop's length if none is.
+   */
+  int record(int stage, int index, int count, long started, int step) {
+    long elapsed = System.nanoTime() - started;
+    nanos[stage][index] += elapsed * weight;
+    operations[stage][index] += count * weight;
+    timedSteps++;
+    untilTimed = 1;
+    if (timedSteps >= FULL_STEPS) {
+      // Geometric gaps: every later step is equally likely to be timed
+      weight = SAMPLE;
+      untilTimed += (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1.0 / SAMPLE));
+    }
+    long next = step + untilTimed;
+    if (next < loopSteps) return (int) next;
+    untilTimed = next - loopSteps + 1;
+    return loopSteps;
+  }
+
+  /**
+   * Account for a part of the day that is not a step of any one node or
+   * flow, started at System.nanoTime()
+   */
+  void recordPart(int part, long started) {
+    partNanos[part] += System.nanoTime() - started;
+  }
+
+  void recordFastForward(long started) {
+    fastForwardNanos += System.nanoTime() - started;
+  }
+
+  /**
+   * A node, dam, flow or other part of the run, with its estimated time
+   */
+  private static class Entry {
+    final String stack; // Its frames, outermost first, separated by ';'
+    final String name;
+    final long nanos;
+    final long operations;
+
+    Entry(String stack, String name, long nanos, long operations) {
+      this.stack = stack;
+      this.name = name;
+      this.nanos = nanos;
+      this.operations = operations;
+    }
+  }
+
+  /**
+   * Every step and part of the run with an estimated time, in the order
+   * the day loop takes them
+   */
+  private List<Entry> entries() {
+    List<Entry> entries = new ArrayList<>();
+    long attributed = 0;
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      for (int index = 0; index < nanos[stage].length; index++) {
+        attributed += nanos[stage][index];
+        if (nanos[stage][index] == 0 && operations[stage][index] == 0) continue;
+        String name = name(stage, index);
+        entries.add(new Entry("day loop;" + STAGES[stage] + ";" + name, STEPS[stage] + " " + name,
+            nanos[stage][index], operations[stage][index]));
+      }
+    }
+    for (int part = 0; part < PARTS.length; part++) {
+      attributed += partNanos[part];
+      if (partNanos[part] > 0) {
+        entries.add(new Entry("day loop;" + PARTS[part], PARTS[part], partNanos[part], 0));
+      }
+    }
+    // Time in the day loop outside every step: the loops themselves, and
+    // choosing the days and flows to visit
+    long other = Math.max(0, dayNanos - attributed);
+    if (other > 0) entries.add(new Entry("day loop", "day loop (other)", other, 0));
+    if (fastForwardNanos > 0) {
+      entries.add(new Entry("fast-forward", "fast-forward", fastForwardNanos, 0));
+    }
+    return entries;
+  }
+
+  private String name(int stage, int index) {
+    if (stage == WATER) return network.names[index];
+    if (stage == RELEASES) return network.names[network.damNodes[index]];
+    return "flow " + (index + 1) + " (" + Simulation.names(network, network.sources[index]) +
+        " -> " + Simulation.names(network, network.destinations[index]) + ")";
+  }
+
+  /**
+   * Print the steps that took longest, after the final summary
+   */
+  void printReport() {
+    List<Entry> entries = entries();
+    long total = 0;
+    for (Entry entry : entries) total += entry.nanos;
+    entries.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+
+    System.out.println("\n=== Profile ===");
+    System.out.println("Simulated " + days + " days one at a time in " +
+        String.format("%.3f", dayNanos / 1e6) + "ms; timed " + timedSteps + " of " + steps +
+        " steps");
+    System.out.println(String.format("%12s %7s %12s  %s", "time (ms)", "share", "operations",
+        "step"));
+    for (int i = 0; i < Math.min(SHOWN, entries.size()); i++) {
+      Entry entry = entries.get(i);
+      System.out.println(String.format("%12.3f %6.1f%% %12d  %s", entry.nanos / 1e6,
+          total > 0 ? entry.nanos * 100.0 / total : 0.0, entry.operations, entry.name));
+    }
+    if (entries.size() > SHOWN) {
+      System.out.println("  ... and " + (entries.size() - SHOWN) + " more");
+    }
+  }
+
+  /**
+   * Write the estimated times as folded stacks, one line per step with
+   * its microseconds
+   */
+  void writeFolded(Path file) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+      for (Entry entry : entries()) {
+        long micros = entry.nanos / 1000;
+        if (micros > 0) out.println(entry.stack + " " + micros);
+      }
+    }
+  }
+}
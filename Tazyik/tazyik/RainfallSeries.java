@@ -0,0 +1,251 @@
+package tazyik;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * Daily rainfall for one river, kept as the segments it was declared with
+ * rather than one value per day. A "20(3)mm" spec is a single constant
+ * segment and a "[..]mm" array is a segment over the parsed double[], so
+ * neither is expanded into a list. A "markov(..)" segment is generated as
+ * it is read (see MarkovRainfall).
+ *
+ * Lookups do not change the series, so one compiled network can be
+ * simulated from several threads at once.
+ */
+class RainfallSeries {
+  private double[] amounts = new double[2]; // Constant amount per segment
+  private double[][] values = new double[2][]; // Per-day values, or null if constant
+  private MarkovRainfall[] generators = new MarkovRainfall[2]; // Or null if declared
+  private int[] ends = new int[2]; // Last day covered by each segment
+  private int segments = 0;
+
+  void addConstant(double amount, int days) {
+    if (days <= 0) return;
+    append(amount, null, days);
+  }
+
+  /**
+   * Remove every segment, keeping the arrays for the next ones
+   */
+  void clear() {
+    Arrays.fill(values, 0, segments, null);
+    Arrays.fill(generators, 0, segments, null);
+    segments = 0;
+  }
+
+  void addValues(double[] days) {
+    if (days.length == 0) return;
+    append(0.0, days, days.length);
+  }
+
+  void addGenerated(MarkovRainfall generator) {
+    append(0.0, null, generator.days);
+    generators[segments - 1] = generator;
+  }
+
+  private void append(double amount, double[] dayValues, int days) {
+    if (segments == ends.length) {
+      amounts = Arrays.copyOf(amounts, segments * 2);
+      values = Arrays.copyOf(values, segments * 2);
+      generators = Arrays.copyOf(generators, segments * 2);
+      ends = Arrays.copyOf(ends, segments * 2);
+    }
+    amounts[segments] = amount;
+    values[segments] = dayValues;
+    generators[segments] = null;
+    ends[segments] = days() + days;
+    segments++;
+  }
+
+  /**
+   * Number of days with declared rainfall.
+   */
+  int days() {
+    return segments == 0 ? 0 : ends[segments - 1];
+  }
+
+  /**
+   * Rainfall on the given day (1-based), or 0 past the end of the series.
+   */
+  double on(int day) {
+    if (day < 1 || day > days()) return 0.0;
+    int segment = segmentOf(day);
+    if (generators[segment] != null) return generators[segment].on(day - 1 - start(segment));
+    double[] dayValues = values[segment];
+    return dayValues == null ? amounts[segment] : dayValues[day - 1 - start(segment)];
+  }
+
+  /**
+   * Number of consecutive days, starting at day, that have the same rainfall
+   * as day. Past the end of the series that is every remaining day.
+   */
+  int constantRun(int day) {
+    if (day > days()) return Integer.MAX_VALUE;
+    int segment = segmentOf(day);
+    if (generators[segment] != null) {
+      int run = 1;
+      double today = on(day);
+      while (day + run <= ends[segment] && on(day + run) == today) run++;
+      return run;
+    }
+    double[] dayValues = values[segment];
+    if (dayValues == null) {
+      boolean last = segment == segments - 1;
+      return last && amounts[segment] == 0.0 ? Integer.MAX_VALUE : ends[segment] - day + 1;
+    }
+    int offset = start(segment);
+    int run = 1;
+    while (day + run <= ends[segment]
+        && dayValues[day + run - 1 - offset] == dayValues[day - 1 - offset]) {
+      run++;
+    }
+    return run;
+  }
+
+  /**
+   * First day from day onwards with more than epsilon of rainfall, or
+   * Integer.MAX_VALUE if there is none.
+   */
+  int nextWetDay(int day, double epsilon) {
+    day = Math.max(day, 1);
+    while (day <= days()) {
+      int segment = segmentOf(day);
+      double[] dayValues = values[segment];
+      if (generators[segment] != null) {
+        for (int d = day; d <= ends[segment]; d++) {
+          if (on(d) > epsilon) return d;
+        }
+      } else if (dayValues == null) {
+        if (amounts[segment] > epsilon) return day;
+      } else {
+        int offset = start(segment);
+        for (int d = day; d <= ends[segment]; d++) {
+          if (dayValues[d - 1 - offset] > epsilon) return d;
+        }
+      }
+      day = ends[segment] + 1;
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * The segment covering day, which must be within the series
+   */
+  private int segmentOf(int day) {
+    if (day <= ends[0]) return 0; // Most series are a single segment
+    int found = Arrays.binarySearch(ends, 0, segments, day);
+    return found >= 0 ? found : -found - 1;
+  }
+
+  private int start(int segment) {
+    return segment == 0 ? 0 : ends[segment - 1];
+  }
+
+  int segmentCount() {
+    return segments;
+  }
+
+  int segmentDays(int segment) {
+    return ends[segment] - start(segment);
+  }
+
+  double segmentAmount(int segment) {
+    return amounts[segment];
+  }
+
+  /**
+   * The per-day values of a segment, or null if it is constant or generated
+   */
+  double[] segmentValues(int segment) {
+    return values[segment];
+  }
+
+  /**
+   * The generator of a segment, or null if its rainfall was declared
+   */
+  MarkovRainfall segmentGenerator(int segment) {
+    return generators[segment];
+  }
+
+  /**
+   * Whether any of the rainfall is generated
+   */
+  boolean generated() {
+    for (int segment = 0; segment < segments; segment++) {
+      if (generators[segment] != null) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The series with its generated segments drawn for ensemble member
+   * instead, or this series if none are generated
+   */
+  RainfallSeries member(int member) {
+    if (!generated()) return this;
+    RainfallSeries series = new RainfallSeries();
+    for (int segment = 0; segment < segments; segment++) {
+      if (generators[segment] != null) {
+        series.addGenerated(generators[segment].member(member));
+      } else if (values[segment] != null) {
+        series.addValues(values[segment]);
+      } else {
+        series.addConstant(amounts[segment], segmentDays(segment));
+      }
+    }
+    return series;
+  }
+
+  /**
+   * Whether other was declared with the same segments and values
+   */
+  boolean sameAs(RainfallSeries other) {
+    if (segments != other.segments) return false;
+    for (int segment = 0; segment < segments; segment++) {
+      if (ends[segment] != other.ends[segment]
+          || Double.compare(amounts[segment], other.amounts[segment]) != 0
+          || !Arrays.equals(values[segment], other.values[segment])
+          || !Objects.equals(generators[segment], other.generators[segment])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A hash consistent with sameAs
+   */
+  int contentHash() {
+    int hash = segments;
+    for (int segment = 0; segment < segments; segment++) {
+      hash = 31 * hash + ends[segment];
+      hash = 31 * hash + Double.hashCode(amounts[segment]);
+      hash = 31 * hash + Arrays.hashCode(values[segment]);
+      hash = 31 * hash + Objects.hashCode(generators[segment]);
+    }
+    return hash;
+  }
+
+  /**
+   * Total rainfall over the series, a segment at a time: a constant
+   * segment is its amount times its length, and only generated segments
+   * are summed day by day.
+   */
+  double total() {
+    double total = 0.0;
+    for (int segment = 0; segment < segments; segment++) {
+      int days = ends[segment] - start(segment);
+      MarkovRainfall generator = generators[segment];
+      if (generator != null) {
+        total += IntStream.range(0, days).mapToDouble(generator::on).sum();
+      } else if (values[segment] != null) {
+        total += Arrays.stream(values[segment]).sum();
+      } else {
+        total += amounts[segment] * days;
+      }
+    }
+    return total;
+  }
+}
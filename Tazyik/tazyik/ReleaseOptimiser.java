@@ -0,0 +1,151 @@
+package tazyik;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Searches for the dam release settings that do best on an objective, such
+ * as total overflow of the downstream rivers.
+ *
+ * The parameters are every dam's tunable policy parameters (its release
+ * percentage, or its seasonal targets), searched by a PatternSearch whose
+ * candidates are all simulated at once against the shared compiled network.
+ */
+class ReleaseOptimiser {
+  static final double FIRST_STEP = 16.0; // Percent
+  static final double LAST_STEP = 0.5;
+  static final int MAX_ROUNDS = 200;
+
+  enum Objective {
+    OVERFLOW("overflow"), // Volume above capacity, summed over days
+    DAYS_ABOVE_80("days-above-80"); // Days at or above 80% capacity
+
+    final String name;
+
+    Objective(String name) {
+      this.name = name;
+    }
+
+    static Objective named(String name) {
+      for (Objective objective : values()) {
+        if (objective.name.equals(name)) return objective;
+      }
+      return null;
+    }
+  }
+
+  private final FlowNetwork network;
+  private final Objective objective;
+  private final int[] targets; // Nodes the objective is measured on
+  private final int[] parameterStart; // First parameter of each dam
+  private final int days;
+  private Subcatchments subcatchments; // Replayed in every evaluation, or null
+
+  ReleaseOptimiser(FlowNetwork network, Objective objective, int[] targets) {
+    this.network = network;
+    this.objective = objective;
+    this.targets = targets;
+    this.parameterStart = new int[network.damCount() + 1];
+    for (int dam = 0; dam < network.damCount(); dam++) {
+      parameterStart[dam + 1] = parameterStart[dam] + network.damPolicies[dam].parameters().length;
+    }
+    this.days = network.days();
+  }
+
+  /**
+   * Simulate the sub-catchments without dams, which no candidate changes,
+   * only once for all the candidates
+   */
+  void memoise() {
+    subcatchments = Subcatchments.find(network, 1, false, targets);
+  }
+
+  void run() {
+    System.out.println("=== Release Optimisation (objective: " + objective.name + ") ===");
+    double[] start = new double[parameterStart[network.damCount()]];
+    for (int dam = 0; dam < network.damCount(); dam++) {
+      double[] parameters = network.damPolicies[dam].parameters();
+      System.arraycopy(parameters, 0, start, parameterStart[dam], parameters.length);
+    }
+    if (start.length == 0) {
+      System.out.println("No dam release settings to optimise.");
+      return;
+    }
+
+    double[] lower = new double[start.length];
+    double[] upper = new double[start.length];
+    double[] scales = new double[start.length];
+    Arrays.fill(upper, 100.0);
+    Arrays.fill(scales, 1.0);
+    PatternSearch search = new PatternSearch(lower, upper, scales, FIRST_STEP, LAST_STEP,
+        MAX_ROUNDS);
+
+    long began = System.nanoTime();
+    search.minimise(start, this::evaluate);
+    double seconds = (System.nanoTime() - began) / 1e9;
+    double[] best = search.best;
+    long evaluations = search.evaluations;
+
+    System.out.println("Objective: " + String.format("%.3f", search.startScore) + " -> " +
+        String.format("%.3f", search.bestScore));
+    for (int dam = 0; dam < network.damCount(); dam++) {
+      int from = parameterStart[dam];
+      int to = parameterStart[dam + 1];
+      String name = network.names[network.damNodes[dam]];
+      if (from == to) {
+        System.out.println("  " + name + ": not tuned (" +
+            network.damPolicies[dam].describe() + ")");
+      } else {
+        System.out.println("  " + name + ": " + percents(start, from, to) + " -> " +
+            percents(best, from, to));
+      }
+    }
+    double nodeDays = (double) evaluations * days * network.nodeCount();
+    // Parallel streams run on the common pool and the calling thread
+    System.out.println("Evaluated " + evaluations + " candidates in " +
+        String.format("%.3f", seconds) + "s: " +
+        String.format("%.1f", evaluations / seconds) + " candidates/s, " +
+        String.format("%.3g", nodeDays / seconds) + " node-days/s on " +
+        (ForkJoinPool.getCommonPoolParallelism() + 1) + " threads");
+  }
+
+  /**
+   * Simulate the whole period with the given parameters and score it
+   */
+  double evaluate(double[] parameters) {
+    ReleasePolicy[] policies = new ReleasePolicy[network.damCount()];
+    for (int dam = 0; dam < policies.length; dam++) {
+      policies[dam] = network.damPolicies[dam].withParameters(
+          Arrays.copyOfRange(parameters, parameterStart[dam], parameterStart[dam + 1]));
+    }
+    FlowNetwork candidate = network.withPolicies(policies);
+    Simulation simulation = new Simulation(candidate);
+    simulation.daily = false;
+    if (subcatchments != null) simulation.memoise(subcatchments.replay(candidate, 0.0, days));
+
+    double score = 0.0;
+    for (int day = 1; day <= days; day++) {
+      simulation.simulateDay(day);
+      for (int node : targets) {
+        double volume = simulation.state.volumes.get(node);
+        double capacity = network.capacities[node];
+        if (objective == Objective.OVERFLOW) {
+          score += Math.max(0.0, volume - capacity);
+        } else if (volume / capacity * 100 >= 80) {
+          score += 1;
+        }
+      }
+    }
+    return score;
+  }
+
+  private static String percents(double[] parameters, int from, int to) {
+    if (to - from == 1) return parameters[from] + "%";
+    StringBuilder text = new StringBuilder("[");
+    for (int i = from; i < to; i++) {
+      if (i > from) text.append(", ");
+      text.append(parameters[i]);
+    }
+    return text.append("]%").toString();
+  }
+}
@@ -0,0 +1,204 @@
+package tazyik;
+
+/**
+ * How a dam decides how much water to let go each day. A policy only says
+ * how much it would like to release; DamState then limits that to the water
+ * available and forces a spill of anything above capacity.
+ */
+interface ReleasePolicy {
+  /**
+   * Release wanted on the given day, from the level before today's inflow
+   * and rainfall are added.
+   */
+  double release(double level, double capacity, double inflow, double rainfall, int day);
+
+  /**
+   * One line describing the policy, for the simulation header
+   */
+  String describe();
+
+  /**
+   * The policy's tunable parameters, each a target percentage of capacity,
+   * for the release optimiser. Table-driven policies have none.
+   */
+  default double[] parameters() {
+    return new double[0];
+  }
+
+  /**
+   * The same kind of policy with other parameter values
+   */
+  default ReleasePolicy withParameters(double[] parameters) {
+    return this;
+  }
+
+  int DAYS_PER_YEAR = 365;
+
+  /**
+   * Policies that keep the dam at a target percentage of capacity, releasing
+   * the excess above it. On heavy rain (over 10mm) a dam within 20% of its
+   * target pre-releases an extra 5% of capacity to make room.
+   */
+  abstract class TargetLevel implements ReleasePolicy {
+    abstract double targetPercent(int day);
+
+    @Override
+    public double release(double level, double capacity, double inflow, double rainfall, int day) {
+      return releaseToTarget(level, capacity, inflow, rainfall, targetPercent(day));
+    }
+
+    /**
+     * The release on a day whose target is targetPercent. The target is
+     * the same in every scenario on a given day, so ScenarioBatch looks it
+     * up once and calls this for each scenario.
+     */
+    static double releaseToTarget(double level, double capacity, double inflow,
+                                  double rainfall, double targetPercent) {
+      return excess(level, capacity, inflow, rainfall, targetPercent) +
+          heavyRainRelease(level, capacity, rainfall, targetPercent);
+    }
+
+    /**
+     * The part of releaseToTarget that keeps the dam at its target level:
+     * whatever today's inflow and rain would take it above the target.
+     * Sensitivity follows this part's derivative, which is 1 with respect
+     * to the water while it is above 0 and 0 otherwise.
+     */
+    static double excess(double level, double capacity, double inflow, double rainfall,
+                         double targetPercent) {
+      double targetLevel = capacity * (targetPercent / 100.0);
+      double projectedLevel = level + inflow + rainfall;
+      return projectedLevel > targetLevel ? projectedLevel - targetLevel : 0.0;
+    }
+
+    /**
+     * The part of releaseToTarget released ahead of heavy rain when the dam
+     * is within 20% of its target (predictive control). It is a constant
+     * step, so its derivative is 0.
+     */
+    static double heavyRainRelease(double level, double capacity, double rainfall,
+                                   double targetPercent) {
+      // Dam level percentage (BEFORE adding today's inflow/rain)
+      double levelPercent = level / capacity * 100.0;
+      return rainfall > 10.0 && levelPercent > (targetPercent - 20) ? capacity * 0.05 : 0.0;
+    }
+  }
+
+  /**
+   * A fixed target, from "release N%" (80% if not given)
+   */
+  class Target extends TargetLevel {
+    final double percent;
+
+    Target(double percent) {
+      this.percent = percent;
+    }
+
+    @Override
+    double targetPercent(int day) {
+      return percent;
+    }
+
+    @Override
+    public String describe() {
+      return "Base release: " + percent + "%";
+    }
+
+    @Override
+    public double[] parameters() {
+      return new double[] { percent };
+    }
+
+    @Override
+    public ReleasePolicy withParameters(double[] parameters) {
+      return new Target(parameters[0]);
+    }
+  }
+
+  /**
+   * A rule curve: the target percentage by day of the year, interpolated
+   * between the points of a "day,percent" table.
+   */
+  class RuleCurve extends TargetLevel {
+    final LookupTable curve;
+    final String source;
+
+    RuleCurve(LookupTable curve, String source) {
+      this.curve = curve;
+      this.source = source;
+    }
+
+    @Override
+    double targetPercent(int day) {
+      return curve.value((day - 1) % DAYS_PER_YEAR + 1);
+    }
+
+    @Override
+    public String describe() {
+      return "Release policy: rule curve from " + source;
+    }
+  }
+
+  /**
+   * One target percentage per season, the year being split into as many
+   * equal seasons as there are targets, starting on day 1.
+   */
+  class Seasonal extends TargetLevel {
+    private final double[] percents;
+
+    Seasonal(double[] percents) {
+      this.percents = percents.clone();
+    }
+
+    @Override
+    double targetPercent(int day) {
+      int dayOfYear = (day - 1) % DAYS_PER_YEAR;
+      return percents[dayOfYear * percents.length / DAYS_PER_YEAR];
+    }
+
+    @Override
+    public String describe() {
+      StringBuilder targets = new StringBuilder();
+      for (double percent : percents) {
+        if (targets.length() > 0) targets.append(", ");
+        targets.append(percent);
+      }
+      return "Release policy: seasonal targets [" + targets + "]%";
+    }
+
+    @Override
+    public double[] parameters() {
+      return percents.clone();
+    }
+
+    @Override
+    public ReleasePolicy withParameters(double[] parameters) {
+      return new Seasonal(parameters);
+    }
+  }
+
+  /**
+   * A storage-release table: the release in ML as a function of the storage
+   * the dam would hold after today's inflow and rainfall, interpolated
+   * between the points of a "storage,release" table.
+   */
+  class Table implements ReleasePolicy {
+    final LookupTable table;
+    final String source;
+
+    Table(LookupTable table, String source) {
+      this.table = table;
+      this.source = source;
+    }
+
+    @Override
+    public double release(double level, double capacity, double inflow, double rainfall, int day) {
+      return table.value(level + inflow + rainfall);
+    }
+
+    @Override
+    public String describe() {
+      return "Release policy: storage-release table from " + source;
+    }
+  }
+}
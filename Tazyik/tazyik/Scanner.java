@@ -2,14 +2,19 @@ package tazyik;
 
 import static tazyik.TokenType.*;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
+/**
+ * Streaming scanner: tokens are produced one at a time by nextToken() as the
+ * parser asks for them, and lexemes stay as offsets into the source until
+ * they are actually needed.
+ */
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final CharSequence source;
+  private final SymbolTable symbols;
+  private final int length;
   private int start = 0;
   private int current = 0;
   private int line = 1;
@@ -23,102 +28,203 @@ class Scanner {
     keywords.put("FlowOut", FLOWOUT);
     keywords.put("Dam", DAM);
     keywords.put("release", RELEASE);
+    keywords.put("policy", POLICY);
+    keywords.put("Report", REPORT);
+    keywords.put("Rainfall", RAINFALL);
+    keywords.put("Loss", LOSS);
+    keywords.put("Import", IMPORT);
+    keywords.put("Export", EXPORT);
+    keywords.put("mm", MM);
+    keywords.put("ML", ML);
     // Add more keywords if needed
   }
 
-  public Scanner(String source) {
+  // The keywords by first character, so an identifier is only compared
+  // with the two or three that could match
+  private static final String[][] keywordsByFirst = new String[128][0];
+  static {
+    for (String word : keywords.keySet()) {
+      String[] words = keywordsByFirst[word.charAt(0)];
+      words = Arrays.copyOf(words, words.length + 1);
+      words[words.length - 1] = word;
+      keywordsByFirst[word.charAt(0)] = words;
+    }
+  }
+
+  // Largest powers of ten that are exact doubles, for the number fast path.
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  Scanner(CharSequence source, SymbolTable symbols) {
     this.source = source;
+    this.symbols = symbols;
+    this.length = source.length();
   }
 
-  public List<Token> scanTokens() {
+  /**
+   * Scan and return the next token, or EOF once the source is exhausted.
+   */
+  Token nextToken() {
     while (!isAtEnd()) {
       start = current;
-      scanToken();
+      Token token = scanToken();
+      if (token != null) return token;
+    }
+    return new Token(EOF, source, current, 0, null, line);
+  }
+
+  /**
+   * Continue a numeric array straight from the source: reads as many
+   * ", NUMBER" pairs as follow the last scanned token into values and leaves
+   * the scanner in front of whatever comes next.
+   */
+  void numberRun(DoubleList values) {
+    while (true) {
+      int mark = current;
+      int markLine = line;
+      skipWhitespace();
+      if (!match(',')) {
+        current = mark;
+        line = markLine;
+        return;
+      }
+      skipWhitespace();
+      if (!isDigit(peek())) {
+        current = mark;
+        line = markLine;
+        return;
+      }
+      start = current;
+      digits();
+      values.add(parseNumber(start, current));
     }
-    tokens.add(new Token(EOF, "", null, line));
-    return tokens;
   }
 
-  private void scanToken() {
+  private void skipWhitespace() {
+    while (!isAtEnd()) {
+      char c = source.charAt(current);
+      if (c == '\n') {
+        line++;
+      } else if (c != ' ' && c != '\r' && c != '\t') {
+        return;
+      }
+      current++;
+    }
+  }
+
+  private Token scanToken() {
     char c = advance();
     switch (c) {
       case '(':
-        addToken(LPAREN);
-        break;
+        return makeToken(LPAREN);
       case ')':
-        addToken(RPAREN);
-        break;
+        return makeToken(RPAREN);
       case '[':
-        addToken(LBRACKET);
-        break;
+        return makeToken(LBRACKET);
       case ']':
-        addToken(RBRACKET);
-        break;
+        return makeToken(RBRACKET);
       case ',':
-        addToken(COMMA);
-        break;
+        return makeToken(COMMA);
       case '+':
-        addToken(PLUS);
-        break;
+        return makeToken(PLUS);
       case ';':
-        addToken(SEMICOLON);
-        break;
+        return makeToken(SEMICOLON);
       case '=':
-        addToken(EQUAL);
-        break;
+        return makeToken(EQUAL);
       case '-':
         if (match('>')) {
-          addToken(ARROW);
+          return makeToken(ARROW);
         }
-        break;
+        return null;
       case '%':
-        addToken(PERCENT);
-        break;
+        return makeToken(PERCENT);
+      case '"':
+        return string();
       case ' ':
       case '\r':
       case '\t':
         // Ignore whitespace
-        break;
+        return null;
       case '\n':
         line++;
-        break;
+        return null;
       default:
         if (isDigit(c)) {
-          number();
+          return number();
         } else if (isAlpha(c)) {
-          identifierOrUnit();
+          return identifierOrUnit();
         } else {
           Tazyik.error(line, "Unexpected character: " + c);
         }
-        break;
+        return null;
     }
   }
 
-  private void identifierOrUnit() {
+  private Token identifierOrUnit() {
     while (isAlphaNumeric(peek()))
       advance();
-    String text = source.substring(start, current);
-    
+    // A river of an imported module: module.river, nested as deep as the imports
+    while (peek() == '.' && isAlpha(peekNext())) {
+      advance();
+      while (isAlphaNumeric(peek()))
+        advance();
+    }
+
     // Check for % symbol immediately after number for percentage
     if (peek() == '%') {
       advance();
-      addToken(PERCENT);
-      return;
+      return makeToken(PERCENT);
+    }
+
+    TokenType type = keyword(start, current - start);
+    if (type != IDENTIFIER) {
+      return makeToken(type);
     }
-    
-    TokenType type = keywords.get(text);
-    if (type != null) {
-      addToken(type);
-    } else if (text.equals("mm")) {
-      addToken(MM);
-    } else if (text.equals("ML")) {
-      addToken(ML);
-    } else {
-      addToken(IDENTIFIER);
+    // Identifiers are interned here, so each distinct name is copied once
+    int symbol = symbols.intern(source, start, current - start);
+    return new Token(IDENTIFIER, symbols.name(symbol), null, line, symbol);
+  }
+
+  /**
+   * Classify an identifier by comparing it in place against the keywords
+   * starting with its first character, so no String is built for it.
+   */
+  private TokenType keyword(int offset, int count) {
+    char first = source.charAt(offset);
+    if (first >= keywordsByFirst.length) return IDENTIFIER;
+    for (String word : keywordsByFirst[first]) {
+      if (word.length() != count) continue;
+      int i = 1;
+      while (i < count && source.charAt(offset + i) == word.charAt(i)) i++;
+      if (i == count) return keywords.get(word);
     }
+    return IDENTIFIER;
   }
 
-  private void number() {
+  private Token string() {
+    while (peek() != '"' && !isAtEnd()) {
+      if (peek() == '\n') line++;
+      advance();
+    }
+    if (isAtEnd()) {
+      Tazyik.error(line, "Unterminated string.");
+      return null;
+    }
+    advance(); // The closing quote
+
+    // Trim the surrounding quotes
+    String value = source.subSequence(start + 1, current - 1).toString();
+    return makeToken(STRING, value);
+  }
+
+  private Token number() {
+    digits();
+    return makeToken(NUMBER, parseNumber(start, current));
+  }
+
+  private void digits() {
     while (isDigit(peek()))
       advance();
     if (peek() == '.' && isDigit(peekNext())) {
@@ -126,11 +232,35 @@ class Scanner {
       while (isDigit(peek()))
         advance();
     }
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+  }
+
+  /**
+   * Parse the decimal literal in [from, to). Short literals are converted
+   * exactly from a long mantissa and an exact power of ten; anything longer
+   * falls back to Double.parseDouble.
+   */
+  private double parseNumber(int from, int to) {
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (int i = from; i < to; i++) {
+      char c = source.charAt(i);
+      if (c == '.') {
+        fraction = 0;
+        continue;
+      }
+      mantissa = mantissa * 10 + (c - '0');
+      digits++;
+      if (fraction >= 0) fraction++;
+    }
+    if (digits <= 15 && fraction < POWERS_OF_TEN.length) {
+      return fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+    }
+    return Double.parseDouble(source.subSequence(from, to).toString());
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
   }
 
   private char advance() {
@@ -153,7 +283,7 @@ class Scanner {
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length())
+    if (current + 1 >= length)
       return '\0';
     return source.charAt(current + 1);
   }
@@ -172,12 +302,11 @@ class Scanner {
     return c >= '0' && c <= '9';
   }
 
-  private void addToken(TokenType type) {
-    addToken(type, null);
+  private Token makeToken(TokenType type) {
+    return makeToken(type, null);
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  private Token makeToken(TokenType type, Object literal) {
+    return new Token(type, source, start, current - start, literal, line);
   }
 }
@@ -0,0 +1,218 @@
+package tazyik;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Runs many rainfall scenarios over one FlowNetwork in lockstep. Every node,
+ * dam and pending slot holds a double[scenarios] instead of a single value,
+ * and each step of Simulation.simulateDay is one flat loop across all
+ * scenarios, so a day touches each node once however many scenarios there
+ * are. The loops are plain scalar Java, not vector code: each scenario's
+ * rainfall draws the next number from one random stream, and each dam
+ * release asks the dam's ReleasePolicy, as a single run does.
+ *
+ * Scenario s sees the declared rainfall with every wet day of every node
+ * scaled by its own factor, drawn uniformly from [1 - spread, 1 + spread].
+ * With a spread of 0 each scenario reproduces Simulation exactly, except
+ * that rainfall from markov(..) is drawn afresh for each scenario from its
+ * own stream (scenario 0 keeps the series as declared).
+ */
+class ScenarioBatch {
+  private final FlowNetwork network;
+  private final int scenarios;
+  private final double spread;
+  private final SplittableRandom random;
+  private final RainfallSeries[][] memberRainfall; // Per generated node, each scenario's series
+  final double[][] volumes; // Per node, the volume in each scenario
+  final double[][] levels; // Per dam, the level in each scenario
+  private final double[][] damRain; // Per dam, today's rainfall in each scenario
+  private final double[][][] pending; // Per edge and slot, tomorrow's flow in each scenario
+  private final double[][] damInflow; // Per dam, today's arriving flow in each scenario
+
+  // Scratch row reused every day
+  private final double[] flow;
+
+  ScenarioBatch(FlowNetwork network, int scenarios, double spread, long seed) {
+    this.network = network;
+    this.scenarios = scenarios;
+    this.spread = spread;
+    this.random = new SplittableRandom(seed);
+    this.volumes = new double[network.nodeCount()][scenarios];
+    this.levels = new double[network.damCount()][scenarios];
+    this.damRain = new double[network.damCount()][scenarios];
+    this.pending = new double[network.edgeCount()][][];
+    for (int edge = 0; edge < pending.length; edge++) {
+      pending[edge] = new double[network.pendingDestinations[edge].length][scenarios];
+    }
+    this.damInflow = new double[network.damCount()][scenarios];
+    this.flow = new double[scenarios];
+    this.memberRainfall = new RainfallSeries[network.nodeCount()][];
+    for (int node = 0; node < memberRainfall.length; node++) {
+      if (!network.rainfall[node].generated()) continue;
+      memberRainfall[node] = new RainfallSeries[scenarios];
+      for (int s = 0; s < scenarios; s++) {
+        memberRainfall[node][s] = network.rainfall[node].member(s);
+      }
+    }
+  }
+
+  /**
+   * Run every scenario over the whole simulation period and print the
+   * spread of the final volumes.
+   */
+  void run() {
+    int maxDays = network.days();
+    for (int day = 1; day <= maxDays; day++) {
+      simulateDay(day);
+    }
+
+    System.out.println("=== Scenario Summary (" + scenarios + " scenarios, rainfall ±" +
+        String.format("%.0f", spread * 100) + "%) ===");
+    for (int node = 0; node < network.nodeCount(); node++) {
+      double[] v = volumes[node];
+      double sum = 0.0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      int exceeded = 0;
+      double capacity = network.capacities[node];
+      for (int s = 0; s < scenarios; s++) {
+        sum += v[s];
+        min = Math.min(min, v[s]);
+        max = Math.max(max, v[s]);
+        if (v[s] >= capacity) exceeded++; // Never true for a NaN capacity
+      }
+      System.out.println(network.names[node] + ": mean " +
+          String.format("%.3f", sum / scenarios) + "ML, min " +
+          String.format("%.3f", min) + "ML, max " +
+          String.format("%.3f", max) + "ML");
+      if (exceeded > 0) {
+        System.out.println("  WARNING: Capacity exceeded in " + exceeded + " of " +
+            scenarios + " scenarios");
+      }
+    }
+  }
+
+  /**
+   * Simulate one day in every scenario, phase by phase as in
+   * Simulation.simulateDay.
+   */
+  void simulateDay(int day) {
+    // Add rainfall for this day
+    for (int node = 0; node < network.nodeCount(); node++) {
+      double rainfall = network.rainfall[node].on(day);
+      int dam = network.damOf[node];
+      double[] rain = dam >= 0 ? damRain[dam] : null;
+      if (memberRainfall[node] != null) {
+        double[] v = volumes[node];
+        for (int s = 0; s < scenarios; s++) {
+          double member = memberRainfall[node][s].on(day);
+          double scaled = member > 0
+              ? member * (1.0 + spread * (2.0 * random.nextDouble() - 1.0)) : 0.0;
+          v[s] += scaled;
+          if (rain != null) rain[s] = scaled;
+        }
+      } else if (rainfall > 0) {
+        double[] v = volumes[node];
+        for (int s = 0; s < scenarios; s++) {
+          double scaled = rainfall * (1.0 + spread * (2.0 * random.nextDouble() - 1.0));
+          v[s] += scaled;
+          if (rain != null) rain[s] = scaled;
+        }
+      } else if (rain != null) {
+        Arrays.fill(rain, rainfall);
+      }
+    }
+
+    // PHASE 1: Apply pending flows from yesterday
+    if (day > 1) {
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        int[] slotDestinations = network.pendingDestinations[edge];
+        for (int slot = 0; slot < slotDestinations.length; slot++) {
+          int dest = slotDestinations[slot];
+          double[] amount = pending[edge][slot];
+          int dam = network.damOf[dest];
+          double[] v = dam >= 0 ? damInflow[dam] : volumes[dest];
+          for (int s = 0; s < scenarios; s++) {
+            v[s] += amount[s] > 0 ? amount[s] : 0.0;
+          }
+          Arrays.fill(amount, 0.0);
+        }
+      }
+      // Each dam responds once to everything that arrived
+      for (int dam = 0; dam < network.damCount(); dam++) {
+        release(dam, damInflow[dam], volumes[network.damNodes[dam]], day);
+        Arrays.fill(damInflow[dam], 0.0);
+      }
+    }
+
+    // PHASE 2: Calculate today's flows, applied tomorrow
+    if (day <= network.routingDays()) {
+      double[][] fractions = network.drawFractions(day);
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        int[] sources = network.sources[edge];
+        int[] destinations = network.destinations[edge];
+        if (destinations.length == 0 || day > network.edgeFlowOutDays[edge]) continue;
+
+        Arrays.fill(flow, 0.0);
+        for (int i = 0; i < sources.length; i++) {
+          double[] v = volumes[sources[i]];
+          double fraction = fractions[edge][i];
+          for (int s = 0; s < scenarios; s++) {
+            flow[s] += v[s] * fraction;
+          }
+        }
+
+        // Scenarios with nothing to move keep their volumes
+        for (int i = 0; i < sources.length; i++) {
+          double[] v = volumes[sources[i]];
+          double fraction = fractions[edge][i];
+          for (int s = 0; s < scenarios; s++) {
+            v[s] = flow[s] > 0 ? v[s] - v[s] * fraction : v[s];
+          }
+        }
+        for (int i = 0; i < destinations.length; i++) {
+          int slot = network.slotOf[edge][i];
+          if (slot < 0) continue; // Destination pruned from this run
+          double[] p = pending[edge][slot];
+          for (int s = 0; s < scenarios; s++) {
+            p[s] = flow[s] > 0 ? flow[s] / destinations.length : p[s];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * DamState.calculateRelease followed by updateLevel, for every scenario
+   * with water arriving. Scenarios without inflow are left untouched.
+   * Target level policies are looked up once, since their target is the
+   * same in every scenario on a given day; other policies are asked per
+   * scenario.
+   */
+  private void release(int dam, double[] inflow, double[] volume, int day) {
+    double capacity = network.damCapacities[dam];
+    ReleasePolicy policy = network.damPolicies[dam];
+    boolean targetLevelPolicy = policy instanceof ReleasePolicy.TargetLevel;
+    double targetPercent = targetLevelPolicy
+        ? ((ReleasePolicy.TargetLevel) policy).targetPercent(day) : 0.0;
+    double[] level = levels[dam];
+    double[] rain = damRain[dam];
+
+    for (int s = 0; s < scenarios; s++) {
+      double current = level[s];
+      double in = inflow[s];
+      double rainfall = rain[s];
+      double wanted = targetLevelPolicy
+          ? ReleasePolicy.TargetLevel.releaseToTarget(current, capacity, in, rainfall,
+              targetPercent)
+          : policy.release(current, capacity, in, rainfall, day);
+      double releaseAmount = DamState.limit(wanted, current + in + rainfall, capacity);
+      double updated = DamState.updatedLevel(current, in, releaseAmount, rainfall, capacity);
+
+      boolean arriving = in > 0;
+      level[s] = arriving ? updated : current;
+      volume[s] = arriving ? updated : volume[s];
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package tazyik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sensitivity of one river's peak volume to every rainfall input and every
+ * dam's release target, in a single forward pass.
+ *
+ * Each value of the simulation state carries a tangent: its derivative with
+ * respect to each seeded parameter (forward-mode automatic differentiation
+ * with dual numbers). The day is the same sequence of operations as
+ * Simulation.simulateDay, with every operation also applied to the
+ * tangents, so one run costs about as much as one simulation per
+ * parameter's worth of extra arithmetic, instead of a whole rerun per
+ * parameter. Where the dam algorithm switches between branches or clamps,
+ * the tangent follows whichever branch the value took (a subgradient).
+ *
+ * Parameters are a relative change in each river's rainfall, and a shift
+ * in the target percentage of each dam with a target level policy.
+ */
+class Sensitivity {
+  private final FlowNetwork network;
+  private final int target;
+  private final int size; // Number of parameters, the length of every tangent
+  private final int[] rainParameter; // Per node, its rainfall parameter or -1
+  private final int[] damParameter; // Per dam, its target parameter or -1
+  private final List<String> parameterNames = new ArrayList<>();
+
+  // Values, and their tangents laid out [index * size + parameter]
+  private final double[] volumes;
+  private final double[] volumeTangents;
+  private final double[] levels;
+  private final double[] levelTangents;
+  private final double[] pending;
+  private final double[] pendingTangents;
+  private final double[] damInflows; // Per dam, the flow arriving today
+  private final double[] damInflowTangents;
+
+  // Scratch tangents
+  private final double[] flow;
+  private final double[] inflow;
+  private final double[] release;
+
+  Sensitivity(FlowNetwork network, int target) {
+    this.network = network;
+    this.target = target;
+
+    rainParameter = new int[network.nodeCount()];
+    for (int node = 0; node < rainParameter.length; node++) {
+      rainParameter[node] = network.rainfall[node].total() > 0 ? parameterNames.size() : -1;
+      if (rainParameter[node] >= 0) parameterNames.add(network.names[node]);
+    }
+    damParameter = new int[network.damCount()];
+    for (int dam = 0; dam < damParameter.length; dam++) {
+      boolean tunable = network.damPolicies[dam] instanceof ReleasePolicy.TargetLevel;
+      damParameter[dam] = tunable ? parameterNames.size() : -1;
+      if (tunable) parameterNames.add(network.names[network.damNodes[dam]]);
+    }
+    size = parameterNames.size();
+
+    volumes = new double[network.nodeCount()];
+    volumeTangents = new double[volumes.length * size];
+    levels = new double[network.damCount()];
+    levelTangents = new double[levels.length * size];
+    pending = new double[network.slotCount()];
+    pendingTangents = new double[pending.length * size];
+    damInflows = new double[network.damCount()];
+    damInflowTangents = new double[damInflows.length * size];
+    flow = new double[size];
+    inflow = new double[size];
+    release = new double[size];
+  }
+
+  void run() {
+    String name = network.names[target];
+    System.out.println("=== Sensitivity of " + name + "'s peak volume ===");
+
+    long began = System.nanoTime();
+    double peak = Double.NEGATIVE_INFINITY;
+    int peakDay = 0;
+    double[] peakTangent = new double[size];
+    for (int day = 1; day <= network.days(); day++) {
+      simulateDay(day);
+      if (volumes[target] > peak) {
+        peak = volumes[target];
+        peakDay = day;
+        System.arraycopy(volumeTangents, target * size, peakTangent, 0, size);
+      }
+    }
+    double seconds = (System.nanoTime() - began) / 1e9;
+
+    System.out.println("Peak: " + String.format("%.3f", peak) + "ML on day " + peakDay);
+    boolean heading = false;
+    for (int node = 0; node < rainParameter.length; node++) {
+      int p = rainParameter[node];
+      if (p < 0) continue;
+      if (!heading) System.out.println("Rainfall (ML of peak per +1% rainfall on the river):");
+      heading = true;
+      // The parameter is a relative change, so 1% is 0.01 of it
+      System.out.println("  " + parameterNames.get(p) + ": " +
+          String.format("%.6f", peakTangent[p] * 0.01 + 0.0)); // No -0
+    }
+    heading = false;
+    for (int dam = 0; dam < damParameter.length; dam++) {
+      int p = damParameter[dam];
+      if (p < 0) continue;
+      if (!heading) System.out.println("Dam targets (ML of peak per +1 percentage point):");
+      heading = true;
+      System.out.println("  " + parameterNames.get(p) + ": " +
+          String.format("%.6f", peakTangent[p] + 0.0));
+    }
+    System.out.println(size + " parameters in one pass over " + network.days() + " days (" +
+        String.format("%.3f", seconds) + "s)");
+  }
+
+  /**
+   * Simulation.simulateDay on values and tangents
+   */
+  void simulateDay(int day) {
+    // Add rainfall for this day: scaled by (1 + parameter), at parameter 0
+    for (int node = 0; node < network.nodeCount(); node++) {
+      double rainfall = network.rainfall[node].on(day);
+      if (rainfall > 0) {
+        volumes[node] += rainfall;
+        if (rainParameter[node] >= 0) {
+          volumeTangents[node * size + rainParameter[node]] += rainfall;
+        }
+      }
+    }
+
+    // PHASE 1: Apply pending flows from yesterday
+    if (day > 1) {
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        int[] slotDestinations = network.pendingDestinations[edge];
+        int base = network.slotStart[edge];
+        for (int slot = 0; slot < slotDestinations.length; slot++) {
+          int dest = slotDestinations[slot];
+          double amount = pending[base + slot];
+          if (amount > 0) {
+            int dam = network.damOf[dest];
+            if (dam >= 0) {
+              damInflows[dam] += amount;
+              add(damInflowTangents, dam * size, pendingTangents, (base + slot) * size, 1.0);
+            } else {
+              volumes[dest] += amount;
+              add(volumeTangents, dest * size, pendingTangents, (base + slot) * size, 1.0);
+            }
+          }
+          pending[base + slot] = 0.0;
+          Arrays.fill(pendingTangents, (base + slot) * size, (base + slot + 1) * size, 0.0);
+        }
+      }
+      for (int dam = 0; dam < damInflows.length; dam++) {
+        if (damInflows[dam] > 0) arriveAtDam(dam, network.damNodes[dam], day);
+        damInflows[dam] = 0.0;
+        Arrays.fill(damInflowTangents, dam * size, (dam + 1) * size, 0.0);
+      }
+    }
+
+    // PHASE 2: Calculate today's flows, applied tomorrow
+    if (day <= network.routingDays()) {
+      double[][] fractions = network.drawFractions(day);
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        int[] sources = network.sources[edge];
+        int[] destinations = network.destinations[edge];
+        if (destinations.length == 0 || day > network.edgeFlowOutDays[edge]) continue;
+
+        double flowAmount = 0;
+        Arrays.fill(flow, 0.0);
+        for (int i = 0; i < sources.length; i++) {
+          flowAmount += volumes[sources[i]] * fractions[edge][i];
+          add(flow, 0, volumeTangents, sources[i] * size, fractions[edge][i]);
+        }
+        if (!(flowAmount > 0)) continue;
+
+        // Each source keeps 1 - its fraction, and so does its tangent
+        for (int i = 0; i < sources.length; i++) {
+          double fraction = fractions[edge][i];
+          int row = sources[i] * size;
+          for (int p = 0; p < size; p++) {
+            volumeTangents[row + p] -= volumeTangents[row + p] * fraction;
+          }
+          volumes[sources[i]] -= volumes[sources[i]] * fraction;
+        }
+        double amountPerDestination = flowAmount / destinations.length;
+        for (int i = 0; i < destinations.length; i++) {
+          int slot = network.slotOf[edge][i];
+          if (slot < 0) continue; // Destination pruned from this run
+          int index = network.slotStart[edge] + slot;
+          pending[index] = amountPerDestination;
+          for (int p = 0; p < size; p++) {
+            pendingTangents[index * size + p] = flow[p] / destinations.length;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * DamState.calculateRelease and updateLevel on values and tangents, for
+   * all the flow that arrived at the dam today
+   */
+  private void arriveAtDam(int dam, int dest, int day) {
+    double amount = damInflows[dam];
+    double capacity = network.damCapacities[dam];
+    ReleasePolicy policy = network.damPolicies[dam];
+    int levelRow = dam * size;
+    double level = levels[dam];
+
+    // Today's rainfall on the dam, and its tangent
+    double rainfall = network.rainfall[dest].on(day);
+    int rainSeed = rainParameter[dest];
+
+    // Inflow tangent: amount + rainfall, the part shared by projected and total
+    System.arraycopy(damInflowTangents, dam * size, inflow, 0, size);
+    if (rainSeed >= 0) inflow[rainSeed] += rainfall;
+
+    // The release and its tangent, through the same helpers as DamState
+    double projectedLevel = level + amount + rainfall;
+    double wanted;
+    Arrays.fill(release, 0.0);
+    if (policy instanceof ReleasePolicy.TargetLevel) {
+      double targetPercent = ((ReleasePolicy.TargetLevel) policy).targetPercent(day);
+      wanted = ReleasePolicy.TargetLevel.releaseToTarget(level, capacity, amount, rainfall,
+          targetPercent);
+      if (ReleasePolicy.TargetLevel.excess(level, capacity, amount, rainfall,
+          targetPercent) > 0) {
+        for (int p = 0; p < size; p++) {
+          release[p] = levelTangents[levelRow + p] + inflow[p];
+        }
+        if (damParameter[dam] >= 0) release[damParameter[dam]] -= capacity / 100.0;
+      }
+    } else {
+      wanted = policy.release(level, capacity, amount, rainfall, day);
+      if (policy instanceof ReleasePolicy.Table) {
+        double slope = ((ReleasePolicy.Table) policy).table.slope(projectedLevel);
+        for (int p = 0; p < size; p++) {
+          release[p] = slope * (levelTangents[levelRow + p] + inflow[p]);
+        }
+      }
+    }
+
+    // Limit to what is available, then spill above capacity
+    double totalAvailable = level + amount + rainfall;
+    double releaseAmount = DamState.limit(wanted, totalAvailable, capacity);
+    int limited = DamState.limitCase(wanted, totalAvailable, capacity);
+    if (limited == DamState.NOTHING) {
+      Arrays.fill(release, 0.0);
+    } else if (limited != DamState.AS_WANTED) {
+      // All or all but capacity of the water, which moves with it
+      for (int p = 0; p < size; p++) release[p] = levelTangents[levelRow + p] + inflow[p];
+    }
+
+    // updateLevel
+    double updated = DamState.updatedLevel(level, amount, releaseAmount, rainfall, capacity);
+    boolean clamped = updated != level + amount + rainfall - releaseAmount;
+    for (int p = 0; p < size; p++) {
+      levelTangents[levelRow + p] = clamped ? 0.0
+          : levelTangents[levelRow + p] + inflow[p] - release[p];
+    }
+    levels[dam] = updated;
+    volumes[dest] = updated;
+    System.arraycopy(levelTangents, levelRow, volumeTangents, dest * size, size);
+  }
+
+  /**
+   * to[toRow..] += factor * from[fromRow..], over one tangent
+   */
+  private void add(double[] to, int toRow, double[] from, int fromRow, double factor) {
+    for (int p = 0; p < size; p++) {
+      to[toRow + p] += factor * from[fromRow + p];
+    }
+  }
+}
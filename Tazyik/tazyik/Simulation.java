@@ -0,0 +1,635 @@
+package tazyik;
+
+import java.nio.DoubleBuffer;
+import java.util.StringJoiner;
+
+/**
+ * One run of the day-by-day water flow simulation over a compiled
+ * FlowNetwork. All mutable state of the run lives in its StateColumns,
+ * indexed by node, dam and pending slot, so the network can be shared
+ * between runs.
+ */
+class Simulation {
+  private final FlowNetwork network;
+  final StateColumns state;
+  private final DoubleBuffer volumes; // Current water volume of each node in ML
+  private final DoubleBuffer pending; // Flow arriving tomorrow, per pending slot
+  private final DoubleBuffer levels; // Current level of each dam in ML
+  private final DamState[] dams; // Control algorithm of each dam
+  private final double[] damInflows; // Per dam, the flow arriving today
+  private final int[] arrivedDams; // Dams with flow arriving today, in order of arrival
+  private int arrivedCount = 0;
+  boolean daily = true; // Print what happens each day
+  double epsilon = 0.0; // Rainfall and flows at or below this are negligible
+  private FastForward fastForward;
+  private EventScheduler events; // Used when there is no daily output
+  private Subcatchments.Replay replay; // Memoised sub-catchments, or null
+  private Aggregation aggregation; // Periodic totals written instead of daily output, or null
+  private MassBalance balance; // Checks that water is conserved, or null
+  private Profiler profiler; // Times and counts each step, or null
+  private final GriddedRainfall.Cursor grid; // This run's place in the rainfall grid, or null
+  private final Losses losses; // The network's losses, or null
+  private int[] activeNodes;
+  private int[] activeEdges;
+
+  Simulation(FlowNetwork network) {
+    this(network, StateColumns.onHeap(network));
+  }
+
+  Simulation(FlowNetwork network, StateColumns state) {
+    this.network = network;
+    this.state = state;
+    this.volumes = state.volumes;
+    this.pending = state.pending;
+    this.levels = state.levels;
+    this.grid = network.grid == null ? null : network.grid.open();
+    this.losses = network.losses;
+    this.dams = new DamState[network.damCount()];
+    for (int dam = 0; dam < dams.length; dam++) {
+      dams[dam] = new DamState(network.names[network.damNodes[dam]],
+          network.damCapacities[dam], network.damPolicies[dam]);
+    }
+    this.damInflows = new double[dams.length];
+    this.arrivedDams = new int[dams.length];
+  }
+
+  /**
+   * Jump over stretches of days where the model is linear instead of
+   * stepping through them. There is no per-day output in this mode. Set
+   * epsilon first.
+   */
+  void enableFastForward() {
+    // The day maps assume every edge shares the program's flow period, and
+    // know nothing of the rainfall grid or losses
+    if (network.uniformRouting() && grid == null && losses == null) {
+      fastForward = new FastForward(network, epsilon);
+    }
+    daily = false;
+  }
+
+  /**
+   * Replay the memoised sub-catchments' recorded state instead of
+   * simulating them. There is no per-day output in this mode, and outside
+   * run() only the replay's watched nodes are up to date after each day.
+   */
+  void memoise(Subcatchments.Replay replay) {
+    this.replay = replay;
+    daily = false;
+  }
+
+  /**
+   * Write weekly, monthly or annual totals instead of what happens each
+   * day
+   */
+  void aggregate(Aggregation aggregation) {
+    this.aggregation = aggregation;
+    daily = false;
+  }
+
+  /**
+   * Check that every day conserves water, to within tolerance ML
+   */
+  MassBalance checkBalance(double tolerance) {
+    balance = new MassBalance(network, tolerance);
+    return balance;
+  }
+
+  /**
+   * Time a sample of each node's, dam's and flow's steps, and count their
+   * operations
+   */
+  Profiler profile() {
+    profiler = new Profiler(network);
+    return profiler;
+  }
+
+  /**
+   * Run the water flow simulation over specified days
+   */
+  void run() {
+    int maxDays = network.days();
+    describe(network);
+
+    // Simulate day by day
+    if (daily) System.out.println("\n=== Daily Simulation ===");
+    if (aggregation != null) aggregation.printHeader();
+    if (balance != null) balance.start(state);
+    // Every day of the rainfall grid may be wet, and losses go on every
+    // day, so then there is nothing to skip
+    if (!daily && replay == null && grid == null && losses == null) {
+      events = new EventScheduler(network, epsilon);
+      activeNodes = new int[network.nodeCount()];
+      activeEdges = new int[network.edgeCount()];
+    }
+    int day = 1;
+    while (day <= maxDays) {
+      int span = fastForward == null ? 0 : fastForward.span(day, maxDays);
+      if (span > 0) {
+        long started = profiler == null ? 0 : System.nanoTime();
+        fastForward.advance(state, day, span);
+        if (profiler != null) profiler.recordFastForward(started);
+        day += span;
+        if (events != null) events.resume(day);
+        continue;
+      }
+      long dayStarted = profiler == null ? 0 : profiler.startDay();
+      if (events != null) {
+        // Skip straight to the next day on which something happens
+        int next = events.nextDay(day);
+        if (aggregation != null) {
+          long started = profiler == null ? 0 : System.nanoTime();
+          aggregation.quietDays(day, Math.min(next - 1, maxDays), volumes);
+          if (profiler != null) profiler.recordPart(Profiler.AGGREGATION, started);
+        }
+        day = next;
+        if (day > maxDays) break;
+        simulateActiveDay(day);
+      } else {
+        if (daily) System.out.println("\nDay " + day + ":");
+        simulateDay(day);
+      }
+      if (aggregation != null) {
+        long started = profiler == null ? 0 : System.nanoTime();
+        aggregation.endOfDay(day, volumes);
+        if (profiler != null) profiler.recordPart(Profiler.AGGREGATION, started);
+      }
+      if (profiler != null) profiler.endDay(dayStarted);
+      if (balance != null) balance.endOfDay();
+      day++;
+    }
+    if (replay != null) replay.finish(maxDays, state);
+    if (aggregation != null) aggregation.finish(maxDays);
+    
+    printSummary(network, volumes);
+    if (balance != null) balance.finish(state);
+  }
+  
+  /**
+   * Simulate water flow for a single day
+   */
+  void simulateDay(int day) {
+    if (replay != null) {
+      simulateReplayedDay(day);
+      return;
+    }
+
+    // Add rainfall for this day, and take away losses
+    double[] gridded = gridded(day);
+    int timed = firstTimed(network.nodeCount());
+    for (int node = 0; node < network.nodeCount(); node++) {
+      if (node == timed) {
+        timed = timedWater(node, node, day, gridded);
+      } else {
+        water(node, day, gridded);
+      }
+    }
+    
+    // PHASE 1: Apply pending flows from YESTERDAY (cascade delay - flows arrive next day)
+    if (day > 1) {  // No pending flows on day 1
+      timed = firstTimed(network.edgeCount());
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        if (edge == timed) {
+          timed = timedArrive(edge, edge, day);
+        } else {
+          arrive(edge, day);
+        }
+      }
+      releaseDams(day);
+    }
+    
+    // PHASE 2: Calculate TODAY's flows (will be applied tomorrow - cascade delay)
+    if (day >= 1 && day <= network.routingDays()) {
+      double[][] fractions = network.drawFractions(day);
+      timed = firstTimed(network.edgeCount());
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        if (edge == timed) {
+          timed = timedDepart(edge, edge, day, fractions[edge]);
+        } else {
+          depart(edge, day, fractions[edge]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Simulate one day of the nodes and edges outside the memoised
+   * sub-catchments, then copy in the flows leaving them
+   */
+  private void simulateReplayedDay(int day) {
+    double[] gridded = gridded(day);
+    int[] nodes = replay.simulatedNodes;
+    int timed = firstTimed(nodes.length);
+    for (int i = 0; i < nodes.length; i++) {
+      if (i == timed) {
+        timed = timedWater(i, nodes[i], day, gridded);
+      } else {
+        water(nodes[i], day, gridded);
+      }
+    }
+    if (day > 1) {
+      int[] edges = replay.arrivingEdges;
+      timed = firstTimed(edges.length);
+      for (int i = 0; i < edges.length; i++) {
+        if (i == timed) {
+          timed = timedArrive(i, edges[i], day);
+        } else {
+          arrive(edges[i], day);
+        }
+      }
+      releaseDams(day);
+    }
+    if (day <= network.routingDays()) {
+      double[][] fractions = network.drawFractions(day);
+      int[] edges = replay.departingEdges;
+      timed = firstTimed(edges.length);
+      for (int i = 0; i < edges.length; i++) {
+        if (i == timed) {
+          timed = timedDepart(i, edges[i], day, fractions[edges[i]]);
+        } else {
+          depart(edges[i], day, fractions[edges[i]]);
+        }
+      }
+    }
+    long started = profiler == null ? 0 : System.nanoTime();
+    replay.apply(day, state);
+    if (profiler != null) profiler.recordPart(Profiler.REPLAY, started);
+  }
+
+  /**
+   * Simulate one day touching only the nodes and edges the scheduler says
+   * are active. Gives the same result as simulateDay.
+   */
+  private void simulateActiveDay(int day) {
+    int wet = events.wetNodes(day, activeNodes);
+    int timed = firstTimed(wet);
+    for (int i = 0; i < wet; i++) {
+      int node = activeNodes[i];
+      if (i == timed) {
+        long started = System.nanoTime();
+        addRainfall(node, network.rainfall[node].on(day));
+        timed = profiler.record(Profiler.WATER, node, 2, started, i);
+      } else {
+        addRainfall(node, network.rainfall[node].on(day));
+      }
+    }
+
+    if (day > 1) {
+      int arriving = events.takePendingEdges(activeEdges);
+      timed = firstTimed(arriving);
+      for (int i = 0; i < arriving; i++) {
+        if (i == timed) {
+          timed = timedArrive(i, activeEdges[i], day);
+        } else {
+          arrive(activeEdges[i], day);
+        }
+      }
+      releaseDams(day);
+    }
+
+    if (day <= network.routingDays()) {
+      double[][] fractions = network.drawFractions(day);
+      timed = firstTimed(network.edgeCount());
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        if (edge == timed) {
+          timed = timedDepart(edge, edge, day, fractions[edge]);
+        } else {
+          depart(edge, day, fractions[edge]);
+        }
+      }
+    }
+  }
+
+  /**
+   * The day's rainfall on each node from the rainfall grid, or null if
+   * there is no grid
+   */
+  private double[] gridded(int day) {
+    if (grid == null) return null;
+    long started = profiler == null ? 0 : System.nanoTime();
+    double[] gridded = grid.on(day);
+    if (profiler != null) profiler.recordPart(Profiler.GRID, started);
+    return gridded;
+  }
+
+  /**
+   * The index of the first step of a loop of steps that the profiler times,
+   * steps if none is (or there is no profiler). Timing a step is a separate
+   * path through the loop, so the steps it does not time cost nothing extra.
+   */
+  private int firstTimed(int steps) {
+    return profiler == null ? steps : profiler.firstTimed(steps);
+  }
+
+  /**
+   * water() as step of its loop, timed; returns the next step to time
+   */
+  private int timedWater(int step, int node, int day, double[] gridded) {
+    long started = System.nanoTime();
+    int operations = water(node, day, gridded);
+    return profiler.record(Profiler.WATER, node, operations, started, step);
+  }
+
+  private int timedArrive(int step, int edge, int day) {
+    long started = System.nanoTime();
+    int operations = arrive(edge, day);
+    return profiler.record(Profiler.ARRIVALS, edge, operations, started, step);
+  }
+
+  private int timedDepart(int step, int edge, int day, double[] fractions) {
+    long started = System.nanoTime();
+    int operations = depart(edge, day, fractions);
+    return profiler.record(Profiler.DEPARTURES, edge, operations, started, step);
+  }
+
+  /**
+   * Add a node's rainfall for the day, and take away its losses. Returns
+   * the rainfall values read and volumes changed.
+   */
+  private int water(int node, int day, double[] gridded) {
+    int operations = 0;
+    RainfallSeries series = network.rainfall[node];
+    if (day <= series.days()) {
+      double rainfall = series.on(day);
+      operations++;
+      if (rainfall > epsilon) {
+        addRainfall(node, rainfall);
+        operations++;
+      }
+    }
+    if (gridded != null && gridded[node] > epsilon) {
+      addRainfall(node, gridded[node]);
+      operations += 2;
+    }
+    if (losses != null && losses.any[node]) {
+      lose(node, day);
+      operations += 2;
+    }
+    return operations;
+  }
+
+  private void addRainfall(int node, double rainfall) {
+    // Convert mm to ML (simplified: 1mm = 1ML for this simulation)
+    // Simplified: 1mm = 1ML (assumes 0.001 km² catchment)
+    double volumeAdded = rainfall;
+    volumes.put(node, volumes.get(node) + volumeAdded);
+    if (aggregation != null) aggregation.inflows[node] += volumeAdded;
+    if (balance != null) balance.rainfall += volumeAdded;
+    if (daily) System.out.println("  " + network.names[node] + ": +" + rainfall + "mm (" + 
+        volumeAdded + "ML), total: " + 
+        String.format("%.3f", volumes.get(node)) + "ML");
+  }
+
+  /**
+   * Take a node's evaporation, infiltration and seepage for the day, from
+   * what it holds: a dam's level, or a river's volume
+   */
+  private void lose(int node, int day) {
+    int dam = network.damOf[node];
+    double held = dam >= 0 ? levels.get(dam) : volumes.get(node);
+    double lost = losses.loss(node, day, held);
+    if (!(lost > 0)) return;
+    if (dam >= 0) levels.put(dam, held - lost);
+    volumes.put(node, volumes.get(node) - lost);
+    if (aggregation != null) aggregation.losses[node] += lost;
+    if (balance != null) balance.losses += lost;
+    if (daily) System.out.println("  " + network.names[node] + ": -" +
+        String.format("%.3f", lost) + "ML lost, total: " +
+        String.format("%.3f", volumes.get(node)) + "ML");
+  }
+
+  /**
+   * Deliver the flow an edge scheduled yesterday. Flow into a dam is only
+   * added up here; releaseDams lets the dams respond once every edge has
+   * delivered. Returns the pending slots delivered.
+   */
+  private int arrive(int edge, int day) {
+    int[] slotDestinations = network.pendingDestinations[edge];
+    int base = network.slotStart[edge];
+    boolean replayed = replay != null && replay.replayedEdge[edge];
+    for (int slot = 0; slot < slotDestinations.length; slot++) {
+      int dest = slotDestinations[slot];
+      if (replayed && replay.replayedNode[dest]) continue; // Recorded with its sub-catchment
+      double amount = pending.get(base + slot);
+      
+      if (amount > 0) {
+        if (aggregation != null) aggregation.inflows[dest] += amount;
+        int damIndex = network.damOf[dest];
+        if (damIndex >= 0) {
+          if (damInflows[damIndex] == 0.0) arrivedDams[arrivedCount++] = damIndex;
+          damInflows[damIndex] += amount;
+        } else {
+          // Regular river destination
+          volumes.put(dest, volumes.get(dest) + amount);
+          if (daily) System.out.println("  Flow: +" + 
+              String.format("%.3f", amount) + 
+              "ML to " + network.names[dest] + " (from yesterday)");
+        }
+      }
+      // Clear pending flows after applying them
+      pending.put(base + slot, 0.0);
+    }
+    return slotDestinations.length;
+  }
+
+  /**
+   * Apply each dam's control algorithm to all the flow that arrived at it
+   * today, so a dam fed by several flows decides once on their total
+   * whatever order they arrive in
+   */
+  private void releaseDams(int day) {
+    int timed = firstTimed(arrivedCount);
+    for (int i = 0; i < arrivedCount; i++) {
+      if (i == timed) {
+        long started = System.nanoTime();
+        release(arrivedDams[i], day);
+        timed = profiler.record(Profiler.RELEASES, arrivedDams[i], 1, started, i);
+      } else {
+        release(arrivedDams[i], day);
+      }
+    }
+    arrivedCount = 0;
+  }
+
+  /**
+   * Apply one dam's control algorithm to the flow that arrived at it today
+   */
+  private void release(int damIndex, int day) {
+    int dest = network.damNodes[damIndex];
+    DamState dam = dams[damIndex];
+    dam.currentLevel = levels.get(damIndex);
+    
+    // Get today's rainfall on the dam (if any)
+    double todayRainfall = network.rainfall[dest].on(day);
+    
+    // Dam decides how much to release based on:
+    // 1. Current dam level
+    // 2. Inflow amount (from yesterday's flows)
+    // 3. Today's rainfall
+    double inflow = damInflows[damIndex];
+    double releaseAmount = dam.calculateRelease(inflow, todayRainfall, day);
+    
+    // Update dam level
+    dam.updateLevel(inflow, releaseAmount, todayRainfall);
+    levels.put(damIndex, dam.currentLevel);
+    if (balance != null) {
+      // Today's rainfall is already in the node's volume
+      balance.damError(day, dest,
+          dam.currentLevel - (volumes.get(dest) + inflow - releaseAmount));
+      balance.outflow += releaseAmount;
+      balance.spilled += dam.spilled;
+    }
+    volumes.put(dest, dam.currentLevel);
+    if (aggregation != null) aggregation.spills[dest] += dam.spilled;
+    damInflows[damIndex] = 0.0;
+    
+    if (daily) System.out.println("  Dam " + dam.name + ": inflow +" + 
+        String.format("%.3f", inflow) + "ML (from yesterday), level " +
+        String.format("%.3f", dam.currentLevel) + "ML (" +
+        String.format("%.3f", dam.currentLevel/dam.capacity*100) + "%), released " +
+        String.format("%.3f", releaseAmount) + "ML");
+  }
+
+  /**
+   * Move today's share of an edge's sources into its pending slots, during
+   * the edge's flow period. Returns the source volumes read and changed
+   * and pending slots written.
+   */
+  private int depart(int edge, int day, double[] fractions) {
+    if (day > network.edgeFlowOutDays[edge]) return 0; // This flow has finished
+    int[] sources = network.sources[edge];
+    int[] destinations = network.destinations[edge];
+
+    // Calculate flow amount: each source's share (distribute evenly over flowOutDays)
+    double flowAmount = 0;
+    for (int i = 0; i < sources.length; i++) {
+      flowAmount += volumes.get(sources[i]) * fractions[i];
+    }
+    
+    // Distribute water to destinations
+    if (flowAmount > epsilon && destinations.length > 0) {
+      double amountPerDestination = flowAmount / destinations.length;
+      
+      // Remove from sources TODAY
+      double removed = 0;
+      for (int i = 0; i < sources.length; i++) {
+        double volume = volumes.get(sources[i]);
+        double left = volume - volume * fractions[i];
+        volumes.put(sources[i], left);
+        removed += volume - left;
+      }
+      
+      // Store pending flows to be applied TOMORROW (realistic cascade delay)
+      double placed = 0;
+      for (int i = 0; i < destinations.length; i++) {
+        int slot = network.slotOf[edge][i];
+        if (slot < 0) {
+          // Destination pruned from this run, so the water leaves it
+          if (balance != null) balance.outflow += amountPerDestination;
+          placed += amountPerDestination;
+          continue;
+        }
+        int index = network.slotStart[edge] + slot;
+        if (balance != null) placed -= pending.get(index);
+        pending.put(index, amountPerDestination);
+        placed += amountPerDestination;
+        if (daily) System.out.println("  Flow scheduled: " + 
+            String.format("%.3f", amountPerDestination) + 
+            "ML → " + network.names[destinations[i]] + " (will arrive tomorrow)");
+      }
+      if (events != null) events.edgeScheduled(edge);
+      if (balance != null) balance.flowError(day, edge, placed - removed);
+      return 2 * sources.length + destinations.length;
+    }
+    return sources.length;
+  }
+
+  /**
+   * Print the rivers, dams, flows and cycles of a network, before its run
+   */
+  static void describe(FlowNetwork network) {
+    String[] names = network.names;
+    // Print river information
+    System.out.println("Rivers:");
+    for (int node = 0; node < network.nodeCount(); node++) {
+      System.out.println("  " + names[node] + ":");
+      System.out.println("    Total rainfall: " + network.rainfall[node].total() + "mm");
+      if (network.losses != null && network.losses.any[node]) {
+        System.out.println("    Losses: " + network.losses.describe(node));
+      }
+      if (network.grid != null && network.grid.feeds(node)) {
+        System.out.println("    Rainfall grid: " + network.grid.fileName + " (" +
+            network.grid.weights.rowLength(node) + " cells)");
+      }
+      if (network.hasCapacity(node)) {
+        System.out.println("    Capacity: " + network.capacities[node] + "ML");
+      }
+    }
+    
+    // Print dam information
+    if (network.damCount() > 0) {
+      System.out.println("\nDams:");
+      for (int dam = 0; dam < network.damCount(); dam++) {
+        System.out.println("  " + names[network.damNodes[dam]] + ":");
+        System.out.println("    Capacity: " + network.damCapacities[dam] + "ML");
+        System.out.println("    " + network.damPolicies[dam].describe());
+      }
+    }
+    
+    // Print flow connections
+    if (network.edgeCount() > 0) {
+      System.out.println("\nFlow connections:");
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        System.out.println("  Flow " + (edge + 1) + ": " + 
+            names(network, network.sources[edge]) + " -> " + 
+            names(network, network.destinations[edge]));
+      }
+
+      // Print the cycles the flows form, if any
+      FlowGraph graph = new FlowGraph(network);
+      int cycles = 0;
+      for (int component = 0; component < graph.components.length; component++) {
+        if (!graph.cyclic(component)) continue;
+        if (cycles++ == 0) System.out.println("\nCycles:");
+        StringJoiner members = new StringJoiner(", ");
+        for (int node : graph.components[component]) members.add(names[node]);
+        System.out.println("  Cycle " + cycles + ": " + members);
+      }
+    }
+  }
+
+  /**
+   * Print each node's final volume, with any capacity warning
+   */
+  static void printSummary(FlowNetwork network, DoubleBuffer volumes) {
+    // Print final summary
+    System.out.println("\n=== Final Summary ===");
+    for (int node = 0; node < network.nodeCount(); node++) {
+      double volume = volumes.get(node);
+      System.out.println(network.names[node] + ": " + 
+          String.format("%.3f", volume) + "ML");
+      
+      // Check capacity warnings
+      if (network.hasCapacity(node)) {
+        double capacity = network.capacities[node];
+        double percentage = volume / capacity * 100;
+        
+        if (percentage >= 100) {
+          double overflow = volume - capacity;
+          System.out.println("  WARNING: Capacity exceeded! Overflow: " + 
+              String.format("%.3f", overflow) + "ML");
+        } else if (percentage >= 80) {
+          System.out.println("  WARNING: At " + String.format("%.3f", percentage) + 
+              "% capacity");
+        }
+      }
+    }
+  }
+
+  static String names(FlowNetwork network, int[] nodes) {
+    StringJoiner joined = new StringJoiner(" + ");
+    for (int node : nodes) {
+      if (node >= 0) joined.add(network.names[node]);
+    }
+    return joined.toString();
+  }
+}
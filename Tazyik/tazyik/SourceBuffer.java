@@ -0,0 +1,69 @@
+package tazyik;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only character view over a memory-mapped source file.
+ * Tazyik programs are almost always plain ASCII, so each byte is handed to
+ * the scanner as one char without decoding the file into a second copy on
+ * the heap. A file with any other byte is decoded from UTF-8 instead.
+ */
+class SourceBuffer implements CharSequence {
+  private final ByteBuffer bytes;
+  private final int offset;
+  private final int length;
+
+  private SourceBuffer(ByteBuffer bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * The characters of a source file: the mapped bytes if they are all
+   * ASCII, or else the file decoded from UTF-8, so that a string or Import
+   * path with other characters reaches the scanner as written
+   */
+  static CharSequence map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Source file too large: " + path);
+      }
+      ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      for (int i = 0; i < size; i++) {
+        if (bytes.get(i) < 0) return StandardCharsets.UTF_8.decode(bytes).toString();
+      }
+      return new SourceBuffer(bytes, 0, (int) size);
+    }
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (bytes.get(offset + index) & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new SourceBuffer(bytes, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = charAt(i);
+    }
+    return new String(chars);
+  }
+}
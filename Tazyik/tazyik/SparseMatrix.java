@@ -0,0 +1,251 @@
+package tazyik;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix in compressed sparse row form, with just what its users
+ * need: matrix-vector and matrix-matrix products of square matrices for the
+ * fast-forward, and row-range products of the rectangular weight matrices
+ * of gridded rainfall.
+ */
+class SparseMatrix {
+  final int size; // Number of rows
+  private final int[] rowStart; // Entries of row r are rowStart[r]..rowStart[r + 1]
+  private final int[] columns;
+  private final double[] values;
+
+  private SparseMatrix(int size, int[] rowStart, int[] columns, double[] values) {
+    this.size = size;
+    this.rowStart = rowStart;
+    this.columns = columns;
+    this.values = values;
+  }
+
+  /**
+   * Build a matrix from one sparse row per index; rows[r] may be null for an
+   * all-zero row.
+   */
+  static SparseMatrix fromRows(Row[] rows) {
+    int size = rows.length;
+    int[] rowStart = new int[size + 1];
+    for (int r = 0; r < size; r++) {
+      rowStart[r + 1] = rowStart[r] + (rows[r] == null ? 0 : rows[r].count);
+    }
+    int[] columns = new int[rowStart[size]];
+    double[] values = new double[rowStart[size]];
+    for (int r = 0; r < size; r++) {
+      if (rows[r] == null) continue;
+      System.arraycopy(rows[r].columns, 0, columns, rowStart[r], rows[r].count);
+      System.arraycopy(rows[r].values, 0, values, rowStart[r], rows[r].count);
+    }
+    return new SparseMatrix(size, rowStart, columns, values);
+  }
+
+  /**
+   * Build a matrix with the given number of rows from (row, column, value)
+   * entries in any order. Entries at the same position are added up.
+   */
+  static SparseMatrix fromEntries(int size, int[] entryRows, int[] entryColumns,
+                                  double[] entryValues, int count) {
+    // Bucket the entries by row, then sort each row's by column
+    int[] rowStart = new int[size + 1];
+    for (int i = 0; i < count; i++) rowStart[entryRows[i] + 1]++;
+    for (int r = 0; r < size; r++) rowStart[r + 1] += rowStart[r];
+    int[] fill = Arrays.copyOf(rowStart, size);
+    long[] keys = new long[count]; // Column in the high half, entry in the low half
+    for (int i = 0; i < count; i++) {
+      keys[fill[entryRows[i]]++] = ((long) entryColumns[i] << 32) | i;
+    }
+
+    int[] columns = new int[count];
+    double[] values = new double[count];
+    int[] mergedStart = new int[size + 1];
+    int n = 0;
+    for (int r = 0; r < size; r++) {
+      Arrays.sort(keys, rowStart[r], rowStart[r + 1]);
+      for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+        int column = (int) (keys[k] >>> 32);
+        double value = entryValues[(int) keys[k]];
+        if (n > mergedStart[r] && columns[n - 1] == column) {
+          values[n - 1] += value;
+        } else {
+          columns[n] = column;
+          values[n++] = value;
+        }
+      }
+      mergedStart[r + 1] = n;
+    }
+    return new SparseMatrix(size, mergedStart,
+        Arrays.copyOf(columns, n), Arrays.copyOf(values, n));
+  }
+
+  int nonZeros() {
+    return rowStart[size];
+  }
+
+  int rowLength(int row) {
+    return rowStart[row + 1] - rowStart[row];
+  }
+
+  /**
+   * The matrix made of the given rows of this one, in that order
+   */
+  SparseMatrix rows(int[] which) {
+    int[] start = new int[which.length + 1];
+    for (int r = 0; r < which.length; r++) {
+      start[r + 1] = start[r] + rowLength(which[r]);
+    }
+    int[] keptColumns = new int[start[which.length]];
+    double[] keptValues = new double[keptColumns.length];
+    for (int r = 0; r < which.length; r++) {
+      System.arraycopy(columns, rowStart[which[r]], keptColumns, start[r], rowLength(which[r]));
+      System.arraycopy(values, rowStart[which[r]], keptValues, start[r], rowLength(which[r]));
+    }
+    return new SparseMatrix(which.length, start, keptColumns, keptValues);
+  }
+
+  /**
+   * Rows from (inclusive) to to (exclusive) of this * vector, written to
+   * the same rows of result
+   */
+  void multiply(double[] vector, double[] result, int from, int to) {
+    for (int r = from; r < to; r++) {
+      double sum = 0.0;
+      for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+        sum += values[k] * vector[columns[k]];
+      }
+      result[r] = sum;
+    }
+  }
+
+  double[] multiply(double[] vector) {
+    double[] result = new double[size];
+    for (int r = 0; r < size; r++) {
+      double sum = 0.0;
+      for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+        sum += values[k] * vector[columns[k]];
+      }
+      result[r] = sum;
+    }
+    return result;
+  }
+
+  /**
+   * this * other, row by row with a dense accumulator (Gustavson's method).
+   * Both must be square.
+   */
+  SparseMatrix multiply(SparseMatrix other) {
+    double[] accumulator = new double[size];
+    int[] marker = new int[size];
+    Arrays.fill(marker, -1);
+    int[] touched = new int[size];
+
+    int[] rowStart = new int[size + 1];
+    int[] columns = new int[Math.max(16, nonZeros())];
+    double[] values = new double[columns.length];
+    int count = 0;
+
+    for (int r = 0; r < size; r++) {
+      int touchedCount = 0;
+      for (int k = this.rowStart[r]; k < this.rowStart[r + 1]; k++) {
+        int middle = this.columns[k];
+        double scale = this.values[k];
+        for (int j = other.rowStart[middle]; j < other.rowStart[middle + 1]; j++) {
+          int column = other.columns[j];
+          if (marker[column] != r) {
+            marker[column] = r;
+            accumulator[column] = 0.0;
+            touched[touchedCount++] = column;
+          }
+          accumulator[column] += scale * other.values[j];
+        }
+      }
+      Arrays.sort(touched, 0, touchedCount);
+      if (count + touchedCount > columns.length) {
+        int capacity = Math.max(columns.length * 2, count + touchedCount);
+        columns = Arrays.copyOf(columns, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      for (int t = 0; t < touchedCount; t++) {
+        int column = touched[t];
+        if (accumulator[column] == 0.0) continue;
+        columns[count] = column;
+        values[count] = accumulator[column];
+        count++;
+      }
+      rowStart[r + 1] = count;
+    }
+    return new SparseMatrix(size, rowStart,
+        Arrays.copyOf(columns, count), Arrays.copyOf(values, count));
+  }
+
+  /**
+   * this^power * vector by repeated squaring: O(log power) products.
+   */
+  double[] power(long power, double[] vector) {
+    double[] result = vector;
+    SparseMatrix square = this;
+    while (power > 0) {
+      if ((power & 1) != 0) {
+        result = square.multiply(result);
+      }
+      power >>= 1;
+      if (power > 0) {
+        square = square.multiply(square);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A sparse row under construction: a linear combination of state
+   * components, kept sorted by column.
+   */
+  static class Row {
+    final int[] columns;
+    final double[] values;
+    final int count;
+
+    Row() {
+      this(new int[0], new double[0], 0);
+    }
+
+    private Row(int[] columns, double[] values, int count) {
+      this.columns = columns;
+      this.values = values;
+      this.count = count;
+    }
+
+    static Row unit(int column) {
+      return new Row(new int[] { column }, new double[] { 1.0 }, 1);
+    }
+
+    Row scaled(double factor) {
+      double[] scaled = Arrays.copyOf(values, count);
+      for (int i = 0; i < count; i++) scaled[i] *= factor;
+      return new Row(columns, scaled, count);
+    }
+
+    /**
+     * this + factor * other
+     */
+    Row plus(Row other, double factor) {
+      int[] mergedColumns = new int[count + other.count];
+      double[] mergedValues = new double[count + other.count];
+      int i = 0, j = 0, n = 0;
+      while (i < count || j < other.count) {
+        if (j == other.count || (i < count && columns[i] < other.columns[j])) {
+          mergedColumns[n] = columns[i];
+          mergedValues[n++] = values[i++];
+        } else if (i == count || other.columns[j] < columns[i]) {
+          mergedColumns[n] = other.columns[j];
+          mergedValues[n++] = factor * other.values[j++];
+        } else {
+          mergedColumns[n] = columns[i];
+          mergedValues[n++] = values[i++] + factor * other.values[j++];
+        }
+      }
+      return new Row(mergedColumns, mergedValues, n);
+    }
+  }
+}
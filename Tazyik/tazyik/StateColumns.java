@@ -0,0 +1,101 @@
+package tazyik;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The mutable state of one simulation run as flat columns of doubles: the
+ * volume of each node, each edge's pending flow slots (starting at
+ * network.slotStart[edge]) and the level of each dam.
+ *
+ * The columns are on the Java heap by default. For very large networks they
+ * can instead live in direct memory, or in a memory-mapped file so that
+ * state larger than RAM is paged in as the day loop reaches it. Either way
+ * the garbage collector never scans or moves them, and reading and writing
+ * them allocates nothing.
+ */
+class StateColumns {
+  final DoubleBuffer volumes;
+  final DoubleBuffer pending;
+  final DoubleBuffer levels;
+
+  private StateColumns(DoubleBuffer volumes, DoubleBuffer pending, DoubleBuffer levels) {
+    this.volumes = volumes;
+    this.pending = pending;
+    this.levels = levels;
+  }
+
+  static StateColumns onHeap(FlowNetwork network) {
+    return new StateColumns(DoubleBuffer.allocate(network.nodeCount()),
+        DoubleBuffer.allocate(network.slotCount()),
+        DoubleBuffer.allocate(network.damCount()));
+  }
+
+  /**
+   * Columns in direct memory. Throws IllegalArgumentException if a column
+   * has more than 2^28 values.
+   */
+  static StateColumns direct(FlowNetwork network) {
+    return new StateColumns(direct(network.nodeCount()),
+        direct(network.slotCount()), direct(network.damCount()));
+  }
+
+  /**
+   * Columns backed by the given file, which is created or emptied first.
+   * Each column is mapped separately, so each can hold up to 2^28 values.
+   * Throws IllegalArgumentException if a column is larger.
+   */
+  static StateColumns mapped(FlowNetwork network, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // The mappings stay valid after the channel is closed
+      long offset = 0;
+      DoubleBuffer volumes = map(channel, offset, network.nodeCount());
+      offset += (long) network.nodeCount() * Double.BYTES;
+      DoubleBuffer pending = map(channel, offset, network.slotCount());
+      offset += (long) network.slotCount() * Double.BYTES;
+      DoubleBuffer levels = map(channel, offset, network.damCount());
+      return new StateColumns(volumes, pending, levels);
+    }
+  }
+
+  /**
+   * Overwrite other, which must be for the same network, with this state
+   */
+  void copyTo(StateColumns other) {
+    other.volumes.put(0, volumes, 0, volumes.capacity());
+    other.pending.put(0, pending, 0, pending.capacity());
+    other.levels.put(0, levels, 0, levels.capacity());
+  }
+
+  private static DoubleBuffer direct(int count) {
+    return ByteBuffer.allocateDirect(bytes(count))
+        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+  }
+
+  private static DoubleBuffer map(FileChannel channel, long offset, int count)
+      throws IOException {
+    // Mapping past the end of the file extends it with zeros
+    return channel.map(FileChannel.MapMode.READ_WRITE, offset, bytes(count))
+        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+  }
+
+  /**
+   * Size in bytes of a column of count values, which a single direct or
+   * mapped buffer must be able to hold
+   */
+  private static int bytes(int count) {
+    long bytes = (long) count * Double.BYTES;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("A state column of " + count + " values needs " +
+          bytes + " bytes, more than the " + Integer.MAX_VALUE + " one buffer can hold.");
+    }
+    return (int) bytes;
+  }
+}
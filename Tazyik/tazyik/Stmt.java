@@ -10,6 +10,11 @@ abstract class Stmt {
     R visitFlowOutDeclStmt(FlowOutDecl stmt);
     R visitRiverUpdateStmt(RiverUpdate stmt);
     R visitDamDeclStmt(DamDecl stmt);
+    R visitReportDeclStmt(ReportDecl stmt);
+    R visitGridDeclStmt(GridDecl stmt);
+    R visitLossDeclStmt(LossDecl stmt);
+    R visitImportDeclStmt(ImportDecl stmt);
+    R visitExportDeclStmt(ExportDecl stmt);
   }
   static class RiverDecl extends Stmt {
     RiverDecl(Token name, Expr expr) {
@@ -82,10 +87,12 @@ abstract class Stmt {
     final Expr expr;
   }
   static class DamDecl extends Stmt {
-    DamDecl(Token name, double capacity, double releasePercent) {
+    DamDecl(Token name, double capacity, double releasePercent, Token policy, Expr policyArgument) {
       this.name = name;
       this.capacity = capacity;
       this.releasePercent = releasePercent;
+      this.policy = policy;
+      this.policyArgument = policyArgument;
     }
 
     @Override
@@ -96,6 +103,80 @@ abstract class Stmt {
     final Token name;
     final double capacity;
     final double releasePercent;
+    final Token policy;
+    final Expr policyArgument;
+  }
+  static class ReportDecl extends Stmt {
+    ReportDecl(Token name) {
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitReportDeclStmt(this);
+    }
+
+    final Token name;
+  }
+  static class GridDecl extends Stmt {
+    GridDecl(Token kind, String grid, String weights) {
+      this.kind = kind;
+      this.grid = grid;
+      this.weights = weights;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGridDeclStmt(this);
+    }
+
+    final Token kind;
+    final String grid;
+    final String weights;
+  }
+  static class LossDecl extends Stmt {
+    LossDecl(Token name, Token kind, Expr argument) {
+      this.name = name;
+      this.kind = kind;
+      this.argument = argument;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLossDeclStmt(this);
+    }
+
+    final Token name;
+    final Token kind;
+    final Expr argument;
+  }
+  static class ImportDecl extends Stmt {
+    ImportDecl(Token keyword, String file, Token alias) {
+      this.keyword = keyword;
+      this.file = file;
+      this.alias = alias;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportDeclStmt(this);
+    }
+
+    final Token keyword;
+    final String file;
+    final Token alias;
+  }
+  static class ExportDecl extends Stmt {
+    ExportDecl(Token name) {
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitExportDeclStmt(this);
+    }
+
+    final Token name;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
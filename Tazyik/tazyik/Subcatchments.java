@@ -0,0 +1,552 @@
+package tazyik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds sub-catchments that can be simulated on their own and computes each
+ * distinct one only once, replaying the recorded result wherever it occurs.
+ *
+ * A sub-catchment is a closed set of nodes: every flow into one of its
+ * nodes, and every flow one of its nodes is a source of, has all of its
+ * sources inside the set. Nothing outside can then change what happens
+ * inside, and the day loop does the same arithmetic on it in the same
+ * order whether it is alone or part of the whole network, so a recording
+ * made alone is exact. The outside only sees the flows leaving it, through
+ * its edges' pending slots.
+ *
+ * Two sub-catchments are the same if their nodes and flows, taken in
+ * network order, have the same capacities, dams, release policies,
+ * routing, losses and rainfall segments. Recordings are kept in a
+ * least-recently-used cache shared by every simulation in the process, so
+ * repeated runs over the same network (an optimisation or calibration)
+ * reuse them too. A recording holds every day of its sub-catchment, so the
+ * cache is bounded by the bytes it holds rather than by a count.
+ */
+class Subcatchments {
+  static final int MAX_NODES = 1024; // Larger closed sets are not worth the search
+  static final long CACHE_BYTES = 256L << 20; // Most the cached recordings may hold
+
+  // Least recently used first
+  private static final Map<Key, Recording> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private static long cachedBytes = 0; // Held by the cached recordings, guarded by cache
+
+  final int[][] units; // Nodes of each memoised sub-catchment, ascending
+  private final int[][] touching; // Per node, the edges it is a source or destination of
+  private final boolean withDams;
+  private final int[] watched; // Nodes whose volumes are read every day
+  private Replay last; // The most recent replay, reused while nothing it depends on changes
+
+  private Subcatchments(int[][] units, int[][] touching, boolean withDams, int[] watched) {
+    this.units = units;
+    this.touching = touching;
+    this.withDams = withDams;
+    this.watched = watched;
+  }
+
+  /**
+   * Choose disjoint sub-catchments to memoise, largest first: those that
+   * occur at least minCopies times in the network (2 for a single run, 1
+   * when many runs will share the cache), leaving out any with dams unless
+   * withDams is set. Watched nodes are the ones the caller reads during
+   * the run rather than at the end.
+   */
+  static Subcatchments find(FlowNetwork network, int minCopies, boolean withDams,
+                            int[] watched) {
+    int[][] touching = network.edgesTouching();
+    Set<List<Integer>> seen = new HashSet<>();
+    List<int[]> candidates = new ArrayList<>();
+    boolean[] scratch = new boolean[network.nodeCount()];
+    for (int node = 0; node < network.nodeCount(); node++) {
+      int[] closure = closure(network, touching, scratch, node);
+      if (closure == null || closure.length == network.nodeCount()) continue;
+      if (!withDams && Arrays.stream(closure).anyMatch(n -> network.damOf[n] >= 0)) continue;
+      // Grid rainfall is streamed, not part of the key
+      if (network.grid != null && Arrays.stream(closure).anyMatch(network.grid::feeds)) continue;
+      List<Integer> members = new ArrayList<>();
+      for (int member : closure) members.add(member);
+      if (seen.add(members)) candidates.add(closure);
+    }
+    candidates.sort((a, b) -> b.length - a.length);
+
+    // Group identical candidates, in order of size
+    Map<Key, List<int[]>> groups = new LinkedHashMap<>();
+    for (int[] candidate : candidates) {
+      groups.computeIfAbsent(new Unit(network, touching, candidate, 0.0).key,
+          key -> new ArrayList<>())
+          .add(candidate);
+    }
+
+    boolean[] claimed = new boolean[network.nodeCount()];
+    List<int[]> units = new ArrayList<>();
+    for (List<int[]> group : groups.values()) {
+      List<int[]> disjoint = new ArrayList<>();
+      for (int[] candidate : group) {
+        boolean free = true;
+        for (int member : candidate) free &= !claimed[member];
+        if (!free) continue;
+        disjoint.add(candidate);
+        for (int member : candidate) claimed[member] = true;
+      }
+      if (disjoint.size() >= minCopies) {
+        units.addAll(disjoint);
+      } else {
+        for (int[] candidate : disjoint) {
+          for (int member : candidate) claimed[member] = false;
+        }
+      }
+    }
+    return new Subcatchments(units.toArray(new int[0][]), touching, withDams, watched);
+  }
+
+  /**
+   * Keep a recording, dropping the least recently used ones until the
+   * cache is within CACHE_BYTES. One larger than that on its own is
+   * dropped too; its replay still uses it.
+   */
+  private static void cache(Key key, Recording recording) {
+    synchronized (cache) {
+      Recording replaced = cache.put(key, recording);
+      if (replaced != null) cachedBytes -= replaced.bytes();
+      cachedBytes += recording.bytes();
+      Iterator<Recording> eldest = cache.values().iterator();
+      while (cachedBytes > CACHE_BYTES) {
+        cachedBytes -= eldest.next().bytes();
+        eldest.remove();
+      }
+    }
+  }
+
+  int nodeCount() {
+    int nodes = 0;
+    for (int[] unit : units) nodes += unit.length;
+    return nodes;
+  }
+
+  /**
+   * The recordings for a network with the same nodes and flows as the one
+   * these were found in (its policies and routing may differ), covering
+   * at least the given number of days
+   */
+  Replay replay(FlowNetwork network, double epsilon, int days) {
+    synchronized (this) {
+      if (last != null && last.reusableFor(network, epsilon, days, withDams)) return last;
+    }
+    Replay replay = new Replay(network, epsilon, days, watched);
+    for (int[] nodes : units) {
+      Unit unit = new Unit(network, touching, nodes, epsilon);
+      Recording recording;
+      synchronized (cache) {
+        recording = cache.get(unit.key);
+      }
+      if (recording == null || recording.days < days) {
+        recording = unit.record(network, epsilon, days);
+        replay.recorded++;
+        cache(unit.key, recording);
+      }
+      replay.add(unit, recording);
+    }
+    replay.complete();
+    synchronized (this) {
+      last = replay;
+    }
+    return replay;
+  }
+
+  /**
+   * The smallest closed set containing node, or null if it has more than
+   * MAX_NODES nodes. member is all false on entry and on return.
+   */
+  private static int[] closure(FlowNetwork network, int[][] touching, boolean[] member,
+                               int node) {
+    int[] queue = new int[MAX_NODES];
+    int size = 0;
+    member[node] = true;
+    queue[size++] = node;
+    boolean tooLarge = false;
+    for (int next = 0; next < size && !tooLarge; next++) {
+      for (int edge : touching[queue[next]]) {
+        for (int source : network.sources[edge]) {
+          if (member[source]) continue;
+          if (size == MAX_NODES) {
+            tooLarge = true;
+            break;
+          }
+          member[source] = true;
+          queue[size++] = source;
+        }
+        if (tooLarge) break;
+      }
+    }
+    for (int i = 0; i < size; i++) member[queue[i]] = false;
+    if (tooLarge) return null;
+    int[] nodes = Arrays.copyOf(queue, size);
+    Arrays.sort(nodes);
+    return nodes;
+  }
+
+  /**
+   * One occurrence of a sub-catchment: its nodes, dams and edges in the
+   * network, and the sub-network that simulates it alone. Destinations
+   * outside it become extra plain nodes ("sinks") there, so its pending
+   * slots are laid out exactly as in the network.
+   */
+  private static class Unit {
+    final int[] nodes;
+    final int[] dams; // Network dam index of each of the unit's dams, in node order
+    final int[] edges; // Edges with a source in the unit, ascending
+    final List<Integer> sinks = new ArrayList<>(); // Network node of each sink
+    final Key key;
+
+    Unit(FlowNetwork network, int[][] touching, int[] nodes, double epsilon) {
+      this.nodes = nodes;
+      List<Integer> damList = new ArrayList<>();
+      Set<Integer> edgeSet = new HashSet<>();
+      for (int node : nodes) {
+        if (network.damOf[node] >= 0) damList.add(network.damOf[node]);
+        // Closed, so every edge touching the unit has all its sources in it
+        for (int edge : touching[node]) edgeSet.add(edge);
+      }
+      dams = damList.stream().mapToInt(Integer::intValue).toArray();
+      edges = edgeSet.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+      StringBuilder shape = new StringBuilder();
+      shape.append(epsilon).append(';').append(network.flowOutDays).append(';');
+      for (int node : nodes) {
+        shape.append(network.capacities[node]);
+        int dam = network.damOf[node];
+        if (dam >= 0) {
+          shape.append('D').append(network.damCapacities[dam])
+              .append(policyKey(network.damPolicies[dam]));
+        }
+        Losses losses = network.losses;
+        if (losses != null && losses.any[node]) {
+          shape.append('L').append(losses.infiltration[node]);
+          if (losses.seepage[node] != null) {
+            shape.append(Arrays.toString(losses.seepage[node].xs))
+                .append(Arrays.toString(losses.seepage[node].ys));
+          }
+        }
+        shape.append(',');
+      }
+      for (int edge : edges) {
+        shape.append('E');
+        for (int source : network.sources[edge]) shape.append(local(source)).append(' ');
+        shape.append('>');
+        for (int dest : network.destinations[edge]) {
+          if (dest >= 0 && local(dest) < 0) sinks.add(dest);
+          shape.append(dest < 0 ? -1 : local(dest)).append(' ');
+        }
+        shape.append(network.edgeFlowOutDays[edge]).append(' ')
+            .append(network.edgeResiduals[edge]);
+      }
+
+      // Each node's rainfall, then its evaporation (none is an empty series)
+      RainfallSeries[] series = new RainfallSeries[2 * nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        series[i] = network.rainfall[nodes[i]];
+        RainfallSeries evaporation =
+            network.losses == null ? null : network.losses.evaporation[nodes[i]];
+        series[nodes.length + i] = evaporation == null ? new RainfallSeries() : evaporation;
+      }
+      key = new Key(shape.toString(), series);
+    }
+
+    /**
+     * Node in the sub-network of a network node, -1 if it is in neither the
+     * unit nor its sinks
+     */
+    int local(int node) {
+      int found = Arrays.binarySearch(nodes, node);
+      if (found >= 0) return found;
+      int sink = sinks.indexOf(node);
+      return sink < 0 ? -1 : nodes.length + sink;
+    }
+
+    /**
+     * Simulate the unit alone and record its state after every day
+     */
+    Recording record(FlowNetwork network, double epsilon, int days) {
+      int count = nodes.length + sinks.size();
+
+      String[] names = new String[count];
+      double[] capacities = new double[count];
+      RainfallSeries[] rainfall = new RainfallSeries[count];
+      for (int i = 0; i < count; i++) {
+        int node = i < nodes.length ? nodes[i] : sinks.get(i - nodes.length);
+        names[i] = network.names[node];
+        capacities[i] = i < nodes.length ? network.capacities[node] : Double.NaN;
+        rainfall[i] = i < nodes.length ? network.rainfall[node] : new RainfallSeries();
+      }
+      int[] damNodes = new int[dams.length];
+      double[] damCapacities = new double[dams.length];
+      ReleasePolicy[] policies = new ReleasePolicy[dams.length];
+      for (int d = 0; d < dams.length; d++) {
+        damNodes[d] = local(network.damNodes[dams[d]]);
+        damCapacities[d] = network.damCapacities[dams[d]];
+        policies[d] = network.damPolicies[dams[d]];
+      }
+      int[][] sources = new int[edges.length][];
+      int[][] destinations = new int[edges.length][];
+      int[] flowOutDays = new int[edges.length];
+      double[] residuals = new double[edges.length];
+      for (int e = 0; e < edges.length; e++) {
+        sources[e] = localNodes(network.sources[edges[e]]);
+        destinations[e] = localNodes(network.destinations[edges[e]]);
+        flowOutDays[e] = network.edgeFlowOutDays[edges[e]];
+        residuals[e] = network.edgeResiduals[edges[e]];
+      }
+      int[] lossNodes = new int[count]; // Sinks lose nothing here; their volumes are not kept
+      for (int i = 0; i < count; i++) lossNodes[i] = i < nodes.length ? nodes[i] : -1;
+      FlowNetwork alone = new FlowNetwork(network.flowOutDays, names, capacities, rainfall,
+          damNodes, damCapacities, policies, sources, destinations, flowOutDays, residuals,
+          null, network.losses == null ? null : network.losses.forNodes(lossNodes));
+
+      Simulation simulation = new Simulation(alone);
+      simulation.daily = false;
+      simulation.epsilon = epsilon;
+      StateColumns state = simulation.state;
+      int slots = alone.slotCount();
+      int width = nodes.length + dams.length + slots;
+      double[] data = new double[days * width];
+      for (int day = 1; day <= days; day++) {
+        simulation.simulateDay(day);
+        int offset = (day - 1) * width;
+        state.volumes.get(0, data, offset, nodes.length);
+        state.levels.get(0, data, offset + nodes.length, dams.length);
+        state.pending.get(0, data, offset + nodes.length + dams.length, slots);
+      }
+      return new Recording(days, width, data);
+    }
+
+    private int[] localNodes(int[] nodes) {
+      int[] mapped = new int[nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        mapped[i] = nodes[i] < 0 ? -1 : local(nodes[i]);
+      }
+      return mapped;
+    }
+
+    private static String policyKey(ReleasePolicy policy) {
+      String key = policy.getClass().getSimpleName() + Arrays.toString(policy.parameters());
+      if (policy instanceof ReleasePolicy.RuleCurve) {
+        LookupTable curve = ((ReleasePolicy.RuleCurve) policy).curve;
+        key += Arrays.toString(curve.xs) + Arrays.toString(curve.ys);
+      } else if (policy instanceof ReleasePolicy.Table) {
+        LookupTable table = ((ReleasePolicy.Table) policy).table;
+        key += Arrays.toString(table.xs) + Arrays.toString(table.ys);
+      }
+      return key;
+    }
+  }
+
+  /**
+   * What makes two sub-catchments the same: their shape as text, and their
+   * rainfall and evaporation series compared segment by segment
+   */
+  private static class Key {
+    final String shape;
+    final RainfallSeries[] rainfall;
+    final int hash;
+
+    Key(String shape, RainfallSeries[] rainfall) {
+      this.shape = shape;
+      this.rainfall = rainfall;
+      int hash = shape.hashCode();
+      for (RainfallSeries series : rainfall) hash = 31 * hash + series.contentHash();
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key key = (Key) other;
+      if (hash != key.hash || !shape.equals(key.shape)) return false;
+      for (int i = 0; i < rainfall.length; i++) {
+        if (!rainfall[i].sameAs(key.rainfall[i])) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A sub-catchment's state after each day: node volumes, dam levels, then
+   * pending slots
+   */
+  private static class Recording {
+    final int days;
+    final int width;
+    final double[] data;
+
+    Recording(int days, int width, double[] data) {
+      this.days = days;
+      this.width = width;
+      this.data = data;
+    }
+
+    long bytes() {
+      return (long) data.length * Double.BYTES;
+    }
+  }
+
+  /**
+   * The memoised sub-catchments of one network. Each day only what the
+   * rest of the network can see is copied into a simulation's state: the
+   * pending slots of flows leaving a sub-catchment, and the volumes of any
+   * watched nodes. The rest is copied once, at the end.
+   */
+  static class Replay {
+    final boolean[] replayedNode;
+    final boolean[] replayedEdge;
+    int[] simulatedNodes; // Nodes still simulated, ascending
+    int[] departingEdges; // Edges still simulated, ascending
+    int[] arrivingEdges; // Edges with a slot whose destination is still simulated
+    private final FlowNetwork network;
+    private final double epsilon;
+    private final int days;
+    private final boolean[] watched;
+    // Per unit, where its recorded state goes, and which of it goes daily
+    private final List<int[]> volumeTargets = new ArrayList<>();
+    private final List<int[]> levelTargets = new ArrayList<>();
+    private final List<int[]> pendingTargets = new ArrayList<>();
+    private final List<int[]> dailyTargets = new ArrayList<>(); // Pairs of slot, offset
+    private final List<int[]> watchedTargets = new ArrayList<>(); // Pairs of node, offset
+    private final List<Recording> recordings = new ArrayList<>();
+    int recorded = 0; // Units simulated rather than found in the cache
+
+    private Replay(FlowNetwork network, double epsilon, int days, int[] watched) {
+      this.network = network;
+      this.epsilon = epsilon;
+      this.days = days;
+      this.replayedNode = new boolean[network.nodeCount()];
+      this.replayedEdge = new boolean[network.edgeCount()];
+      this.watched = new boolean[network.nodeCount()];
+      for (int node : watched) this.watched[node] = true;
+    }
+
+    private void add(Unit unit, Recording recording) {
+      for (int node : unit.nodes) replayedNode[node] = true;
+      List<Integer> slots = new ArrayList<>();
+      for (int edge : unit.edges) {
+        replayedEdge[edge] = true;
+        for (int slot = 0; slot < network.pendingDestinations[edge].length; slot++) {
+          slots.add(network.slotStart[edge] + slot);
+        }
+      }
+      int[] pendingTarget = slots.stream().mapToInt(Integer::intValue).toArray();
+
+      // Offsets into a day of the recording: volumes, levels, then slots
+      int first = unit.nodes.length + unit.dams.length;
+      List<Integer> daily = new ArrayList<>();
+      int i = 0;
+      for (int edge : unit.edges) {
+        for (int dest : network.pendingDestinations[edge]) {
+          if (!replayedNode[dest]) {
+            daily.add(pendingTarget[i]);
+            daily.add(first + i);
+          }
+          i++;
+        }
+      }
+      List<Integer> watchedPairs = new ArrayList<>();
+      for (int n = 0; n < unit.nodes.length; n++) {
+        if (watched[unit.nodes[n]]) {
+          watchedPairs.add(unit.nodes[n]);
+          watchedPairs.add(n);
+        }
+      }
+
+      volumeTargets.add(unit.nodes);
+      levelTargets.add(unit.dams);
+      pendingTargets.add(pendingTarget);
+      dailyTargets.add(daily.stream().mapToInt(Integer::intValue).toArray());
+      watchedTargets.add(watchedPairs.stream().mapToInt(Integer::intValue).toArray());
+      recordings.add(recording);
+    }
+
+    /**
+     * Work out what is left to simulate, once every unit is added
+     */
+    private void complete() {
+      List<Integer> nodes = new ArrayList<>();
+      for (int node = 0; node < network.nodeCount(); node++) {
+        if (!replayedNode[node]) nodes.add(node);
+      }
+      List<Integer> departing = new ArrayList<>();
+      List<Integer> arriving = new ArrayList<>();
+      for (int edge = 0; edge < network.edgeCount(); edge++) {
+        if (!replayedEdge[edge]) departing.add(edge);
+        boolean outside = false;
+        for (int dest : network.pendingDestinations[edge]) outside |= !replayedNode[dest];
+        if (outside) arriving.add(edge);
+      }
+      simulatedNodes = nodes.stream().mapToInt(Integer::intValue).toArray();
+      departingEdges = departing.stream().mapToInt(Integer::intValue).toArray();
+      arrivingEdges = arriving.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Copy in the part of the replayed state after day that the rest of the
+     * network or the caller reads
+     */
+    void apply(int day, StateColumns state) {
+      for (int u = 0; u < recordings.size(); u++) {
+        Recording recording = recordings.get(u);
+        double[] data = recording.data;
+        int offset = (day - 1) * recording.width;
+        int[] daily = dailyTargets.get(u);
+        for (int i = 0; i < daily.length; i += 2) {
+          state.pending.put(daily[i], data[offset + daily[i + 1]]);
+        }
+        int[] watching = watchedTargets.get(u);
+        for (int i = 0; i < watching.length; i += 2) {
+          state.volumes.put(watching[i], data[offset + watching[i + 1]]);
+        }
+      }
+    }
+
+    /**
+     * Copy in all of the replayed state after day
+     */
+    void finish(int day, StateColumns state) {
+      for (int u = 0; u < recordings.size(); u++) {
+        Recording recording = recordings.get(u);
+        double[] data = recording.data;
+        int offset = (day - 1) * recording.width;
+        for (int node : volumeTargets.get(u)) state.volumes.put(node, data[offset++]);
+        for (int dam : levelTargets.get(u)) state.levels.put(dam, data[offset++]);
+        for (int slot : pendingTargets.get(u)) state.pending.put(slot, data[offset++]);
+      }
+    }
+
+    /**
+     * Whether this replay is also right for another network of the same
+     * shape. Networks made by FlowNetwork.withPolicies and withRouting share
+     * the arrays they do not change, so comparing arrays by identity is
+     * enough to tell that the units' keys would be the same.
+     */
+    boolean reusableFor(FlowNetwork other, double epsilon, int days, boolean withDams) {
+      return epsilon == this.epsilon && days <= this.days
+          && other.capacities == network.capacities && other.rainfall == network.rainfall
+          && other.edgeFlowOutDays == network.edgeFlowOutDays
+          && other.edgeResiduals == network.edgeResiduals && other.losses == network.losses
+          && (!withDams || (other.damPolicies == network.damPolicies
+              && other.damCapacities == network.damCapacities));
+    }
+
+    int units() {
+      return recordings.size();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package tazyik;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifiers as they are scanned, giving each distinct name a
+ * dense int id (0, 1, 2, ...). The interpreter keys its tables on these ids,
+ * so resolving a name at run time is an array index instead of a string hash.
+ */
+class SymbolTable {
+  private String[] names = new String[64];
+  private int[] hashes = new int[64];
+  private int[] slots = new int[128]; // Open addressing: id + 1, or 0 if empty
+  private int size = 0;
+
+  int intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  /**
+   * Look up the identifier in source[start, start + length), adding it if it
+   * is new. A String is only created the first time a name is seen.
+   */
+  int intern(CharSequence source, int start, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + source.charAt(start + i);
+    }
+
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && matches(names[id], source, start, length)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    int id = size++;
+    if (id == names.length) {
+      names = Arrays.copyOf(names, id * 2);
+      hashes = Arrays.copyOf(hashes, id * 2);
+    }
+    names[id] = source.subSequence(start, start + length).toString();
+    hashes[id] = hash;
+    slots[slot] = id + 1;
+    if (size * 2 > slots.length) rehash();
+    return id;
+  }
+
+  /**
+   * Id of an already interned name, or -1.
+   */
+  int lookup(String name) {
+    int hash = name.hashCode();
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && names[id].equals(name)) return id;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  String name(int id) {
+    return names[id];
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = mix(hashes[id]) & mask;
+      while (slots[slot] != 0) slot = (slot + 1) & mask;
+      slots[slot] = id + 1;
+    }
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(String name, CharSequence source, int start, int length) {
+    if (name.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (name.charAt(i) != source.charAt(start + i)) return false;
+    }
+    return true;
+  }
+}
@@ -1,7 +1,8 @@
 package tazyik;
 
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -10,14 +11,39 @@ public class Tazyik {
   static boolean hadRuntimeError = false;
 
   public static void main(String[] args) throws Exception {
-    if (args.length == 1) {
-        runFile(args[0]);
+    Options options = Options.parse(args);
+    if (options != null) {
+        runFile(options);
     } else {
         // Show usage information
         System.out.println("Tazyik - Water Flow Simulation Language");
         System.out.println("Assignment 2: Evaluation and Dams");
         System.out.println();
-        System.out.println("Usage: java tazyik.Tazyik <source_file>");
+        System.out.println("Usage: java tazyik.Tazyik [options] <source_file>");
+        System.out.println("       java tazyik.Tazyik compile <source_file> <image>");
+        System.out.println("       java tazyik.Tazyik run [options] <image>");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("  --report <river>   Only simulate what <river> depends on (repeatable)");
+        System.out.println("  --summary          Print the final summary without daily output");
+        System.out.println("  --fast-forward     Jump over linear stretches of days (implies --summary)");
+        System.out.println("  --memoise          Simulate each distinct sub-catchment once (implies --summary)");
+        System.out.println("  --resolution <p>   Write weekly, monthly or annual totals instead of each day");
+        System.out.println("  --fixed-point      Keep volumes as whole micro-litres, for results that never vary");
+        System.out.println("  --mass-balance <ML> Check that every day conserves water to within <ML>");
+        System.out.println("  --profile <file>   Rank the time each river, dam and flow takes; flame graph to <file>");
+        System.out.println("  --epsilon <ML>     Treat rainfall and flows up to <ML> as zero (default 0)");
+        System.out.println("  --scenarios <n>    Run <n> rainfall scenarios in lockstep and summarise them");
+        System.out.println("  --spread <f>       Scale scenario rainfall by up to ±<f> (default 0.5)");
+        System.out.println("  --seed <n>         Random seed for the scenarios (default 42)");
+        System.out.println("  --optimise <goal>  Tune dam releases to minimise overflow or days-above-80");
+        System.out.println("  --calibrate <csv>  Fit each flow's FlowOut and residual to observed volumes");
+        System.out.println("  --metric <m>       Calibration fit measure: nse (default) or rmse");
+        System.out.println("  --sensitivity <r>  How <r>'s peak volume responds to each rainfall and dam target");
+        System.out.println("  --live <days>      Read daily rainfall observations on stdin and forecast <days> ahead");
+        System.out.println("  --port <n>         With --live, read observations from local port <n> instead");
+        System.out.println("  --off-heap         Keep the simulation state outside the Java heap");
+        System.out.println("  --state-file <f>   Keep the simulation state in memory-mapped file <f>");
         System.out.println();
         System.out.println("IMPORTANT: Run from the project directory:");
         System.out.println("  cd 47938234_IbrahimOmeroglu_COMP3000_A2");
@@ -39,25 +65,61 @@ public class Tazyik {
     }
   }
 
-  private static void runFile(String path) throws Exception {
-    String source = new String(Files.readAllBytes(Paths.get(path)));
-    runStatements(source);
+  private static void runFile(Options options) throws Exception {
+    if (options.image) {
+      runImage(options);
+      return;
+    }
+    // Scan straight out of the mapped file rather than copying it into a String
+    CharSequence source = SourceBuffer.map(Paths.get(options.sourceFile));
+    runStatements(source, options);
 
     if (hadError) System.exit(65);
 }
 
-  private static void runStatements(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  private static void runStatements(CharSequence source, Options options) {
+    SymbolTable symbols = new SymbolTable();
+    Scanner scanner = new Scanner(source, symbols);
 
-    Parser parser = new Parser(tokens);
+    Parser parser = new Parser(scanner);
     List<Object> program = parser.parseProgram();
 
     // Use the interpreter to execute the program
-    Interpreter interpreter = new Interpreter();
+    Interpreter interpreter = new Interpreter(symbols, options);
+    for (String river : options.reports) {
+      interpreter.report(new Token(TokenType.IDENTIFIER, river, null, 0,
+          symbols.intern(river)));
+    }
     interpreter.interpret(program);
 }
 
+  /**
+   * Run a network saved by "compile", skipping the scanner, parser and
+   * declarations altogether
+   */
+  private static void runImage(Options options) {
+    NetworkImage image = null;
+    try {
+      image = NetworkImage.read(Paths.get(options.sourceFile));
+    } catch (IOException e) {
+      System.err.println("Cannot read image " + options.sourceFile + ": " + e.getMessage());
+      System.exit(1);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Bad image " + options.sourceFile + ": " + e.getMessage());
+      System.exit(1);
+    }
+
+    SymbolTable symbols = new SymbolTable();
+    Interpreter interpreter = new Interpreter(symbols, options);
+    List<String> reports = new ArrayList<>(image.reports);
+    reports.addAll(options.reports);
+    for (String river : reports) {
+      interpreter.report(new Token(TokenType.IDENTIFIER, river, null, 0,
+          symbols.intern(river)));
+    }
+    interpreter.interpret(image.network);
+  }
+
   static void error(int line, String message) {
     report(line, "", message);
   }
@@ -71,13 +133,18 @@ public class Tazyik {
     if (token.type == TokenType.EOF) {
       report(token.line, " at end", message);
     } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+      report(token.line, " at '" + token.lexeme() + "'", message);
     }
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() +
-        "\n[line " + error.token.line + "]");
+    // Tokens made from command line arguments have no source line
+    if (error.token.line > 0) {
+      System.err.println(error.getMessage() +
+          "\n[line " + error.token.line + "]");
+    } else {
+      System.err.println(error.getMessage());
+    }
     hadRuntimeError = true;
   }
 }
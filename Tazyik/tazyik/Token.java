@@ -2,19 +2,51 @@ package tazyik;
 
 class Token {
   final TokenType type;
-  final String lexeme;
   final Object literal;
-  final int line; 
+  final int line;
+  final int symbol; // Interned id for identifiers, -1 for everything else
+
+  // The lexeme is kept as a window onto the source and only copied
+  // into a String the first time somebody asks for it.
+  private final CharSequence source;
+  private final int start;
+  private final int length;
+  private String lexeme;
 
   Token(TokenType type, String lexeme, Object literal, int line) {
-    this.type = type;
+    this(type, lexeme, literal, line, -1);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
+    this(type, lexeme, 0, lexeme.length(), literal, line, symbol);
     this.lexeme = lexeme;
+  }
+
+  Token(TokenType type, CharSequence source, int start, int length,
+        Object literal, int line) {
+    this(type, source, start, length, literal, line, -1);
+  }
+
+  private Token(TokenType type, CharSequence source, int start, int length,
+        Object literal, int line, int symbol) {
+    this.type = type;
+    this.symbol = symbol;
+    this.source = source;
+    this.start = start;
+    this.length = length;
     this.literal = literal;
     this.line = line;
   }
 
+  String lexeme() {
+    if (lexeme == null) {
+      lexeme = source.subSequence(start, start + length).toString();
+    }
+    return lexeme;
+  }
+
   @Override
   public String toString() {
-    return type + " " + lexeme + " " + literal;
+    return type + " " + lexeme() + " " + literal;
   }
-}
\ No newline at end of file
+}
@@ -2,10 +2,11 @@ package tazyik;
 
 enum TokenType {
   // Keywords
-  RIVER, FLOW, CAPACITY, FLOWOUT, DAM, RELEASE,
+  RIVER, FLOW, CAPACITY, FLOWOUT, DAM, RELEASE, POLICY, REPORT, RAINFALL, LOSS,
+  IMPORT, EXPORT,
 
   // Literals
-  IDENTIFIER, NUMBER, MM, ML, PERCENT,
+  IDENTIFIER, NUMBER, STRING, MM, ML, PERCENT,
 
   // Operators and punctuation
   PLUS, ARROW, EQUAL, COMMA, SEMICOLON,
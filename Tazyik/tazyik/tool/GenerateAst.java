@@ -18,7 +18,9 @@ public class GenerateAst {
             "Literal     : Object value",
             "Unary       : Token operator, Expr right",
             "Variable    : Token name",
-            "ArrayLiteral: List<Expr> elements"
+            "NumberArray : double[] values",
+            "Rainfall    : double amount, int days",
+            "Call        : Token callee, List<Token> parameters, double[] arguments"
         ));
         
         // Generate Stmt.java for statements (following Crafting Interpreters pattern)
@@ -28,7 +30,12 @@ public class GenerateAst {
             "CapacityDecl: Token name, double value",
             "FlowOutDecl : Token name, double value",
             "RiverUpdate : Token name, Expr expr",
-            "DamDecl     : Token name, double capacity, double releasePercent"
+            "DamDecl     : Token name, double capacity, double releasePercent, Token policy, Expr policyArgument",
+            "ReportDecl  : Token name",
+            "GridDecl    : Token kind, String grid, String weights",
+            "LossDecl    : Token name, Token kind, Expr argument",
+            "ImportDecl  : Token keyword, String file, Token alias",
+            "ExportDecl  : Token name"
         ));
     }
 